@@ -0,0 +1,45 @@
+#!/usr/bin/env bash
+# Mide el tiempo hasta la primera consulta (Main --medir-arranque) sin y con AppCDS, y deja generado el archivo CDS.
+# AppCDS guarda las clases ya cargadas y verificadas en target/acceso-datos.jsa: las siguientes JVM las mapean
+# directamente en memoria en vez de leer y verificar cientos de clases de Hibernate desde los jar.
+#
+# Uso:  scripts/arranque.sh [repeticiones]        (5 por defecto, se muestra la mediana)
+#       JAVA_OPTS="-Djakarta.persistence.jdbc.url=..." scripts/arranque.sh
+# Necesita la base de datos levantada y migrada (Main --migrar). El .jsa solo vale para la misma JVM y classpath.
+set -euo pipefail
+cd "$(dirname "$0")/.."
+
+REPETICIONES=${1:-5}
+JSA=target/acceso-datos.jsa
+JAVA_OPTS=${JAVA_OPTS:-}
+
+# CDS solo acepta jar en el classpath, no directorios: se empaqueta la aplicacion
+mvn -B -q package dependency:build-classpath -Dmdep.outputFile=target/classpath.txt
+CP="target/acceso-datos-1.0-SNAPSHOT.jar:$(cat target/classpath.txt)"
+
+# $1 = nombre de la medicion, el resto opciones de la JVM. Imprime la mediana de cada fase
+medir() {
+    local nombre=$1
+    shift
+    local lineas=""
+    for _ in $(seq "$REPETICIONES"); do
+        # shellcheck disable=SC2086
+        lineas+="$(java $JAVA_OPTS "$@" -cp "$CP" es.accesodatos.Main --medir-arranque | grep '^arranque')"$'\n'
+    done
+    local resumen
+    resumen=$(printf '%-8s' "$nombre")
+    for clave in $(head -1 <<< "$lineas" | tr ' ' '\n' | grep = | cut -d= -f1); do
+        resumen+=" $clave=$(grep -o "$clave=[0-9]*" <<< "$lineas" | cut -d= -f2 | sort -n \
+            | sed -n "$(( (REPETICIONES + 1) / 2 ))p")"
+    done
+    echo "$resumen"
+}
+
+medir "sin-cds"
+
+# Una ejecucion de entrenamiento: al salir la JVM vuelca las clases que ha cargado
+# shellcheck disable=SC2086
+java $JAVA_OPTS -XX:ArchiveClassesAtExit="$JSA" -cp "$CP" es.accesodatos.Main --medir-arranque > /dev/null
+
+medir "con-cds" -XX:SharedArchiveFile="$JSA"
+echo "[=] Archivo CDS: $JSA (usar con java -XX:SharedArchiveFile=$JSA ...)"
@@ -0,0 +1,30 @@
+package es.accesodatos.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Punto de entrada de benchmarks.jar: lanza los benchmarks una vez por cada numero de hilos de -Dbench.hilos
+ * (por defecto 1,4) con el profiler de GC (asignacion por operacion: gc.alloc.rate.norm) y guarda los resultados
+ * en JSON para adjuntarlos a cada cambio de rendimiento.
+ * Argumento opcional: expresion regular de los benchmarks a lanzar (por ejemplo UsuarioDAO o PasswordUtil.verify)
+ */
+public class EjecutarBenchmarks {
+
+    public static void main(String[] args) throws RunnerException {
+        String filtro = args.length > 0 ? args[0] : "es.accesodatos.benchmark.*";
+        for (String hilos : System.getProperty("bench.hilos", "1,4").split(",")) {
+            ChainedOptionsBuilder opciones = new OptionsBuilder()
+                    .include(filtro)
+                    .threads(Integer.parseInt(hilos.trim()))
+                    .addProfiler(GCProfiler.class)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result("jmh-resultados-" + hilos.trim() + "-hilos.json");
+            new Runner(opciones.build()).run();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package es.accesodatos.benchmark;
+
+import es.accesodatos.dao.UsuarioDAO;
+import es.accesodatos.entity.Usuario;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Prepara la base de datos de los benchmarks: H2 en memoria en modo MySQL dentro del mismo proceso
+ * (el resto de persistence.xml se usa tal cual: pool Hikari, cache de segundo nivel, batching...)
+ */
+public class EntornoBenchmark {
+
+    public static final String PASSWORD = "password-benchmark";
+    private static final AtomicInteger BASES = new AtomicInteger();
+
+    private EntornoBenchmark() {
+    }
+
+    /**
+     * Apunta la unidad de persistencia a una H2 nueva (cada llamada una base vacia). Hay que llamarlo antes de crear el DAO
+     * @param costeBcrypt coste de BCrypt para los hashes de los benchmarks
+     */
+    public static void configurarH2(int costeBcrypt) {
+        System.setProperty("jakarta.persistence.jdbc.url", "jdbc:h2:mem:bench" + BASES.incrementAndGet()
+                + ";MODE=MySQL;DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE");
+        System.setProperty("jakarta.persistence.jdbc.driver", "org.h2.Driver");
+        System.setProperty("jakarta.persistence.jdbc.user", "sa");
+        System.setProperty("jakarta.persistence.jdbc.password", "");
+        System.setProperty("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        System.setProperty("hibernate.hbm2ddl.auto", "update"); // la base en memoria empieza vacia
+        System.setProperty("password.bcrypt.coste", Integer.toString(costeBcrypt));
+    }
+
+    /**
+     * Inserta usuarios 1..tamano (usuario i -> email(i)) todos con el mismo hash, para no pasar
+     * minutos haciendo BCrypt solo para preparar la tabla
+     * @return los ids que les ha dado GeneradorIdUsuario (ids[i - 1] es el del usuario i): no son 1..tamano,
+     * llevan la cubeta del email (secuencia * 1024 + cubeta)
+     */
+    public static long[] poblar(UsuarioDAO dao, int tamano, String hash) {
+        long[] ids = new long[tamano];
+        List<Usuario> lote = new ArrayList<>();
+        for (int i = 1; i <= tamano; i++) {
+            lote.add(new Usuario(email(i), "Usuario " + i, hash, 18 + i % 60));
+            if (lote.size() == 1000 || i == tamano) {
+                int primero = i - lote.size();
+                List<Usuario> creados = dao.crearLote(lote);
+                for (int j = 0; j < creados.size(); j++) {
+                    ids[primero + j] = creados.get(j).getId();
+                }
+                lote = new ArrayList<>();
+            }
+        }
+        return ids;
+    }
+
+    public static String email(long n) {
+        return "usuario" + n + "@bench.com";
+    }
+
+    /**
+     * Un usuario cualquiera de los de poblar (para su email)
+     */
+    public static long numeroAleatorio(int tamano) {
+        return ThreadLocalRandom.current().nextLong(1, tamano + 1);
+    }
+
+    /**
+     * El id de un usuario cualquiera de los de poblar
+     */
+    public static long idAleatorio(long[] ids) {
+        return ids[ThreadLocalRandom.current().nextInt(ids.length)];
+    }
+}
@@ -0,0 +1,38 @@
+package es.accesodatos.benchmark;
+
+import es.accesodatos.util.PasswordUtil;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BCrypt por coste (cada punto de coste deberia duplicar el tiempo)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1) // el coste se fija una vez por JVM, cada valor de costeBcrypt va en su propio fork
+public class PasswordUtilBenchmark {
+
+    @Param({"10", "12"})
+    public int costeBcrypt;
+
+    String hash;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        System.setProperty("password.bcrypt.coste", Integer.toString(costeBcrypt));
+        hash = PasswordUtil.encrypt(EntornoBenchmark.PASSWORD);
+    }
+
+    @Benchmark
+    public String encrypt() {
+        return PasswordUtil.encrypt(EntornoBenchmark.PASSWORD);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return PasswordUtil.verify(EntornoBenchmark.PASSWORD, hash);
+    }
+}
@@ -0,0 +1,63 @@
+package es.accesodatos.benchmark;
+
+import es.accesodatos.dao.UsuarioDAO;
+import es.accesodatos.dao.UsuarioDAOBaseDatos;
+import es.accesodatos.entity.Usuario;
+import es.accesodatos.service.PoliticaReintentos;
+import es.accesodatos.util.PasswordUtil;
+import org.openjdk.jmh.annotations.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Muchos hilos cambiando los mismos usuarios: con version (sin bloquear, reintentando si choca) contra
+ * SELECT ... FOR UPDATE. Las dos van directas al DAO con el mismo cambio, asi solo cambia como se evita pisar al otro.
+ * Todos los hilos reparten sus escrituras entre las primeras cuentas usuarios, asi que
+ * hilos por cuenta = hilos / cuentas: lanzarlo con -Dbench.hilos=1,4,16 y mirar como baja cada uno al subir.
+ * Las estadisticas de conflictos (reintentos.estado()) salen al final de cada trial
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UsuarioConcurrenciaBenchmark {
+
+    private static final Consumer<Usuario> CAMBIO = usuario -> usuario.setEdad(usuario.getEdad() + 1);
+
+    @Param({"1", "4", "64"})
+    public int cuentas;
+
+    UsuarioDAO dao;
+    PoliticaReintentos reintentos;
+    long[] ids;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        EntornoBenchmark.configurarH2(4); // aqui no se mide BCrypt
+        dao = UsuarioDAOBaseDatos.abrir();
+        ids = EntornoBenchmark.poblar(dao, cuentas, PasswordUtil.encrypt(EntornoBenchmark.PASSWORD));
+        // La espera del servicio, pero con 1000 intentos: con 10 (lo de por defecto) y muchos hilos en una cuenta
+        // algunos se rinden y paran el benchmark, y aqui se quiere medir lo que cuesta reintentar hasta conseguirlo
+        reintentos = new PoliticaReintentos(1000, 2, 100);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        System.out.println("\n[=] Conflictos de version: " + reintentos.estado());
+        dao.cerrar();
+    }
+
+    @Benchmark
+    public Optional<Usuario> optimista() {
+        long id = EntornoBenchmark.idAleatorio(ids);
+        return reintentos.ejecutar(() -> dao.modificar(id, CAMBIO));
+    }
+
+    @Benchmark
+    public Optional<Usuario> conBloqueo() {
+        return dao.modificarConBloqueo(EntornoBenchmark.idAleatorio(ids), CAMBIO);
+    }
+}
@@ -0,0 +1,113 @@
+package es.accesodatos.benchmark;
+
+import es.accesodatos.dao.UsuarioDAO;
+import es.accesodatos.dao.UsuarioDAOBaseDatos;
+import es.accesodatos.entity.Usuario;
+import es.accesodatos.util.PasswordUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.ThreadParams;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Operaciones del DAO contra H2 con la tabla ya llena (tamanoTabla filas)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UsuarioDAOBenchmark {
+
+    @Param({"1000", "100000"})
+    public int tamanoTabla;
+
+    UsuarioDAO dao;
+    String hash;
+    long[] ids;
+    AtomicLong siguienteEmail;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        EntornoBenchmark.configurarH2(4); // aqui no se mide BCrypt
+        dao = UsuarioDAOBaseDatos.abrir();
+        hash = PasswordUtil.encrypt(EntornoBenchmark.PASSWORD);
+        ids = EntornoBenchmark.poblar(dao, tamanoTabla, hash);
+        siguienteEmail = new AtomicLong(tamanoTabla);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        dao.cerrar();
+    }
+
+    /**
+     * Un usuario recien creado para cada llamada a eliminar (no cuenta en la medicion)
+     */
+    @State(Scope.Thread)
+    public static class UsuarioParaEliminar {
+        Long id;
+
+        @Setup(Level.Invocation)
+        public void crear(UsuarioDAOBenchmark b) {
+            id = b.dao.crear(new Usuario(EntornoBenchmark.email(b.siguienteEmail.incrementAndGet()), "Borrar", b.hash, 1)).getId();
+        }
+    }
+
+    /**
+     * Los usuarios que actualiza cada hilo: cada uno los suyos (numero % hilos == hilo), para que dos hilos
+     * no choquen por la version y el benchmark no se pare con un OptimisticLockException
+     */
+    @State(Scope.Thread)
+    public static class UsuariosDelHilo {
+        int hilo;
+        int hilos;
+
+        @Setup(Level.Trial)
+        public void preparar(ThreadParams params) {
+            hilo = params.getThreadIndex();
+            hilos = params.getThreadCount();
+        }
+
+        int numeroAleatorio(int tamano) {
+            int cuantos = (tamano - hilo + hilos - 1) / hilos;
+            return 1 + hilo + ThreadLocalRandom.current().nextInt(cuantos) * hilos;
+        }
+    }
+
+    @Benchmark
+    public Usuario crear() {
+        return dao.crear(new Usuario(EntornoBenchmark.email(siguienteEmail.incrementAndGet()), "Nuevo", hash, 30));
+    }
+
+    @Benchmark
+    public Optional<Usuario> buscarPorId() {
+        return dao.buscarPorId(EntornoBenchmark.idAleatorio(ids));
+    }
+
+    @Benchmark
+    public Optional<Usuario> buscarPorEmail() {
+        return dao.buscarPorEmail(EntornoBenchmark.email(EntornoBenchmark.numeroAleatorio(tamanoTabla)));
+    }
+
+    @Benchmark
+    public List<Usuario> listarTodos() {
+        return dao.listarTodos();
+    }
+
+    @Benchmark
+    public Usuario actualizar(UsuariosDelHilo hilo) {
+        // Se lee antes (con su version, casi siempre de la cache) y se le cambia el nombre, como hace el servicio
+        Usuario usuario = dao.buscarPorId(ids[hilo.numeroAleatorio(tamanoTabla) - 1]).orElseThrow();
+        usuario.setNombre("Cambiado " + System.nanoTime());
+        return dao.actualizar(usuario);
+    }
+
+    @Benchmark
+    public int eliminar(UsuarioParaEliminar usuario) {
+        return dao.eliminar(usuario.id);
+    }
+}
@@ -0,0 +1,57 @@
+package es.accesodatos.benchmark;
+
+import es.accesodatos.dao.UsuarioDAO;
+import es.accesodatos.dao.UsuarioDAOBaseDatos;
+import es.accesodatos.entity.Usuario;
+import es.accesodatos.service.UsuarioService;
+import es.accesodatos.util.PasswordUtil;
+import org.openjdk.jmh.annotations.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Registro y login completos (validacion + BCrypt + bd) con el coste de BCrypt de produccion
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class UsuarioServiceBenchmark {
+
+    @Param({"1000", "100000"})
+    public int tamanoTabla;
+
+    @Param({"10"})
+    public int costeBcrypt;
+
+    UsuarioService service;
+    AtomicLong siguienteEmail;
+
+    @Setup(Level.Trial)
+    public void preparar() {
+        EntornoBenchmark.configurarH2(costeBcrypt);
+        UsuarioDAO dao = UsuarioDAOBaseDatos.abrir(); // solo para llenar la tabla, luego el servicio abre la misma bd
+        EntornoBenchmark.poblar(dao, tamanoTabla, PasswordUtil.encrypt(EntornoBenchmark.PASSWORD));
+        dao.cerrar();
+        service = new UsuarioService();
+        siguienteEmail = new AtomicLong(tamanoTabla);
+    }
+
+    @TearDown(Level.Trial)
+    public void cerrar() {
+        service.cerrar();
+    }
+
+    @Benchmark
+    public Usuario registrar() {
+        return service.registrar(EntornoBenchmark.email(siguienteEmail.incrementAndGet()), "Nuevo", EntornoBenchmark.PASSWORD, 30);
+    }
+
+    @Benchmark
+    public Optional<Usuario> autenticar() {
+        return service.autenticar(EntornoBenchmark.email(EntornoBenchmark.numeroAleatorio(tamanoTabla)), EntornoBenchmark.PASSWORD);
+    }
+}
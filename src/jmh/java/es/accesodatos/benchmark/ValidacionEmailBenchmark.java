@@ -0,0 +1,30 @@
+package es.accesodatos.benchmark;
+
+import es.accesodatos.service.UsuarioService;
+import org.openjdk.jmh.annotations.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regex del email de validarFormatoEmail: compilado una vez (como esta ahora) frente a String.matches (como estaba)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ValidacionEmailBenchmark {
+
+    @Param({"usuario123@bench.com", "no-es-un-email"})
+    public String email;
+
+    @Benchmark
+    public boolean patronCompilado() {
+        return UsuarioService.esFormatoEmailValido(email);
+    }
+
+    @Benchmark
+    public boolean stringMatches() {
+        return email.matches(UsuarioService.REGEX_EMAIL);
+    }
+}
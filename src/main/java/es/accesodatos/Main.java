@@ -1,18 +1,41 @@
 package es.accesodatos;
 
+import es.accesodatos.carga.ConfiguracionCarga;
+import es.accesodatos.carga.GeneradorCarga;
+import es.accesodatos.carga.ResultadoCarga;
+import es.accesodatos.dao.EstadisticasHibernate;
+import es.accesodatos.dao.RebalanceadorShards;
+import es.accesodatos.dto.CriteriosBusqueda;
+import es.accesodatos.dto.Pagina;
+import es.accesodatos.dto.ResultadoExportacion;
+import es.accesodatos.dto.ResultadoImportacion;
+import es.accesodatos.dto.UsuarioNuevo;
+import es.accesodatos.dto.UsuarioResumen;
 import es.accesodatos.entity.Usuario;
 import es.accesodatos.service.UsuarioService;
+import es.accesodatos.util.LectorUsuarios;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.stream.Stream;
 
 /**
  * menu interactivo para gestionar usuarios
  */
 public class Main {
 
-    private static final UsuarioService service = new UsuarioService();
+    private static UsuarioService service;
     private static final Scanner scanner = new Scanner(System.in);
+    private static final int TAMANO_PAGINA = 20;
 
     public static void main(String[] args) {
+        if (args.length > 0) {
+            ejecutarComando(args);
+            return;
+        }
+        service = new UsuarioService(); // vuelve enseguida, JPA arranca en segundo plano mientras sale el menu
         int opcion;
 
         do {
@@ -28,6 +51,9 @@ public class Main {
                 case 6 -> cambiarPassword();
                 case 7 -> eliminarUsuario();
                 case 8 -> autenticar();
+                case 9 -> importarUsuarios();
+                case 10 -> mostrarEstadisticas();
+                case 11 -> buscarPorCriterios();
                 case 0 -> System.out.println("[!] Hasta luego"); //salida
                 default -> System.out.println("[X] Opcion no valida");
             }
@@ -42,6 +68,119 @@ public class Main {
         service.cerrar();
     }
 
+    /**
+     * Modo sin menu para scripts y tareas programadas:
+     *   --migrar          crea/actualiza el esquema de la base de datos
+     *   --medir-arranque  tiempo desde que arranca la JVM hasta la primera consulta
+     *   --carga [...]     prueba de carga sin menu (opciones en ConfiguracionCarga)
+     *   --rebalancear [--antes=N]  reparte las cubetas tras añadir shards (N: shards que habia, si no hay mapa)
+     *   --exportar fichero [--reanudar]  exporta los usuarios a CSV/JSONL (.gz comprimido); --reanudar sigue una que se corto
+     */
+    private static void ejecutarComando(String[] args) {
+        try {
+            switch (args[0]) {
+                case "--migrar" -> {
+                    UsuarioService.migrarEsquema();
+                    System.out.println("[=] Esquema actualizado");
+                }
+                case "--medir-arranque" -> medirArranque();
+                case "--carga" -> ejecutarCarga(args);
+                case "--rebalancear" -> rebalancear(args);
+                case "--exportar" -> exportar(args);
+                default -> System.out.println("[X] Comando no valido: " + args[0] + " (--migrar, --medir-arranque, --carga, --rebalancear, --exportar)");
+            }
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Imprime en una linea (para scripts/arranque.sh) cuanto tarda cada fase hasta tener la primera consulta hecha:
+     * jvm = hasta entrar en main, servicio = crear UsuarioService, jpa = esperar a la EMF, consulta = la primera SELECT
+     */
+    private static void medirArranque() {
+        long inicioJvm = ManagementFactory.getRuntimeMXBean().getStartTime();
+        long enMain = System.currentTimeMillis();
+        service = new UsuarioService();
+        long servicioCreado = System.currentTimeMillis();
+        service.esperarArranque();
+        long jpaListo = System.currentTimeMillis();
+        service.buscarResumenPorId(1L);
+        long primeraConsulta = System.currentTimeMillis();
+        System.out.println("arranque total_ms=" + (primeraConsulta - inicioJvm)
+                + " jvm_ms=" + (enMain - inicioJvm)
+                + " servicio_ms=" + (servicioCreado - enMain)
+                + " jpa_ms=" + (jpaListo - servicioCreado)
+                + " consulta_ms=" + (primeraConsulta - jpaListo));
+        service.cerrar();
+    }
+
+    private static void rebalancear(String[] args) {
+        int shardsAntes = 0;
+        for (int i = 1; i < args.length; i++) {
+            if (!args[i].startsWith("--antes=")) {
+                throw new RuntimeException("[!] Opcion desconocida: " + args[i] + " (--antes=N)");
+            }
+            try {
+                shardsAntes = Integer.parseInt(args[i].substring("--antes=".length()));
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("[!] --antes tiene que ser un numero: " + args[i]);
+            }
+        }
+        RebalanceadorShards.ResultadoRebalanceo resultado = UsuarioService.rebalancearShards(shardsAntes);
+        System.out.printf("[=] Shards %d -> %d: %d cubetas y %d usuarios movidos en %d ms (%.0f usuarios/s)%n",
+                resultado.shardsAntes(), resultado.shardsDespues(), resultado.cubetasMovidas(),
+                resultado.usuariosMovidos(), resultado.milisegundos(), resultado.usuariosPorSegundo());
+    }
+
+    private static void exportar(String[] args) {
+        if (args.length < 2 || args[1].startsWith("--")) {
+            throw new RuntimeException("[!] Falta el fichero: --exportar fichero [--reanudar]");
+        }
+        boolean reanudar = false;
+        for (int i = 2; i < args.length; i++) {
+            if (!args[i].equals("--reanudar")) {
+                throw new RuntimeException("[!] Opcion desconocida: " + args[i] + " (--reanudar)");
+            }
+            reanudar = true;
+        }
+        service = new UsuarioService();
+        try {
+            ResultadoExportacion resultado = service.exportar(Path.of(args[1]), reanudar);
+            System.out.printf("[=] %d usuarios exportados a %s en %d ms (%.0f filas/s, %d bytes)%n",
+                    resultado.filas(), resultado.fichero(), resultado.milisegundos(), resultado.filasPorSegundo(),
+                    resultado.bytes());
+            if (resultado.desdeId() > 0) {
+                System.out.println("    Reanudada despues del id " + resultado.desdeId() + ": el fichero tiene "
+                        + resultado.filasTotales() + " usuarios");
+            }
+        } finally {
+            service.cerrar();
+        }
+    }
+
+    private static void ejecutarCarga(String[] args) {
+        ConfiguracionCarga configuracion = ConfiguracionCarga.desdeArgumentos(args);
+        service = new UsuarioService();
+        try {
+            System.out.println("[~] Calentando " + configuracion.calentamientoSegundos() + " s y midiendo "
+                    + configuracion.duracionSegundos() + " s con " + configuracion.hilos() + " hilos...");
+            ResultadoCarga resultado = new GeneradorCarga(service, configuracion).ejecutar();
+            System.out.print(resultado.texto());
+            if (configuracion.salida() != null) {
+                resultado.guardar(configuracion.salida());
+                System.out.println("[=] Guardado en " + configuracion.salida());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.out.println("[!] No se pudo guardar el resultado: " + e.getMessage());
+        } finally {
+            service.cerrar();
+        }
+    }
+
     /**
      * Menu simple
      */
@@ -57,6 +196,9 @@ public class Main {
         System.out.println("|  6. Cambiar contraseña             |");
         System.out.println("|  7. Eliminar usuario               |");
         System.out.println("|  8. Autenticar (login simple)      |");
+        System.out.println("|  9. Importar usuarios (CSV/JSONL)  |");
+        System.out.println("| 10. Estadisticas                   |");
+        System.out.println("| 11. Buscar por nombre/edad         |");
         System.out.println("|  0. Salir                          |");
         System.out.println("++++++++++++++++++++++++++++++++++++++");
     }
@@ -83,12 +225,57 @@ public class Main {
 
     private static void listarUsuarios() {
         System.out.println("\n--- LISTA DE USUARIOS ---");
-        List<Usuario> usuarios = service.listarTodos();
+        Pagina<UsuarioResumen> pagina = service.listarPagina(null, TAMANO_PAGINA);
 
-        if (usuarios.isEmpty()) {
+        if (pagina.elementos().isEmpty()) {
             System.out.println("[?] No hay usuarios registrados");
-        } else {
-            usuarios.forEach(System.out::println);
+            return;
+        }
+
+        // Vamos pidiendo paginas segun las va pidiendo el usuario, nunca se carga la tabla entera
+        pagina.elementos().forEach(System.out::println);
+        while (pagina.hayMas()) {
+            String seguir = leerTexto("[~] ENTER para ver mas, 'q' para terminar: ");
+            if (seguir.equalsIgnoreCase("q")) {
+                return;
+            }
+            pagina = service.listarPagina(pagina.siguienteCursor(), TAMANO_PAGINA);
+            pagina.elementos().forEach(System.out::println);
+        }
+    }
+
+    private static void buscarPorCriterios() {
+        System.out.println("\n--- BUSCAR POR NOMBRE/EDAD ---");
+        String prefijo = leerTexto("[+] Nombre empieza por (ENTER para cualquiera): ");
+        String minima = leerTexto("[+] Edad minima (ENTER para sin minimo): ");
+        String maxima = leerTexto("[+] Edad maxima (ENTER para sin maximo): ");
+        String orden = leerTexto("[+] Ordenar por id/nombre/edad (ENTER para id): ");
+
+        CriteriosBusqueda criterios;
+        try {
+            criterios = new CriteriosBusqueda(prefijo,
+                    minima.isBlank() ? null : Integer.parseInt(minima.trim()),
+                    maxima.isBlank() ? null : Integer.parseInt(maxima.trim()),
+                    orden.isBlank() ? CriteriosBusqueda.Orden.ID : CriteriosBusqueda.Orden.valueOf(orden.trim().toUpperCase()),
+                    false);
+        } catch (IllegalArgumentException e) { // NumberFormatException incluida
+            System.out.println("[X] Edad u orden no validos");
+            return;
+        } catch (RuntimeException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
+
+        System.out.println("[=] " + service.contar(criterios) + " usuarios");
+        Pagina<UsuarioResumen> pagina = service.buscar(criterios, null, TAMANO_PAGINA);
+        pagina.elementos().forEach(System.out::println);
+        while (pagina.hayMas()) {
+            String seguir = leerTexto("[~] ENTER para ver mas, 'q' para terminar: ");
+            if (seguir.equalsIgnoreCase("q")) {
+                return;
+            }
+            pagina = service.buscar(criterios, pagina.siguienteCursor(), TAMANO_PAGINA);
+            pagina.elementos().forEach(System.out::println);
         }
     }
 
@@ -96,7 +283,7 @@ public class Main {
         System.out.println("\n--- BUSCAR POR ID ---");
         Long id = leerLong("[+] ID del usuario: ");
 
-        Optional<Usuario> usuario = service.buscarPorId(id);
+        Optional<UsuarioResumen> usuario = service.buscarResumenPorId(id);
         usuario.ifPresentOrElse(
                 u -> System.out.println("[=] Encontrado: " + u),
                 () -> System.out.println("[!] Usuario no encontrado")
@@ -107,7 +294,7 @@ public class Main {
         System.out.println("\n--- BUSCAR POR EMAIL ---");
         String email = leerTexto("[+] Email: ");
 
-        Optional<Usuario> usuario = service.buscarPorEmail(email);
+        Optional<UsuarioResumen> usuario = service.buscarResumenPorEmail(email);
         usuario.ifPresentOrElse(
                 u -> System.out.println("[=] Encontrado: " + u),
                 () -> System.out.println("Usuario no encontrado")
@@ -118,6 +305,7 @@ public class Main {
         System.out.println("\n--- ACTUALIZAR USUARIO ---");
         Long id = leerLong("[+] ID del usuario a actualizar: ");
 
+        // El usuario entero (con su version): si otro lo cambia mientras se escribe, actualizar lo detecta
         Optional<Usuario> usuarioOpt = service.buscarPorId(id);
 
         if (usuarioOpt.isEmpty()) {
@@ -132,17 +320,21 @@ public class Main {
         String nuevoEmail = leerTexto("[+] Nuevo email (ENTER para mantener): ");
         String edadStr = leerTexto("[+] Nueva edad (ENTER para mantener): ");
 
-        if (!nuevoNombre.isEmpty()) {
-            usuario.setNombre(nuevoNombre);
-        }
-        if (!nuevoEmail.isEmpty()) {
-            usuario.setEmail(nuevoEmail);
-        }
-        if (!edadStr.isEmpty()) {
-            usuario.setEdad(Integer.parseInt(edadStr));
+        if (nuevoNombre.isEmpty() && nuevoEmail.isEmpty() && edadStr.isEmpty()) {
+            System.out.println("[!] No se ha cambiado nada");
+            return;
         }
 
         try {
+            if (!nuevoNombre.isEmpty()) {
+                usuario.setNombre(nuevoNombre);
+            }
+            if (!nuevoEmail.isEmpty()) {
+                usuario.setEmail(nuevoEmail);
+            }
+            if (!edadStr.isEmpty()) {
+                usuario.setEdad(Integer.parseInt(edadStr));
+            }
             Usuario actualizado = service.actualizar(usuario);
             System.out.println("[=] Usuario actualizado: " + actualizado);
         } catch (Exception e) {
@@ -192,6 +384,65 @@ public class Main {
         }
     }
 
+    private static void importarUsuarios() {
+        System.out.println("\n--- IMPORTAR USUARIOS ---");
+        Path fichero = Path.of(leerTexto("[+] Fichero (.csv o .jsonl): "));
+
+        if (!Files.isReadable(fichero)) {
+            System.out.println("[!] No se puede leer el fichero");
+            return;
+        }
+
+        try (Stream<UsuarioNuevo> filas = LectorUsuarios.leer(fichero)) {
+            ResultadoImportacion resultado = service.registrarLote(filas);
+            System.out.println("[=] Filas leidas: " + resultado.getFilasLeidas() + ", insertadas: " + resultado.getInsertados());
+            List<ResultadoImportacion.ErrorFila> errores = resultado.getErrores();
+            if (!errores.isEmpty()) {
+                System.out.println("[!] Filas con error: " + errores.size());
+                errores.stream().limit(20).forEach(e ->
+                        System.out.println("    fila " + e.fila() + " (" + e.email() + "): " + e.motivo()));
+                if (errores.size() > 20) {
+                    System.out.println("    ...");
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("[!] Error al importar: " + e.getMessage());
+        }
+    }
+
+    private static void mostrarEstadisticas() {
+        System.out.println("\n--- ESTADISTICAS ---");
+        System.out.println("[=] Operaciones (ms):");
+        service.metricasOperaciones().forEach((operacion, r) -> System.out.printf(
+                "    %-36s llamadas=%d errores=%d filas=%d p50=%.2f p99=%.2f p99.9=%.2f max=%.2f%n",
+                operacion, r.llamadas(), r.errores(), r.filas(), r.p50Ms(), r.p99Ms(), r.p999Ms(), r.maxMs()));
+        System.out.println("[=] Pool de conexiones: " + service.estadoPool());
+        System.out.println("[=] Replicas: " + service.estadoReplicas());
+        service.estadoShards().forEach(shard -> System.out.println("[=] Shard " + shard.shard() + " (" + shard.url()
+                + "): cubetas=" + shard.cubetas() + " pool=" + shard.pool()));
+        System.out.println("[=] Pool de BCrypt: " + service.estadoHash());
+        System.out.println("[=] Cache: " + service.estadisticasCache());
+        System.out.println("[=] Filtro de emails: " + service.estadoFiltroEmails());
+        System.out.println("[=] Conflictos de version: " + service.estadoReintentos());
+        service.estadoCredenciales().ifPresent(c -> System.out.printf(
+                "[=] Cache de logins: entradas=%d/%d ttl=%ds aciertos=%d fallos=%d tasa=%.1f%% BCrypt ahorrado~%.0f ms%n",
+                c.entradas(), c.maximo(), c.ttlSegundos(), c.aciertos(), c.fallos(), c.tasaAciertos() * 100,
+                c.msAhorradosEstimados()));
+        service.estadoAgrupador().ifPresent(a -> System.out.printf(
+                "[=] Group commit: grupos=%d escrituras=%d fila-a-fila=%d tamano medio=%.1f p50=%d max=%d espera(ms) p50=%.2f p99=%.2f max=%.2f%n",
+                a.grupos(), a.escrituras(), a.repetidosFilaAFila(), a.tamanoMedio(), a.tamanoP50(), a.tamanoMax(),
+                a.esperaP50Ms(), a.esperaP99Ms(), a.esperaMaxMs()));
+
+        EstadisticasHibernate hibernate = service.estadisticasHibernate();
+        System.out.println("[=] Hibernate: consultas=" + hibernate.consultas()
+                + " cargadas=" + hibernate.entidadesCargadas()
+                + " sentencias=" + hibernate.sentenciasPreparadas()
+                + " transacciones=" + hibernate.transacciones()
+                + " conexiones=" + hibernate.conexionesPedidas());
+        System.out.println("[=] Consultas mas lentas (ms):");
+        hibernate.consultasLentas().forEach((consulta, ms) -> System.out.println("    " + ms + "  " + consulta));
+    }
+
     /**
      * Metodos auxiliares para el input de usuarios, evita repeticion y mejora limpieza
      */
@@ -0,0 +1,75 @@
+package es.accesodatos.carga;
+
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * Configuracion de una prueba de carga, sale de los argumentos de Main --carga:
+ *   --hilos=8  --duracion=60  --calentamiento=10  (segundos)
+ *   --mezcla=registrar:5,autenticar:25,buscar:60,actualizar:8,eliminar:2  (pesos, no hace falta que sumen 100)
+ *   --usuarios=1000  (los que se crean antes de empezar)
+ *   --salida=carga.csv o carga.json  (opcional, el CSV se va acumulando para ver la tendencia)
+ */
+public record ConfiguracionCarga(int hilos, int duracionSegundos, int calentamientoSegundos,
+                                 Map<OperacionCarga, Integer> mezcla, int usuariosIniciales, Path salida) {
+
+    private static final String MEZCLA_POR_DEFECTO = "registrar:5,autenticar:25,buscar:60,actualizar:8,eliminar:2";
+
+    public static ConfiguracionCarga desdeArgumentos(String[] args) {
+        Map<String, String> opciones = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                continue; // el propio --carga
+            }
+            int igual = arg.indexOf('=');
+            opciones.put(arg.substring(2, igual), arg.substring(igual + 1));
+        }
+        String salida = opciones.remove("salida");
+        ConfiguracionCarga configuracion = new ConfiguracionCarga(
+                entero(opciones.remove("hilos"), 8, "hilos"),
+                entero(opciones.remove("duracion"), 60, "duracion"),
+                entero(opciones.remove("calentamiento"), 10, "calentamiento"),
+                mezcla(opciones.getOrDefault("mezcla", MEZCLA_POR_DEFECTO)),
+                entero(opciones.remove("usuarios"), 1000, "usuarios"),
+                salida == null ? null : Path.of(salida));
+        opciones.remove("mezcla");
+        if (!opciones.isEmpty()) {
+            throw new RuntimeException("[!] Opciones desconocidas: " + opciones.keySet());
+        }
+        if (configuracion.hilos() <= 0 || configuracion.duracionSegundos() <= 0 || configuracion.usuariosIniciales() <= 0) {
+            throw new RuntimeException("[!] hilos, duracion y usuarios tienen que ser mayores que 0");
+        }
+        return configuracion;
+    }
+
+    private static int entero(String valor, int porDefecto, String nombre) {
+        if (valor == null) {
+            return porDefecto;
+        }
+        try {
+            return Integer.parseInt(valor.trim());
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("[!] --" + nombre + " tiene que ser un numero");
+        }
+    }
+
+    // "registrar:5,buscar:60" -> {REGISTRAR=5, BUSCAR=60}
+    private static Map<OperacionCarga, Integer> mezcla(String texto) {
+        Map<OperacionCarga, Integer> mezcla = new EnumMap<>(OperacionCarga.class);
+        for (String parte : texto.split(",")) {
+            String[] nombreYPeso = parte.split(":");
+            if (nombreYPeso.length != 2) {
+                throw new RuntimeException("[!] La mezcla tiene que ser operacion:peso,operacion:peso...");
+            }
+            int peso = entero(nombreYPeso[1], 0, "mezcla");
+            if (peso < 0) {
+                throw new RuntimeException("[!] Los pesos de la mezcla no pueden ser negativos");
+            }
+            mezcla.put(OperacionCarga.desdeNombre(nombreYPeso[0]), peso);
+        }
+        if (mezcla.values().stream().mapToInt(Integer::intValue).sum() == 0) {
+            throw new RuntimeException("[!] La mezcla no tiene ninguna operacion con peso");
+        }
+        return mezcla;
+    }
+}
@@ -0,0 +1,158 @@
+package es.accesodatos.carga;
+
+import es.accesodatos.dto.UsuarioNuevo;
+import es.accesodatos.entity.Usuario;
+import es.accesodatos.metricas.MetricasOperacion;
+import es.accesodatos.metricas.RegistroMetricas;
+import es.accesodatos.service.UsuarioService;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/**
+ * Prueba de carga de todo el stack (UsuarioService -> DAO -> base de datos) sin menu: N hilos lanzando sin parar
+ * operaciones elegidas al azar segun la mezcla. Primero un calentamiento que no cuenta (JIT, caches, pool) y luego
+ * la medicion. Las latencias las apunta RegistroMetricas como carga.registrar, carga.buscar...
+ *
+ * Los usuarios de la prueba tienen emails carga-...@carga.local y se quedan en la tabla al acabar
+ */
+public class GeneradorCarga {
+
+    private static final String PASSWORD = "Carga-Password-1";
+    private static final String PREFIJO_METRICA = "carga.";
+    private static final int INTENTOS_ELEGIR_USUARIO = 20;
+
+    private record UsuarioCarga(long id, String email) {
+    }
+
+    private final UsuarioService service;
+    private final ConfiguracionCarga configuracion;
+    // Usuarios con los que trabajar. Registrar ocupa un hueco al azar, eliminar lo deja a null
+    private final AtomicReferenceArray<UsuarioCarga> usuarios;
+    private final OperacionCarga[] operaciones;
+    private final int[] pesosAcumulados;
+    private final String prefijoEmail = "carga-" + Long.toString(System.currentTimeMillis(), 36) + "-";
+    private final AtomicLong siguienteEmail = new AtomicLong();
+    private volatile boolean parar;
+
+    public GeneradorCarga(UsuarioService service, ConfiguracionCarga configuracion) {
+        this.service = service;
+        this.configuracion = configuracion;
+        this.usuarios = new AtomicReferenceArray<>(configuracion.usuariosIniciales());
+        this.operaciones = configuracion.mezcla().keySet().toArray(OperacionCarga[]::new);
+        this.pesosAcumulados = new int[operaciones.length];
+        int acumulado = 0;
+        for (int i = 0; i < operaciones.length; i++) {
+            acumulado += configuracion.mezcla().get(operaciones[i]);
+            pesosAcumulados[i] = acumulado;
+        }
+    }
+
+    public ResultadoCarga ejecutar() throws InterruptedException {
+        preparar();
+        AtomicInteger numeroHilo = new AtomicInteger();
+        ExecutorService hilos = Executors.newFixedThreadPool(configuracion.hilos(),
+                tarea -> new Thread(tarea, "carga-" + numeroHilo.incrementAndGet()));
+        for (int i = 0; i < configuracion.hilos(); i++) {
+            hilos.execute(this::trabajar);
+        }
+
+        TimeUnit.SECONDS.sleep(configuracion.calentamientoSegundos());
+        RegistroMetricas.reiniciar(); // lo del calentamiento no cuenta
+        long inicio = System.nanoTime();
+        TimeUnit.SECONDS.sleep(configuracion.duracionSegundos());
+        parar = true;
+        double segundos = (System.nanoTime() - inicio) / 1e9;
+        hilos.shutdown();
+        hilos.awaitTermination(1, TimeUnit.MINUTES);
+
+        Map<OperacionCarga, MetricasOperacion.Resumen> resultados = new EnumMap<>(OperacionCarga.class);
+        for (OperacionCarga operacion : operaciones) {
+            MetricasOperacion metricas = RegistroMetricas.de(PREFIJO_METRICA + operacion.nombre());
+            if (metricas != null) {
+                resultados.put(operacion, metricas.resumen());
+            }
+        }
+        return new ResultadoCarga(configuracion, segundos, resultados);
+    }
+
+    // Crea los usuarios iniciales con la importacion por lotes y recupera sus ids
+    private void preparar() {
+        List<String> emails = IntStream.range(0, usuarios.length())
+                .mapToObj(i -> nuevoEmail())
+                .toList();
+        service.registrarLote(emails.stream().map(email -> new UsuarioNuevo(email, "Carga", PASSWORD, 30)));
+        List<Usuario> creados = service.buscarPorEmails(emails).encontrados();
+        for (int i = 0; i < creados.size(); i++) {
+            usuarios.set(i, new UsuarioCarga(creados.get(i).getId(), creados.get(i).getEmail()));
+        }
+    }
+
+    private void trabajar() {
+        while (!parar) {
+            OperacionCarga operacion = elegirOperacion();
+            try {
+                RegistroMetricas.medir(PREFIJO_METRICA + operacion.nombre(), () -> ejecutar(operacion));
+            } catch (RuntimeException e) {
+                // ya contado como error en las metricas de la operacion, se sigue
+            }
+        }
+    }
+
+    private Object ejecutar(OperacionCarga operacion) {
+        ThreadLocalRandom aleatorio = ThreadLocalRandom.current();
+        switch (operacion) {
+            case REGISTRAR -> {
+                String email = nuevoEmail();
+                Usuario usuario = service.registrar(email, "Carga", PASSWORD, aleatorio.nextInt(18, 90));
+                usuarios.set(aleatorio.nextInt(usuarios.length()), new UsuarioCarga(usuario.getId(), email));
+            }
+            case AUTENTICAR -> {
+                return service.autenticar(elegirUsuario().email(), PASSWORD);
+            }
+            case BUSCAR -> {
+                UsuarioCarga usuario = elegirUsuario();
+                return aleatorio.nextBoolean() ? service.buscarPorId(usuario.id()) : service.buscarPorEmail(usuario.email());
+            }
+            case ACTUALIZAR -> service.actualizarCampos(elegirUsuario().id(), null,
+                    "Carga " + aleatorio.nextInt(1000), aleatorio.nextInt(18, 90));
+            case ELIMINAR -> {
+                UsuarioCarga usuario = usuarios.getAndSet(aleatorio.nextInt(usuarios.length()), null);
+                if (usuario != null) {
+                    service.eliminar(usuario.id());
+                }
+            }
+        }
+        return null;
+    }
+
+    private OperacionCarga elegirOperacion() {
+        int valor = ThreadLocalRandom.current().nextInt(pesosAcumulados[pesosAcumulados.length - 1]);
+        for (int i = 0; i < pesosAcumulados.length; i++) {
+            if (valor < pesosAcumulados[i]) {
+                return operaciones[i];
+            }
+        }
+        return operaciones[operaciones.length - 1];
+    }
+
+    private UsuarioCarga elegirUsuario() {
+        for (int i = 0; i < INTENTOS_ELEGIR_USUARIO; i++) {
+            UsuarioCarga usuario = usuarios.get(ThreadLocalRandom.current().nextInt(usuarios.length()));
+            if (usuario != null) {
+                return usuario;
+            }
+        }
+        throw new RuntimeException("[!] Casi no quedan usuarios para la prueba, baja el peso de eliminar");
+    }
+
+    private String nuevoEmail() {
+        return prefijoEmail + siguienteEmail.incrementAndGet() + "@carga.local";
+    }
+}
@@ -0,0 +1,21 @@
+package es.accesodatos.carga;
+
+/**
+ * Operaciones que mezcla el generador de carga. El nombre en minusculas es el que se usa en --mezcla
+ */
+public enum OperacionCarga {
+    REGISTRAR, AUTENTICAR, BUSCAR, ACTUALIZAR, ELIMINAR;
+
+    public String nombre() {
+        return name().toLowerCase();
+    }
+
+    static OperacionCarga desdeNombre(String nombre) {
+        for (OperacionCarga operacion : values()) {
+            if (operacion.nombre().equals(nombre.trim())) {
+                return operacion;
+            }
+        }
+        throw new RuntimeException("[!] Operacion de carga desconocida: " + nombre);
+    }
+}
@@ -0,0 +1,101 @@
+package es.accesodatos.carga;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import es.accesodatos.metricas.MetricasOperacion;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Resultado de una prueba de carga: por operacion, llamadas, errores, operaciones por segundo y percentiles
+ */
+public record ResultadoCarga(ConfiguracionCarga configuracion, double segundos,
+                             Map<OperacionCarga, MetricasOperacion.Resumen> operaciones) {
+
+    private static final String CABECERA_CSV =
+            "fecha,hilos,duracion_s,operacion,llamadas,errores,tasa_errores,ops_segundo,p50_ms,p99_ms,p999_ms,max_ms";
+
+    public double opsPorSegundo(MetricasOperacion.Resumen resumen) {
+        return resumen.llamadas() / segundos;
+    }
+
+    public static double tasaErrores(MetricasOperacion.Resumen resumen) {
+        return resumen.llamadas() == 0 ? 0 : (double) resumen.errores() / resumen.llamadas();
+    }
+
+    public long llamadasTotales() {
+        return operaciones.values().stream().mapToLong(MetricasOperacion.Resumen::llamadas).sum();
+    }
+
+    /**
+     * Tabla para la consola
+     */
+    public String texto() {
+        StringBuilder texto = new StringBuilder(String.format(Locale.ROOT,
+                "[=] %d hilos, %.1f s medidos, %.1f ops/s en total%n", configuracion.hilos(), segundos,
+                llamadasTotales() / segundos));
+        texto.append(String.format(Locale.ROOT, "    %-11s %10s %8s %8s %10s %9s %9s %9s %9s%n",
+                "operacion", "llamadas", "errores", "%error", "ops/s", "p50 ms", "p99 ms", "p99.9 ms", "max ms"));
+        operaciones.forEach((operacion, r) -> texto.append(String.format(Locale.ROOT,
+                "    %-11s %10d %8d %7.2f%% %10.1f %9.2f %9.2f %9.2f %9.2f%n", operacion.nombre(), r.llamadas(),
+                r.errores(), tasaErrores(r) * 100, opsPorSegundo(r), r.p50Ms(), r.p99Ms(), r.p999Ms(), r.maxMs())));
+        return texto.toString();
+    }
+
+    /**
+     * Guarda el resultado segun la extension: .json (un fichero por prueba) o CSV (se añade al final, una fila por
+     * operacion, para comparar pruebas de distintos dias)
+     */
+    public void guardar(Path fichero) throws IOException {
+        String fecha = Instant.now().toString();
+        if (fichero.toString().endsWith(".json")) {
+            new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT).writeValue(fichero.toFile(), json(fecha));
+            return;
+        }
+        List<String> lineas = new ArrayList<>();
+        if (!Files.exists(fichero)) {
+            lineas.add(CABECERA_CSV);
+        }
+        operaciones.forEach((operacion, r) -> lineas.add(String.format(Locale.ROOT,
+                "%s,%d,%d,%s,%d,%d,%.5f,%.2f,%.3f,%.3f,%.3f,%.3f", fecha, configuracion.hilos(),
+                configuracion.duracionSegundos(), operacion.nombre(), r.llamadas(), r.errores(), tasaErrores(r),
+                opsPorSegundo(r), r.p50Ms(), r.p99Ms(), r.p999Ms(), r.maxMs())));
+        Files.write(fichero, lineas, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private Map<String, Object> json(String fecha) {
+        Map<String, Object> mezcla = new LinkedHashMap<>();
+        configuracion.mezcla().forEach((operacion, peso) -> mezcla.put(operacion.nombre(), peso));
+        Map<String, Object> config = new LinkedHashMap<>();
+        config.put("hilos", configuracion.hilos());
+        config.put("duracion_s", configuracion.duracionSegundos());
+        config.put("calentamiento_s", configuracion.calentamientoSegundos());
+        config.put("usuarios", configuracion.usuariosIniciales());
+        config.put("mezcla", mezcla);
+
+        Map<String, Object> porOperacion = new LinkedHashMap<>();
+        operaciones.forEach((operacion, r) -> {
+            Map<String, Object> datos = new LinkedHashMap<>();
+            datos.put("llamadas", r.llamadas());
+            datos.put("errores", r.errores());
+            datos.put("tasa_errores", tasaErrores(r));
+            datos.put("ops_segundo", opsPorSegundo(r));
+            datos.put("p50_ms", r.p50Ms());
+            datos.put("p99_ms", r.p99Ms());
+            datos.put("p999_ms", r.p999Ms());
+            datos.put("max_ms", r.maxMs());
+            porOperacion.put(operacion.nombre(), datos);
+        });
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("fecha", fecha);
+        json.put("segundos_medidos", segundos);
+        json.put("configuracion", config);
+        json.put("operaciones", porOperacion);
+        return json;
+    }
+}
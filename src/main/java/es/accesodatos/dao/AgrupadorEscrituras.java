@@ -0,0 +1,246 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import es.accesodatos.metricas.RegistroMetricas;
+import jakarta.persistence.PersistenceException;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Group commit: junta los registros y actualizaciones que llegan a la vez desde muchos hilos y los escribe
+ * en una sola transaccion (INSERT en batch JDBC + un unico commit) en vez de un commit por peticion.
+ * - Un hilo recoge peticiones durante ventana-ms desde la primera, o hasta max-lote, y las ejecuta juntas
+ * - Cada llamada recibe su propio resultado: si el grupo falla (un email duplicado tira toda la transaccion)
+ * se repite fila a fila, asi el error solo le llega a quien lo ha provocado
+ * - Con shards, una transaccion por shard con lo de ese shard
+ * Compensa con mucha concurrencia de escritura, con poca solo añade la espera de la ventana.
+ *
+ * Configuracion: -Dusuarios.agrupar.activo=true, -Dusuarios.agrupar.ventana-ms (2) y
+ * -Dusuarios.agrupar.max-lote (50, como hibernate.jdbc.batch_size)
+ */
+public class AgrupadorEscrituras {
+
+    /**
+     * Foto del agrupador. repetidosFilaAFila: grupos que fallaron juntos y se repitieron uno a uno
+     */
+    public record EstadoAgrupador(long ventanaMs, int maxLote, int enCola, long grupos, long escrituras,
+                                  long repetidosFilaAFila, double tamanoMedio, long tamanoP50, long tamanoMax,
+                                  double esperaP50Ms, double esperaP99Ms, double esperaMaxMs) {
+    }
+
+    private enum Tipo { CREAR, ACTUALIZAR }
+
+    private record Peticion(Tipo tipo, Usuario usuario, CompletableFuture<Usuario> resultado, long encolada) {
+    }
+
+    private static final int COLA_MAXIMA = 10_000;
+    private static final long MAX_MICROS = 60_000_000L; // 1 minuto de espera, lo que pase se apunta como 1 minuto
+
+    private final UsuarioDAO dao;
+    private final long ventanaMs;
+    private final int maxLote;
+    private final BlockingQueue<Peticion> cola = new ArrayBlockingQueue<>(COLA_MAXIMA);
+    private final Thread hilo;
+    private volatile boolean cerrado;
+    private final Histogram tamanos;
+    private final Histogram esperas = new ConcurrentHistogram(MAX_MICROS, 2);
+    private final LongAdder repetidos = new LongAdder();
+
+    public AgrupadorEscrituras(UsuarioDAO dao, long ventanaMs, int maxLote) {
+        if (ventanaMs < 0 || maxLote < 1) {
+            throw new RuntimeException("[!] La ventana no puede ser negativa y el lote tiene que ser de al menos 1");
+        }
+        this.dao = dao;
+        this.ventanaMs = ventanaMs;
+        this.maxLote = maxLote;
+        this.tamanos = new ConcurrentHistogram(Math.max(2, maxLote), 2);
+        this.hilo = new Thread(this::bucle, "agrupador-escrituras");
+        hilo.setDaemon(true);
+        hilo.start();
+    }
+
+    /**
+     * El agrupador configurado con las propiedades de sistema, o null si no esta activado
+     */
+    public static AgrupadorEscrituras desdeSistema(UsuarioDAO dao) {
+        if (!Boolean.getBoolean("usuarios.agrupar.activo")) {
+            return null;
+        }
+        return new AgrupadorEscrituras(dao, Long.getLong("usuarios.agrupar.ventana-ms", 2L),
+                Integer.getInteger("usuarios.agrupar.max-lote", 50));
+    }
+
+    /**
+     * Encola un INSERT. Falla con EmailDuplicadoException si el email ya existe
+     */
+    public CompletableFuture<Usuario> crear(Usuario usuario) {
+        return encolar(Tipo.CREAR, usuario);
+    }
+
+    /**
+     * Encola un merge del usuario. Devuelve la copia gestionada (ya desconectada), como UsuarioDAO.actualizar
+     */
+    public CompletableFuture<Usuario> actualizar(Usuario usuario) {
+        return encolar(Tipo.ACTUALIZAR, usuario);
+    }
+
+    public EstadoAgrupador estado() {
+        Histogram t = tamanos.copy();
+        Histogram e = esperas.copy();
+        return new EstadoAgrupador(ventanaMs, maxLote, cola.size(), t.getTotalCount(), e.getTotalCount(),
+                repetidos.sum(), t.getMean(), t.getValueAtPercentile(50), t.getMaxValue(),
+                e.getValueAtPercentile(50) / 1000.0, e.getValueAtPercentile(99) / 1000.0, e.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Para el hilo. Lo que quede en cola falla, no se escribe
+     */
+    public void cerrar() {
+        cerrado = true;
+        hilo.interrupt();
+        try {
+            hilo.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        fallarPendientes();
+    }
+
+    private CompletableFuture<Usuario> encolar(Tipo tipo, Usuario usuario) {
+        CompletableFuture<Usuario> resultado = new CompletableFuture<>();
+        if (cerrado) {
+            resultado.completeExceptionally(new RuntimeException("[!] El agrupador de escrituras esta cerrado"));
+        } else if (!cola.offer(new Peticion(tipo, usuario, resultado, System.nanoTime()))) {
+            resultado.completeExceptionally(new RuntimeException(
+                    "[!] Demasiadas escrituras en cola (" + COLA_MAXIMA + "), la base de datos no da abasto"));
+        }
+        return resultado;
+    }
+
+    private void bucle() {
+        List<Peticion> grupo = new ArrayList<>(maxLote);
+        while (!cerrado) {
+            try {
+                grupo.add(cola.take());
+                // Lo que ya esta esperando entra sin mas, luego se espera a lo que llegue hasta cerrar la ventana
+                cola.drainTo(grupo, maxLote - grupo.size());
+                long limite = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ventanaMs);
+                while (grupo.size() < maxLote) {
+                    Peticion siguiente = cola.poll(limite - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (siguiente == null) {
+                        break;
+                    }
+                    grupo.add(siguiente);
+                }
+                ejecutar(grupo);
+            } catch (InterruptedException e) {
+                grupo.forEach(this::fallarCerrado);
+                break;
+            } catch (RuntimeException e) {
+                // No deberia pasar (ejecutar ya reparte los errores), pero el hilo no se puede morir
+                grupo.forEach(p -> p.resultado().completeExceptionally(e));
+            } finally {
+                grupo.clear();
+            }
+        }
+    }
+
+    private void ejecutar(List<Peticion> grupo) {
+        long inicio = System.nanoTime();
+        tamanos.recordValue(grupo.size());
+        grupo.forEach(p -> esperas.recordValue(Math.min((inicio - p.encolada()) / 1000, MAX_MICROS)));
+
+        // Una transaccion por base de datos: con shards, si un shard falla lo de los demas ya esta escrito y no se
+        // repite (repetirlo daria EmailDuplicadoException a quien ya se habia registrado bien)
+        Map<UsuarioDAO, List<Peticion>> porBaseDatos = new LinkedHashMap<>();
+        List<Peticion> sueltas = new ArrayList<>();
+        for (Peticion p : grupo) {
+            dao.baseDatosDe(p.usuario()).ifPresentOrElse(
+                    baseDatos -> porBaseDatos.computeIfAbsent(baseDatos, k -> new ArrayList<>()).add(p),
+                    () -> sueltas.add(p));
+        }
+        porBaseDatos.forEach(this::ejecutarEn);
+        unaAUna(sueltas); // las que no son de una sola base de datos: por su lado, cada una con su error
+    }
+
+    private void ejecutarEn(UsuarioDAO baseDatos, List<Peticion> peticiones) {
+        List<Usuario> nuevos = peticiones.stream()
+                .filter(p -> p.tipo() == Tipo.CREAR)
+                .map(Peticion::usuario)
+                .toList();
+        List<Usuario> resultados;
+        try {
+            // Una unidad de trabajo: una conexion, los INSERT en batch y un solo commit para todo el grupo
+            resultados = RegistroMetricas.medir("dao.escribirGrupo", () -> baseDatos.enUnidadDeTrabajo(() -> {
+                baseDatos.crearLote(nuevos);
+                List<Usuario> escritos = new ArrayList<>(peticiones.size());
+                for (Peticion p : peticiones) {
+                    escritos.add(p.tipo() == Tipo.CREAR ? p.usuario() : baseDatos.actualizar(p.usuario()));
+                }
+                return escritos;
+            }));
+        } catch (RuntimeException e) {
+            repetirFilaAFila(peticiones);
+            return;
+        }
+        for (int i = 0; i < peticiones.size(); i++) {
+            peticiones.get(i).resultado().complete(resultados.get(i));
+        }
+    }
+
+    /**
+     * El grupo ha hecho rollback entero: cada peticion en su propia transaccion para saber cual falla
+     */
+    private void repetirFilaAFila(List<Peticion> grupo) {
+        repetidos.increment();
+        grupo.stream().filter(p -> p.tipo() == Tipo.CREAR)
+                .forEach(p -> p.usuario().setId(null)); // el persist del grupo le dio un id que con el rollback no existe
+        unaAUna(grupo);
+    }
+
+    private void unaAUna(List<Peticion> peticiones) {
+        for (Peticion p : peticiones) {
+            Usuario usuario = p.usuario();
+            try {
+                if (p.tipo() == Tipo.CREAR) {
+                    p.resultado().complete(dao.crear(usuario));
+                } else {
+                    p.resultado().complete(actualizarUno(usuario));
+                }
+            } catch (RuntimeException e) {
+                p.resultado().completeExceptionally(e);
+            }
+        }
+    }
+
+    private Usuario actualizarUno(Usuario usuario) {
+        try {
+            return dao.actualizar(usuario);
+        } catch (PersistenceException e) {
+            if (UsuarioDAOBaseDatos.esEmailDuplicado(e)) {
+                throw new EmailDuplicadoException(usuario.getEmail(), e);
+            }
+            throw e;
+        }
+    }
+
+    private void fallarPendientes() {
+        Peticion pendiente;
+        while ((pendiente = cola.poll()) != null) {
+            fallarCerrado(pendiente);
+        }
+    }
+
+    private void fallarCerrado(Peticion peticion) {
+        peticion.resultado().completeExceptionally(new RuntimeException("[!] El agrupador de escrituras esta cerrado"));
+    }
+}
@@ -0,0 +1,24 @@
+package es.accesodatos.dao;
+
+/**
+ * El email ya lo tiene otro usuario (viola la restriccion UNIQUE de la columna email)
+ */
+public class EmailDuplicadoException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String email;
+
+    public EmailDuplicadoException(String email) {
+        this(email, null);
+    }
+
+    public EmailDuplicadoException(String email, Throwable causa) {
+        super("[!] El email '" + email + "' ya esta registrado", causa);
+        this.email = email;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+}
@@ -0,0 +1,240 @@
+package es.accesodatos.dao;
+
+import jakarta.persistence.CacheStoreMode;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.NoResultException;
+import jakarta.persistence.NonUniqueResultException;
+import jakarta.persistence.Persistence;
+import jakarta.persistence.PersistenceException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Reparte las lecturas entre las replicas de solo lectura (round-robin) y deja en el primario todo lo demas:
+ * - Escrituras y unidades de trabajo siempre en el primario (eso lo hace el DAO)
+ * - Leer lo que se acaba de escribir: durante -Dusuarios.replicas.pegado-ms (2000) despues de escribir,
+ *   las lecturas del mismo hilo van al primario, que las replicas pueden ir con retraso
+ * - enPrimario(...) para forzarlo en un trozo de codigo
+ * - Si una replica falla se pasa la lectura a la siguiente (o al primario) y se aparta durante
+ *   -Dusuarios.replicas.cuarentena-segundos (30); despues se vuelve a probar con la siguiente lectura
+ * - Si solo esta ocupada (no da una conexion en su connectionTimeout) esa lectura va al primario, pero la replica
+ *   no se aparta: en un pico apartarla mandaria todas las lecturas al primario
+ * - Una replica que no responde al arrancar no impide arrancar al DAO: empieza apartada y su EMF se vuelve a
+ *   intentar crear pasada la cuarentena
+ *
+ * Las replicas se configuran con -Dusuarios.replicas=url1,url2 (mismo usuario y contraseña que el primario).
+ * Comparten la cache de segundo nivel del primario pero solo leen de ella: si guardasen lo que leen,
+ * una replica con retraso podria meter en la cache datos viejos que luego veria todo el mundo
+ */
+public class EnrutadorReplicas {
+
+    /**
+     * Rutas que se han tomado: lecturas en el primario, cuantas veces una replica ha fallado y se ha ido a otra
+     */
+    public record EstadoReplicas(long lecturasPrimario, long failovers, List<EstadoReplica> replicas) {
+    }
+
+    /**
+     * conexiones es null si la replica todavia no ha arrancado
+     */
+    public record EstadoReplica(String url, boolean sana, long lecturas, long fallos,
+                                LimitadorConexiones.EstadoConexiones conexiones) {
+    }
+
+    private static final class Replica {
+        private final String url;
+        private final Map<String, Object> propiedades;
+        private final ReentrantLock arrancando = new ReentrantLock();
+        private volatile EntityManagerFactory emf; // null mientras no se haya podido crear, ver arrancada
+        private volatile LimitadorConexiones limitador;
+        private final LongAdder lecturas = new LongAdder();
+        private final LongAdder fallos = new LongAdder();
+        private volatile long apartadaHasta; // System.nanoTime(), 0 = sana
+
+        private Replica(String url, Map<String, Object> propiedades) {
+            this.url = url;
+            this.propiedades = propiedades;
+        }
+
+        private boolean sana() {
+            return apartadaHasta == 0 || System.nanoTime() - apartadaHasta >= 0;
+        }
+    }
+
+    private final String unidadPersistencia;
+    private final List<Replica> replicas;
+    private final AtomicInteger siguiente = new AtomicInteger();
+    private final long pegadoNanos;
+    private final long cuarentenaNanos;
+    private final ThreadLocal<Long> ultimaEscritura = new ThreadLocal<>();
+    private final ThreadLocal<Boolean> forzarPrimario = new ThreadLocal<>();
+    private final LongAdder lecturasPrimario = new LongAdder();
+    private final LongAdder failovers = new LongAdder();
+
+    private EnrutadorReplicas(String unidadPersistencia, List<Replica> replicas) {
+        this.unidadPersistencia = unidadPersistencia;
+        this.replicas = replicas;
+        this.pegadoNanos = Long.getLong("usuarios.replicas.pegado-ms", 2000L) * 1_000_000;
+        this.cuarentenaNanos = Long.getLong("usuarios.replicas.cuarentena-segundos", 30L) * 1_000_000_000;
+    }
+
+    /**
+     * Crea una EntityManagerFactory por replica de -Dusuarios.replicas, con la misma unidad de persistencia
+     * que el primario pero sin tocar el esquema y con conexiones de solo lectura. Las que no arrancan se quedan
+     * apartadas (ver arrancada), no hacen fallar el arranque
+     * @param propiedades las del primario (ya con los -D aplicados)
+     */
+    static EnrutadorReplicas desdeSistema(String unidadPersistencia, Map<String, Object> propiedades) {
+        String urls = System.getProperty("usuarios.replicas", "").trim();
+        List<Replica> replicas = new ArrayList<>();
+        if (!urls.isEmpty()) {
+            String[] lista = urls.split(",");
+            for (int i = 0; i < lista.length; i++) {
+                Map<String, Object> deReplica = new HashMap<>(propiedades);
+                deReplica.put("jakarta.persistence.jdbc.url", lista[i].trim());
+                deReplica.put("hibernate.hbm2ddl.auto", "none"); // el esquema lo lleva el primario
+                deReplica.put("hibernate.hikari.poolName", "usuarios-replica-" + (i + 1));
+                deReplica.put("hibernate.hikari.readOnly", "true");
+                replicas.add(new Replica(lista[i].trim(), deReplica));
+            }
+        }
+        EnrutadorReplicas enrutador = new EnrutadorReplicas(unidadPersistencia, List.copyOf(replicas));
+        enrutador.replicas.forEach(enrutador::arrancada);
+        return enrutador;
+    }
+
+    /**
+     * Sin replicas: todo al primario (cada shard, por ejemplo, que -Dusuarios.replicas es de una sola base de datos)
+     */
+    static EnrutadorReplicas ninguna() {
+        return new EnrutadorReplicas(null, List.of());
+    }
+
+    /**
+     * Hace la lectura en una replica sana o, si no hay o toca primario, con enPrimario
+     */
+    <T> T leer(Function<EntityManager, T> lectura, Supplier<T> enPrimario) {
+        if (!replicas.isEmpty() && !tocaPrimario()) {
+            for (int intento = 0; intento < replicas.size(); intento++) {
+                Replica replica = siguienteSana();
+                if (replica == null) {
+                    break;
+                }
+                if (!arrancada(replica)) {
+                    continue;
+                }
+                try {
+                    T resultado = replica.limitador.conPermiso(() -> {
+                        EntityManager em = replica.emf.createEntityManager();
+                        try {
+                            em.setProperty("jakarta.persistence.cache.storeMode", CacheStoreMode.BYPASS);
+                            return lectura.apply(em);
+                        } finally {
+                            em.close();
+                        }
+                    });
+                    replica.lecturas.increment();
+                    return resultado;
+                } catch (SinConexionLibreException e) {
+                    // Ocupada, no caida: esta lectura al primario y la replica sigue en el reparto
+                    failovers.increment();
+                    break;
+                } catch (PersistenceException e) {
+                    if (e instanceof NoResultException || e instanceof NonUniqueResultException) {
+                        throw e; // la consulta esta bien, es la respuesta
+                    }
+                    apartar(replica);
+                    failovers.increment();
+                }
+            }
+        }
+        lecturasPrimario.increment();
+        return enPrimario.get();
+    }
+
+    // Crea la EMF de la replica si aun no la tiene (no arranco o todavia no se ha probado). Si falla, p.ej.
+    // porque Hikari no consigue llenar el pool, se aparta como cualquier fallo. Solo la crea un hilo: mientras,
+    // los demas la saltan
+    private boolean arrancada(Replica replica) {
+        if (replica.emf != null) {
+            return true;
+        }
+        if (!replica.arrancando.tryLock()) {
+            return false;
+        }
+        try {
+            if (replica.emf == null) {
+                EntityManagerFactory emf = Persistence.createEntityManagerFactory(unidadPersistencia, replica.propiedades);
+                replica.limitador = LimitadorConexiones.paraLecturas(emf);
+                replica.emf = emf;
+            }
+            return true;
+        } catch (RuntimeException e) {
+            apartar(replica);
+            return false;
+        } finally {
+            replica.arrancando.unlock();
+        }
+    }
+
+    private void apartar(Replica replica) {
+        replica.fallos.increment();
+        replica.apartadaHasta = System.nanoTime() + cuarentenaNanos;
+    }
+
+    // Round-robin saltando las que estan en cuarentena
+    private Replica siguienteSana() {
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get(Math.floorMod(siguiente.getAndIncrement(), replicas.size()));
+            if (replica.sana()) {
+                return replica;
+            }
+        }
+        return null;
+    }
+
+    private boolean tocaPrimario() {
+        if (Boolean.TRUE.equals(forzarPrimario.get())) {
+            return true;
+        }
+        Long escritura = ultimaEscritura.get();
+        return escritura != null && System.nanoTime() - escritura < pegadoNanos;
+    }
+
+    /**
+     * Apunta que este hilo acaba de escribir: sus lecturas van al primario durante un rato
+     */
+    void escrito() {
+        if (!replicas.isEmpty()) {
+            ultimaEscritura.set(System.nanoTime());
+        }
+    }
+
+    <T> T enPrimario(Supplier<T> trabajo) {
+        if (Boolean.TRUE.equals(forzarPrimario.get())) {
+            return trabajo.get();
+        }
+        forzarPrimario.set(true);
+        try {
+            return trabajo.get();
+        } finally {
+            forzarPrimario.remove();
+        }
+    }
+
+    public EstadoReplicas estado() {
+        return new EstadoReplicas(lecturasPrimario.sum(), failovers.sum(), replicas.stream()
+                .map(r -> new EstadoReplica(r.url, r.sana(), r.lecturas.sum(), r.fallos.sum(),
+                        r.limitador == null ? null : r.limitador.estado()))
+                .toList());
+    }
+
+    void cerrar() {
+        replicas.stream().map(replica -> replica.emf).filter(Objects::nonNull).forEach(EntityManagerFactory::close);
+    }
+}
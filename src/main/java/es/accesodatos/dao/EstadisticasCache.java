@@ -0,0 +1,48 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import org.hibernate.stat.CacheRegionStatistics;
+import org.hibernate.stat.Statistics;
+import java.util.List;
+
+/**
+ * Aciertos/fallos de la cache de segundo nivel de Usuario, para poder dimensionarla
+ * (si el ratio de aciertos es bajo y hay muchas expulsiones, hay que subir usuarios.cache.maximo)
+ */
+public record EstadisticasCache(long aciertosEntidad, long fallosEntidad, long escriturasEntidad,
+                                long aciertosNaturalId, long fallosNaturalId, long escriturasNaturalId) {
+
+    static EstadisticasCache de(Statistics estadisticas) {
+        CacheRegionStatistics entidad = estadisticas.getDomainDataRegionStatistics(Usuario.REGION_CACHE);
+        return new EstadisticasCache(
+                entidad.getHitCount(), entidad.getMissCount(), entidad.getPutCount(),
+                estadisticas.getNaturalIdCacheHitCount(), estadisticas.getNaturalIdCacheMissCount(),
+                estadisticas.getNaturalIdCachePutCount());
+    }
+
+    /**
+     * Las de varias EMF juntas (shards)
+     */
+    static EstadisticasCache sumar(List<EstadisticasCache> todas) {
+        return new EstadisticasCache(
+                todas.stream().mapToLong(EstadisticasCache::aciertosEntidad).sum(),
+                todas.stream().mapToLong(EstadisticasCache::fallosEntidad).sum(),
+                todas.stream().mapToLong(EstadisticasCache::escriturasEntidad).sum(),
+                todas.stream().mapToLong(EstadisticasCache::aciertosNaturalId).sum(),
+                todas.stream().mapToLong(EstadisticasCache::fallosNaturalId).sum(),
+                todas.stream().mapToLong(EstadisticasCache::escriturasNaturalId).sum());
+    }
+
+    public double ratioAciertosEntidad() {
+        return ratio(aciertosEntidad, fallosEntidad);
+    }
+
+    public double ratioAciertosNaturalId() {
+        return ratio(aciertosNaturalId, fallosNaturalId);
+    }
+
+    private static double ratio(long aciertos, long fallos) {
+        long total = aciertos + fallos;
+        return total == 0 ? 0 : (double) aciertos / total;
+    }
+}
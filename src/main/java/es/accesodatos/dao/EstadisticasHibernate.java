@@ -0,0 +1,58 @@
+package es.accesodatos.dao;
+
+import org.hibernate.stat.QueryStatistics;
+import org.hibernate.stat.Statistics;
+import java.util.*;
+
+/**
+ * Lo que cuenta Hibernate desde que arranco (hibernate.generate_statistics=true): consultas, cargas de entidades,
+ * sentencias, transacciones, cache de segundo nivel y las consultas mas lentas
+ * @param consultasLentas las consultas mas lentas (JPQL -> tiempo maximo en ms), de mas a menos lenta
+ */
+public record EstadisticasHibernate(long consultas, long entidadesCargadas, long entidadesInsertadas,
+                                    long entidadesActualizadas, long entidadesBorradas, long sentenciasPreparadas,
+                                    long transacciones, long conexionesPedidas,
+                                    long aciertosCache, long fallosCache,
+                                    Map<String, Long> consultasLentas) {
+
+    private static final int MAX_CONSULTAS_LENTAS = 5;
+
+    static EstadisticasHibernate de(Statistics estadisticas) {
+        Map<String, Long> lentas = new LinkedHashMap<>();
+        Arrays.stream(estadisticas.getQueries())
+                .map(consulta -> Map.entry(consulta, estadisticas.getQueryStatistics(consulta)))
+                .sorted(Comparator.comparingLong((Map.Entry<String, QueryStatistics> e) -> e.getValue().getExecutionMaxTime()).reversed())
+                .limit(MAX_CONSULTAS_LENTAS)
+                .forEach(e -> lentas.put(e.getKey(), e.getValue().getExecutionMaxTime()));
+
+        return new EstadisticasHibernate(
+                estadisticas.getQueryExecutionCount(), estadisticas.getEntityLoadCount(),
+                estadisticas.getEntityInsertCount(), estadisticas.getEntityUpdateCount(), estadisticas.getEntityDeleteCount(),
+                estadisticas.getPrepareStatementCount(), estadisticas.getTransactionCount(), estadisticas.getConnectCount(),
+                estadisticas.getSecondLevelCacheHitCount(), estadisticas.getSecondLevelCacheMissCount(), lentas);
+    }
+
+    /**
+     * Las de varias EMF juntas (shards): contadores sumados y las consultas lentas de todas
+     */
+    static EstadisticasHibernate sumar(List<EstadisticasHibernate> todas) {
+        Map<String, Long> lentas = new HashMap<>();
+        todas.forEach(e -> e.consultasLentas().forEach((consulta, ms) -> lentas.merge(consulta, ms, Math::max)));
+        Map<String, Long> masLentas = new LinkedHashMap<>();
+        lentas.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed())
+                .limit(MAX_CONSULTAS_LENTAS)
+                .forEach(e -> masLentas.put(e.getKey(), e.getValue()));
+        return new EstadisticasHibernate(
+                todas.stream().mapToLong(EstadisticasHibernate::consultas).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::entidadesCargadas).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::entidadesInsertadas).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::entidadesActualizadas).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::entidadesBorradas).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::sentenciasPreparadas).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::transacciones).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::conexionesPedidas).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::aciertosCache).sum(),
+                todas.stream().mapToLong(EstadisticasHibernate::fallosCache).sum(), masLentas);
+    }
+}
@@ -0,0 +1,193 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.util.FiltroBloom;
+import java.text.Normalizer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Filtro de Bloom con los emails de la tabla, delante de MySQL: si dice que un email no existe, no existe,
+ * y el DAO contesta sin consulta (registros nuevos, logins con emails mal escritos o de bots...).
+ * - Se carga en segundo plano al arrancar leyendo la columna email en streaming. Hasta entonces todo "puede existir"
+ * - Los emails se agregan ANTES de escribirlos en la tabla, asi nunca hay un momento en que exista y el filtro diga que no
+ * - Lo borrado no se puede quitar de un filtro de Bloom: se reconstruye entero cada cierto tiempo
+ * [!] Solo es correcto si este proceso es el unico que escribe en la tabla: lo que inserte otro nodo no lo ve hasta
+ * la siguiente reconstruccion (y ese usuario no podria entrar). Por eso va apagado: -Dusuarios.filtro.activo=true
+ * solo con un unico escritor
+ *
+ * Configuracion: -Dusuarios.filtro.fpp (probabilidad de falso positivo, 0.01) y
+ * -Dusuarios.filtro.reconstruir-minutos (60)
+ */
+public class FiltroEmails {
+
+    /**
+     * Foto del filtro. consultas/descartados: cuantas busquedas han pasado por el y cuantas se ha ahorrado
+     */
+    public record EstadoFiltro(boolean listo, long capacidad, long bytes, int funcionesHash,
+                               double fppObjetivo, double fppActual, long consultas, long descartados,
+                               long reconstrucciones, long fallosReconstruccion, long msUltimaReconstruccion) {
+
+        /**
+         * Los filtros de varios shards juntos: tamaños y contadores sumados, la peor fpp
+         */
+        static EstadoFiltro sumar(List<EstadoFiltro> todos) {
+            return new EstadoFiltro(todos.stream().allMatch(EstadoFiltro::listo),
+                    todos.stream().mapToLong(EstadoFiltro::capacidad).sum(),
+                    todos.stream().mapToLong(EstadoFiltro::bytes).sum(),
+                    todos.stream().mapToInt(EstadoFiltro::funcionesHash).max().orElse(0),
+                    todos.stream().mapToDouble(EstadoFiltro::fppObjetivo).max().orElse(0),
+                    todos.stream().mapToDouble(EstadoFiltro::fppActual).max().orElse(0),
+                    todos.stream().mapToLong(EstadoFiltro::consultas).sum(),
+                    todos.stream().mapToLong(EstadoFiltro::descartados).sum(),
+                    todos.stream().mapToLong(EstadoFiltro::reconstrucciones).sum(),
+                    todos.stream().mapToLong(EstadoFiltro::fallosReconstruccion).sum(),
+                    todos.stream().mapToLong(EstadoFiltro::msUltimaReconstruccion).max().orElse(0));
+        }
+    }
+
+    private static final long CAPACIDAD_MINIMA = 10_000;
+    private static final Pattern ACENTOS = Pattern.compile("\\p{M}");
+
+    private final Supplier<Stream<String>> emails;
+    private final LongSupplier contarUsuarios;
+    private final boolean activo;
+    private final double fpp;
+    private final ScheduledExecutorService reconstructor;
+    // Agregar va con el cerrojo de lectura (pueden varios a la vez), cambiar de filtro con el de escritura
+    private final ReentrantReadWriteLock cambio = new ReentrantReadWriteLock();
+    private volatile FiltroBloom filtro; // null hasta la primera carga
+    private Set<String> recientes = ConcurrentHashMap.newKeySet(); // agregados desde el ultimo cambio de filtro
+    private final LongAdder consultas = new LongAdder();
+    private final LongAdder descartados = new LongAdder();
+    private final LongAdder reconstrucciones = new LongAdder();
+    private final LongAdder fallos = new LongAdder();
+    private volatile long msUltimaReconstruccion;
+
+    /**
+     * @param emails stream con todos los emails de la tabla (se cierra al acabar cada carga)
+     * @param contarUsuarios numero de filas, para dimensionar el filtro
+     */
+    FiltroEmails(Supplier<Stream<String>> emails, LongSupplier contarUsuarios) {
+        this.emails = emails;
+        this.contarUsuarios = contarUsuarios;
+        this.activo = Boolean.parseBoolean(System.getProperty("usuarios.filtro.activo", "false"));
+        this.fpp = Double.parseDouble(System.getProperty("usuarios.filtro.fpp", "0.01"));
+        if (!activo) {
+            this.reconstructor = null;
+            return;
+        }
+        long minutos = Long.getLong("usuarios.filtro.reconstruir-minutos", 60L);
+        this.reconstructor = Executors.newSingleThreadScheduledExecutor(tarea -> {
+            Thread hilo = new Thread(tarea, "filtro-emails");
+            hilo.setDaemon(true);
+            return hilo;
+        });
+        reconstructor.scheduleWithFixedDelay(this::reconstruirSinFallar, 0, minutos, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @return false si el email seguro que no esta en la tabla, true si puede estar (hay que preguntar a MySQL)
+     */
+    boolean puedeExistir(String email) {
+        FiltroBloom actual = filtro;
+        if (actual == null) {
+            return true;
+        }
+        consultas.increment();
+        boolean puede = actual.puedeContener(normalizar(email));
+        if (!puede) {
+            descartados.increment();
+        }
+        return puede;
+    }
+
+    /**
+     * Llamar antes de insertar o cambiar un email (si luego falla la escritura solo queda un falso positivo)
+     */
+    void agregar(String email) {
+        if (!activo || email == null) {
+            return;
+        }
+        String clave = normalizar(email);
+        cambio.readLock().lock();
+        try {
+            FiltroBloom actual = filtro;
+            if (actual != null) {
+                actual.agregar(clave);
+            }
+            recientes.add(clave); // por si la reconstruccion en marcha ya ha pasado por su fila
+        } finally {
+            cambio.readLock().unlock();
+        }
+    }
+
+    /**
+     * Construye un filtro nuevo con los emails que hay ahora en la tabla y lo cambia por el actual.
+     * Lo agregado mientras tanto (o poco antes de empezar, con la escritura sin confirmar todavia) se pasa al nuevo
+     */
+    public void reconstruir() {
+        long inicio = System.nanoTime();
+        // Holgura x2 para lo que se registre hasta la siguiente reconstruccion
+        FiltroBloom nuevo = new FiltroBloom(Math.max(CAPACIDAD_MINIMA, contarUsuarios.getAsLong() * 2), fpp);
+        try (Stream<String> todos = emails.get()) {
+            todos.forEach(email -> nuevo.agregar(normalizar(email)));
+        }
+        cambio.writeLock().lock();
+        try {
+            recientes.forEach(nuevo::agregar);
+            recientes = ConcurrentHashMap.newKeySet();
+            filtro = nuevo;
+        } finally {
+            cambio.writeLock().unlock();
+        }
+        reconstrucciones.increment();
+        msUltimaReconstruccion = (System.nanoTime() - inicio) / 1_000_000;
+    }
+
+    // Si una reconstruccion falla se sigue con el filtro que habia (el programado no se puede caer)
+    private void reconstruirSinFallar() {
+        try {
+            reconstruir();
+        } catch (RuntimeException e) {
+            fallos.increment();
+        }
+    }
+
+    /**
+     * MySQL compara los emails sin distinguir mayusculas ni acentos (collation _ci/_ai): el filtro tiene que
+     * tratar igual "Ana@x.com" y "ana@x.com", si no diria que no existe uno que si. Lo mismo quien compare emails
+     * en memoria con los de la tabla (la importacion)
+     */
+    public static String normalizar(String email) {
+        String sinAcentos = ACENTOS.matcher(Normalizer.normalize(email, Normalizer.Form.NFD)).replaceAll("");
+        return sinAcentos.toLowerCase(Locale.ROOT);
+    }
+
+    public EstadoFiltro estado() {
+        FiltroBloom actual = filtro;
+        if (actual == null) {
+            return new EstadoFiltro(false, 0, 0, 0, fpp, 0, consultas.sum(), descartados.sum(),
+                    reconstrucciones.sum(), fallos.sum(), msUltimaReconstruccion);
+        }
+        return new EstadoFiltro(true, actual.capacidad(), actual.bytes(), actual.funcionesHash(), fpp,
+                actual.probabilidadFalsoPositivoActual(), consultas.sum(), descartados.sum(),
+                reconstrucciones.sum(), fallos.sum(), msUltimaReconstruccion);
+    }
+
+    void cerrar() {
+        if (reconstructor != null) {
+            reconstructor.shutdownNow();
+        }
+    }
+}
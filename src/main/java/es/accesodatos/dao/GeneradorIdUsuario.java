@@ -0,0 +1,26 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import org.hibernate.engine.spi.SharedSessionContractImplementor;
+import org.hibernate.id.enhanced.SequenceStyleGenerator;
+
+/**
+ * Ids de Usuario con la cubeta del email dentro: id = valor de usuarios_seq * CUBETAS + cubeta (ver MapaShards).
+ * La secuencia y su reserva de 50 en 50 son las de siempre, solo cambia el numero que se guarda.
+ * Con sharding, el id dice en que shard esta el usuario sin tener que preguntar a todos
+ */
+public class GeneradorIdUsuario extends SequenceStyleGenerator {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Object generate(SharedSessionContractImplementor session, Object objeto) {
+        long secuencia = ((Number) super.generate(session, objeto)).longValue();
+        return MapaShards.id(secuencia, MapaShards.cubeta(((Usuario) objeto).getEmail()));
+    }
+
+    @Override
+    public boolean supportsBulkInsertionIdentifierGeneration() {
+        return false; // un INSERT ... SELECT de HQL usaria la secuencia tal cual, sin la cubeta
+    }
+}
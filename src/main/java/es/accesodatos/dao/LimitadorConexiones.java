@@ -0,0 +1,119 @@
+package es.accesodatos.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Limita cuantos hilos usan la base de datos a la vez al tamaño del pool de conexiones.
+ * Con hilos virtuales puede haber miles de peticiones en vuelo: sin esto se amontonarian todas dentro de Hikari
+ * y fallarian al pasar su connectionTimeout. Con el semaforo esperan aqui, aparcadas sin ocupar un hilo del sistema,
+ * y la espera maxima es la misma (connectionTimeout)
+ */
+public class LimitadorConexiones {
+
+    /**
+     * Foto del limitador: permisos totales (= conexiones del pool), libres y hilos esperando
+     */
+    public record EstadoConexiones(int maximo, int libres, int esperando) {
+
+        /**
+         * Los de varios limitadores juntos (shards)
+         */
+        static EstadoConexiones sumar(List<EstadoConexiones> todos) {
+            return new EstadoConexiones(
+                    (int) Math.min(Integer.MAX_VALUE, todos.stream().mapToLong(EstadoConexiones::maximo).sum()),
+                    (int) Math.min(Integer.MAX_VALUE, todos.stream().mapToLong(EstadoConexiones::libres).sum()),
+                    todos.stream().mapToInt(EstadoConexiones::esperando).sum());
+        }
+    }
+
+    private static final long ESPERA_POR_DEFECTO_MS = 30_000; // connectionTimeout por defecto de Hikari
+
+    private final Semaphore permisos;
+    private final int maximo;
+    private final long esperaMaximaMs;
+
+    LimitadorConexiones(int maximo, long esperaMaximaMs) {
+        this.permisos = new Semaphore(maximo);
+        this.maximo = maximo;
+        this.esperaMaximaMs = esperaMaximaMs;
+    }
+
+    /**
+     * Limitador del tamaño del pool de Hikari de esta EMF. Si no usa Hikari no limita nada.
+     * Sin secuencias de verdad (MySQL) se deja una conexion fuera: la reserva de ids de GeneradorIdUsuario va a la
+     * tabla usuarios_seq con otra conexion mientras el que inserta sigue con la suya. Si todas estuvieran en manos
+     * de los que insertan, la reserva esperaria connectionTimeout y el INSERT fallaria. Con una basta, Hibernate
+     * rellena la reserva de un hilo en un hilo
+     */
+    static LimitadorConexiones para(EntityManagerFactory emf) {
+        return para(emf, true);
+    }
+
+    /**
+     * Para una base de datos en la que no se inserta (replicas): todas las conexiones del pool
+     */
+    static LimitadorConexiones paraLecturas(EntityManagerFactory emf) {
+        return para(emf, false);
+    }
+
+    private static LimitadorConexiones para(EntityManagerFactory emf, boolean inserta) {
+        HikariDataSource hikari = MetricasPool.hikari(emf);
+        if (hikari == null) {
+            return new LimitadorConexiones(Integer.MAX_VALUE, ESPERA_POR_DEFECTO_MS);
+        }
+        int maximo = hikari.getMaximumPoolSize();
+        if (inserta && !secuenciasNativas(emf)) {
+            if (maximo < 2) {
+                throw new RuntimeException("[!] hibernate.hikari.maximumPoolSize tiene que ser al menos 2: sin secuencias"
+                        + " (MySQL) los ids se reservan con una conexion aparte");
+            }
+            maximo--;
+        }
+        return new LimitadorConexiones(maximo, hikari.getConnectionTimeout());
+    }
+
+    private static boolean secuenciasNativas(EntityManagerFactory emf) {
+        return emf.unwrap(SessionFactoryImplementor.class).getJdbcServices().getDialect()
+                .getSequenceSupport().supportsSequences();
+    }
+
+    /**
+     * Ejecuta el trabajo con un permiso (una conexion reservada) y lo devuelve al acabar
+     */
+    <T> T conPermiso(Supplier<T> trabajo) {
+        adquirir();
+        try {
+            return trabajo.get();
+        } finally {
+            liberar();
+        }
+    }
+
+    /**
+     * Para lo que no acaba al volver del metodo (streams): quien adquiere tiene que llamar a liberar()
+     */
+    void adquirir() {
+        try {
+            if (!permisos.tryAcquire(esperaMaximaMs, TimeUnit.MILLISECONDS)) {
+                throw new SinConexionLibreException(esperaMaximaMs);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("[!] Interrumpido esperando una conexion", e);
+        }
+    }
+
+    void liberar() {
+        permisos.release();
+    }
+
+    public EstadoConexiones estado() {
+        return new EstadoConexiones(maximo, permisos.availablePermits(), permisos.getQueueLength());
+    }
+}
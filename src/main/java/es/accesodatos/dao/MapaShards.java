@@ -0,0 +1,186 @@
+package es.accesodatos.dao;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Que usuarios van a que base de datos (shard). Los emails se reparten por hash en CUBETAS cubetas fijas
+ * y cada cubeta vive en un shard: para añadir shards se mueven cubetas enteras, el hash no cambia.
+ * La cubeta va dentro del id (id = secuencia * CUBETAS + cubeta, ver GeneradorIdUsuario), asi que por id
+ * tambien se sabe el shard sin preguntar a todos.
+ *
+ * El mapa se guarda en un fichero (una linea por shard con sus cubetas). Sin fichero cada cubeta va al
+ * shard cubeta % numero de shards
+ */
+public class MapaShards {
+
+    public static final int CUBETAS = 1024;
+
+    private final int[] shardDeCubeta;
+    private final int numShards;
+
+    private MapaShards(int[] shardDeCubeta, int numShards) {
+        this.shardDeCubeta = shardDeCubeta;
+        this.numShards = numShards;
+    }
+
+    /**
+     * Cubeta de un email. Normalizado igual que compara MySQL (sin mayusculas ni acentos): "Ana@x.com" y
+     * "ana@x.com" son el mismo email y tienen que caer en el mismo shard, si no la restriccion UNIQUE no los ve
+     */
+    public static int cubeta(String email) {
+        if (email == null) {
+            return 0; // el INSERT fallara igual por la columna NOT NULL
+        }
+        // FNV-1a de 64 bits y una mezcla final para que los bits bajos tambien dependan de todo el email
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : FiltroEmails.normalizar(email).getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 32;
+        hash ^= hash >>> 16;
+        return (int) Math.floorMod(hash, (long) CUBETAS);
+    }
+
+    public static int cubetaDeId(long id) {
+        return (int) Math.floorMod(id, (long) CUBETAS);
+    }
+
+    /**
+     * Id de un usuario: el numero de la secuencia con la cubeta de su email en los bits bajos
+     */
+    public static long id(long secuencia, int cubeta) {
+        return secuencia * CUBETAS + cubeta;
+    }
+
+    public static long secuenciaDeId(long id) {
+        return Math.floorDiv(id, (long) CUBETAS);
+    }
+
+    /**
+     * Reparto sin fichero: cubeta % numShards
+     */
+    public static MapaShards porDefecto(int numShards) {
+        if (numShards < 1) {
+            throw new RuntimeException("[!] Tiene que haber al menos un shard");
+        }
+        int[] mapa = new int[CUBETAS];
+        for (int cubeta = 0; cubeta < CUBETAS; cubeta++) {
+            mapa[cubeta] = cubeta % numShards;
+        }
+        return new MapaShards(mapa, numShards);
+    }
+
+    /**
+     * Lee el mapa del fichero, o el de por defecto si no existe
+     * @param numShards shards configurados: el fichero no puede mandar cubetas a uno que no exista
+     */
+    public static MapaShards cargar(Path fichero, int numShards) {
+        if (!Files.exists(fichero)) {
+            return porDefecto(numShards);
+        }
+        Properties propiedades = new Properties();
+        try (Reader lector = Files.newBufferedReader(fichero, StandardCharsets.UTF_8)) {
+            propiedades.load(lector);
+        } catch (IOException e) {
+            throw new RuntimeException("[!] No se pudo leer el mapa de shards " + fichero + ": " + e.getMessage(), e);
+        }
+        int[] mapa = new int[CUBETAS];
+        Arrays.fill(mapa, -1);
+        int maximo = -1;
+        for (String clave : propiedades.stringPropertyNames()) {
+            int shard = Integer.parseInt(clave.substring("shard.".length()));
+            maximo = Math.max(maximo, shard);
+            for (String cubeta : propiedades.getProperty(clave).split(",")) {
+                if (!cubeta.isBlank()) {
+                    mapa[Integer.parseInt(cubeta.trim())] = shard;
+                }
+            }
+        }
+        if (Arrays.stream(mapa).anyMatch(shard -> shard < 0)) {
+            throw new RuntimeException("[!] El mapa de shards " + fichero + " no tiene todas las cubetas");
+        }
+        if (maximo >= numShards) {
+            throw new RuntimeException("[!] El mapa de shards " + fichero + " usa el shard " + maximo
+                    + " pero solo hay " + numShards + " (¿falta una url en usuarios.shards?)");
+        }
+        return new MapaShards(mapa, numShards);
+    }
+
+    public void guardar(Path fichero) {
+        try (Writer escritor = Files.newBufferedWriter(fichero, StandardCharsets.UTF_8)) {
+            escritor.write("# cubeta -> shard, lo escribe Main --rebalancear. No editar a mano\n");
+            for (int shard = 0; shard < numShards; shard++) {
+                escritor.write("shard." + shard + "=" + cubetasDe(shard).stream()
+                        .map(String::valueOf).collect(Collectors.joining(",")) + "\n");
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("[!] No se pudo guardar el mapa de shards " + fichero + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * El mapa para otro numero de shards moviendo las menos cubetas posibles: los que tienen de mas
+     * sueltan cubetas y se las quedan los que tienen de menos (los nuevos empiezan sin ninguna)
+     */
+    public MapaShards rebalanceado(int nuevosShards) {
+        if (nuevosShards < 1) {
+            throw new RuntimeException("[!] Tiene que haber al menos un shard");
+        }
+        int[] mapa = shardDeCubeta.clone();
+        int[] objetivo = new int[nuevosShards];
+        for (int shard = 0; shard < nuevosShards; shard++) {
+            objetivo[shard] = CUBETAS / nuevosShards + (shard < CUBETAS % nuevosShards ? 1 : 0);
+        }
+        int[] tiene = new int[nuevosShards];
+        Deque<Integer> sueltas = new ArrayDeque<>();
+        for (int cubeta = CUBETAS - 1; cubeta >= 0; cubeta--) {
+            int shard = mapa[cubeta];
+            if (shard < nuevosShards && tiene[shard] < objetivo[shard]) {
+                tiene[shard]++;
+            } else {
+                sueltas.push(cubeta); // su shard desaparece o le sobran
+            }
+        }
+        for (int shard = 0; shard < nuevosShards; shard++) {
+            while (tiene[shard] < objetivo[shard]) {
+                mapa[sueltas.pop()] = shard;
+                tiene[shard]++;
+            }
+        }
+        return new MapaShards(mapa, nuevosShards);
+    }
+
+    public int shardDeEmail(String email) {
+        return shardDeCubeta[cubeta(email)];
+    }
+
+    public int shardDeId(long id) {
+        return shardDeCubeta[cubetaDeId(id)];
+    }
+
+    public int shardDeCubeta(int cubeta) {
+        return shardDeCubeta[cubeta];
+    }
+
+    public int numShards() {
+        return numShards;
+    }
+
+    public List<Integer> cubetasDe(int shard) {
+        List<Integer> cubetas = new ArrayList<>();
+        for (int cubeta = 0; cubeta < CUBETAS; cubeta++) {
+            if (shardDeCubeta[cubeta] == shard) {
+                cubetas.add(cubeta);
+            }
+        }
+        return cubetas;
+    }
+}
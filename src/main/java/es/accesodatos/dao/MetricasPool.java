@@ -0,0 +1,103 @@
+package es.accesodatos.dao;
+
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import jakarta.persistence.EntityManagerFactory;
+import org.hibernate.engine.jdbc.connections.spi.ConnectionProvider;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metricas del pool de conexiones HikariCP: conexiones activas, libres, hilos esperando
+ * y cuanto se tarda en conseguir una conexion del pool (latencia de adquisicion)
+ */
+public class MetricasPool implements MetricsTrackerFactory {
+
+    /**
+     * Foto del pool en un momento dado
+     */
+    public record EstadoPool(int activas, int inactivas, int pendientes, int total,
+                             long adquisiciones, double latenciaMediaMs, double latenciaMaxMs, long timeouts) {
+
+        /**
+         * Los de varios pools juntos (shards). La latencia media es la de todas las adquisiciones
+         */
+        static EstadoPool sumar(List<EstadoPool> todos) {
+            long adquisiciones = todos.stream().mapToLong(EstadoPool::adquisiciones).sum();
+            double msTotales = todos.stream().mapToDouble(e -> e.latenciaMediaMs() * e.adquisiciones()).sum();
+            return new EstadoPool(todos.stream().mapToInt(EstadoPool::activas).sum(),
+                    todos.stream().mapToInt(EstadoPool::inactivas).sum(),
+                    todos.stream().mapToInt(EstadoPool::pendientes).sum(),
+                    todos.stream().mapToInt(EstadoPool::total).sum(),
+                    adquisiciones, adquisiciones == 0 ? 0 : msTotales / adquisiciones,
+                    todos.stream().mapToDouble(EstadoPool::latenciaMaxMs).max().orElse(0),
+                    todos.stream().mapToLong(EstadoPool::timeouts).sum());
+        }
+    }
+
+    private final LongAdder adquisiciones = new LongAdder();
+    private final LongAdder nanosAdquisicion = new LongAdder();
+    private final AtomicLong maxNanosAdquisicion = new AtomicLong();
+    private final LongAdder timeouts = new LongAdder();
+    private HikariPoolMXBean pool;
+
+    private MetricasPool() {
+    }
+
+    /**
+     * Engancha las metricas al pool de Hikari que ha creado Hibernate para esta EntityManagerFactory
+     * @return las metricas, o null si la EMF no esta usando Hikari (por ejemplo si se ha sobrescrito el provider)
+     */
+    public static MetricasPool registrar(EntityManagerFactory emf) {
+        HikariDataSource dataSource = hikari(emf);
+        if (dataSource == null) {
+            return null;
+        }
+        MetricasPool metricas = new MetricasPool();
+        dataSource.setMetricsTrackerFactory(metricas); // se puede poner con el pool ya arrancado (solo una vez)
+        metricas.pool = dataSource.getHikariPoolMXBean();
+        return metricas;
+    }
+
+    /**
+     * @return el pool de Hikari que ha creado Hibernate para esta EntityManagerFactory, o null si no usa Hikari
+     */
+    static HikariDataSource hikari(EntityManagerFactory emf) {
+        ConnectionProvider provider = emf.unwrap(SessionFactoryImplementor.class)
+                .getServiceRegistry().getService(ConnectionProvider.class);
+        if (provider == null || !provider.isUnwrappableAs(HikariDataSource.class)) {
+            return null;
+        }
+        return provider.unwrap(HikariDataSource.class);
+    }
+
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                adquisiciones.increment();
+                nanosAdquisicion.add(elapsedAcquiredNanos);
+                maxNanosAdquisicion.accumulateAndGet(elapsedAcquiredNanos, Math::max);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+        };
+    }
+
+    public EstadoPool estado() {
+        long total = adquisiciones.sum();
+        double mediaMs = total == 0 ? 0 : nanosAdquisicion.sum() / (double) total / 1_000_000;
+        return new EstadoPool(pool.getActiveConnections(), pool.getIdleConnections(),
+                pool.getThreadsAwaitingConnection(), pool.getTotalConnections(),
+                total, mediaMs, maxNanosAdquisicion.get() / 1_000_000.0, timeouts.sum());
+    }
+}
@@ -0,0 +1,101 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Herramienta para añadir shards (Main --rebalancear): calcula el mapa nuevo moviendo las menos cubetas posibles,
+ * pasa los usuarios de esas cubetas a su shard nuevo por lotes (copia y luego borra del viejo), sube las
+ * secuencias y guarda el mapa. Los ids no cambian, la cubeta de cada usuario tampoco.
+ * [!] Sin la aplicacion arrancada: mientras se mueven las cubetas el mapa del fichero es todavia el viejo.
+ * Si se corta se vuelve a lanzar igual y sigue (la copia sobrescribe lo que ya estuviera copiado)
+ */
+public class RebalanceadorShards {
+
+    /**
+     * Lo que ha hecho un rebalanceo
+     */
+    public record ResultadoRebalanceo(int shardsAntes, int shardsDespues, int cubetasMovidas,
+                                      long usuariosMovidos, long milisegundos) {
+
+        public double usuariosPorSegundo() {
+            return milisegundos == 0 ? 0 : usuariosMovidos * 1000.0 / milisegundos;
+        }
+    }
+
+    private static final int LOTE = 500;
+    // Dos reservas de 50 (increment_size de usuarios_seq): da igual como reparta los numeros el optimizador pooled
+    private static final long MARGEN_SECUENCIA = 100;
+
+    private RebalanceadorShards() {
+    }
+
+    /**
+     * Rebalancea los shards de -Dusuarios.shards con el mapa de -Dusuarios.shards.mapa
+     * @param shardsAntes cuantos shards habia, solo hace falta si todavia no hay fichero de mapa (0 si no se sabe)
+     */
+    public static ResultadoRebalanceo rebalancear(int shardsAntes) {
+        List<String> urls = UsuarioDAOShards.urlsDeSistema();
+        if (urls.isEmpty()) {
+            throw new RuntimeException("[!] No hay shards configurados (-Dusuarios.shards=url1,url2,...)");
+        }
+        Path fichero = UsuarioDAOShards.ficheroMapa();
+        MapaShards antes;
+        if (Files.exists(fichero)) {
+            antes = MapaShards.cargar(fichero, urls.size());
+        } else if (shardsAntes <= 0) {
+            throw new RuntimeException("[!] No existe el mapa de shards " + fichero
+                    + ": indica cuantos shards habia con --antes=N");
+        } else if (shardsAntes > urls.size()) {
+            throw new RuntimeException("[!] Solo se pueden añadir shards: habia " + shardsAntes + " y hay " + urls.size() + " urls");
+        } else {
+            antes = MapaShards.porDefecto(shardsAntes);
+        }
+        MapaShards despues = antes.rebalanceado(urls.size());
+
+        long inicio = System.nanoTime();
+        List<UsuarioDAOBaseDatos> shards = UsuarioDAOShards.crearShards(urls, UsuarioDAOBaseDatos.propiedadesDeSistema());
+        try {
+            int cubetasMovidas = 0;
+            long usuariosMovidos = 0;
+            for (int origen = 0; origen < urls.size(); origen++) {
+                for (int destino = 0; destino < urls.size(); destino++) {
+                    List<Integer> cubetas = new ArrayList<>();
+                    for (int cubeta = 0; cubeta < MapaShards.CUBETAS; cubeta++) {
+                        if (antes.shardDeCubeta(cubeta) == origen && despues.shardDeCubeta(cubeta) == destino && origen != destino) {
+                            cubetas.add(cubeta);
+                        }
+                    }
+                    if (!cubetas.isEmpty()) {
+                        cubetasMovidas += cubetas.size();
+                        usuariosMovidos += mover(shards.get(origen), shards.get(destino), cubetas);
+                    }
+                }
+            }
+            long maximaSecuencia = shards.stream().mapToLong(UsuarioDAOBaseDatos::maxSecuenciaUsada).max().orElse(0);
+            shards.forEach(shard -> shard.avanzarSecuencia(maximaSecuencia + MARGEN_SECUENCIA));
+            despues.guardar(fichero); // lo ultimo: hasta aqui la aplicacion seguiria usando el mapa viejo
+            return new ResultadoRebalanceo(antes.numShards(), despues.numShards(), cubetasMovidas, usuariosMovidos,
+                    (System.nanoTime() - inicio) / 1_000_000);
+        } finally {
+            shards.forEach(UsuarioDAO::cerrar);
+        }
+    }
+
+    // Copia y borra de LOTE en LOTE por orden de id. Cada lote son dos transacciones (una en cada shard)
+    private static long mover(UsuarioDAOBaseDatos origen, UsuarioDAOBaseDatos destino, List<Integer> cubetas) {
+        long movidos = 0;
+        long ultimoId = 0;
+        List<Usuario> lote;
+        while (!(lote = origen.leerCubetas(cubetas, ultimoId, LOTE)).isEmpty()) {
+            destino.copiar(lote);
+            origen.eliminarIds(lote.stream().map(Usuario::getId).toList());
+            ultimoId = lote.get(lote.size() - 1).getId();
+            movidos += lote.size();
+        }
+        return movidos;
+    }
+}
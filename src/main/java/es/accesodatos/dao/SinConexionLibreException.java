@@ -0,0 +1,13 @@
+package es.accesodatos.dao;
+
+/**
+ * Ninguna conexion del pool se ha quedado libre en connectionTimeout (LimitadorConexiones)
+ */
+public class SinConexionLibreException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public SinConexionLibreException(long esperaMs) {
+        super("[!] No hay conexiones libres despues de " + esperaMs + " ms");
+    }
+}
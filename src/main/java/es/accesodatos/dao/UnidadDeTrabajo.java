@@ -0,0 +1,159 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.metricas.RegistroMetricas;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Unidad de trabajo: un EntityManager y una transaccion para toda una operacion de negocio
+ * Mientras esta abierta, todas las llamadas al DAO desde el mismo hilo usan ese EntityManager (misma conexion,
+ * misma cache de primer nivel) y se hace un unico commit al final. Si algo falla se hace rollback de todo.
+ * Sin unidad de trabajo cada metodo del DAO abre y cierra el suyo, como siempre.
+ * Una por EntityManagerFactory: con shards un hilo puede tener abierta una en cada base de datos a la vez.
+ * Repartida (ejecutarRepartida): la de los shards. Cada base de datos entra la primera vez que se usa
+ * (unirse) y al final se hace un commit en cada una de las que se han tocado, no en todas
+ */
+public class UnidadDeTrabajo {
+
+    private static final ThreadLocal<Map<EntityManagerFactory, EntityManager>> ACTUALES = new ThreadLocal<>();
+    // Las bases de datos que se han unido a la repartida abierta en este hilo, en el orden en que lo han hecho
+    private static final ThreadLocal<List<Unida>> REPARTIDA = new ThreadLocal<>();
+
+    private record Unida(EntityManagerFactory emf, EntityManager em, Runnable liberar) {
+    }
+
+    private UnidadDeTrabajo() {
+    }
+
+    /**
+     * Ejecuta el trabajo dentro de una unidad de trabajo. Si ya hay una abierta en este hilo se une a ella
+     * (el commit lo hace la de fuera)
+     */
+    static <T> T ejecutar(EntityManagerFactory emf, Supplier<T> trabajo) {
+        if (actual(emf) != null) {
+            return trabajo.get();
+        }
+        EntityManager em = emf.createEntityManager();
+        registrar(emf, em);
+        try {
+            em.getTransaction().begin();
+            T resultado = trabajo.get();
+            RegistroMetricas.medir("dao.commit", () -> em.getTransaction().commit());
+            return resultado;
+        } catch (RuntimeException e) {
+            deshacer(em);
+            throw e;
+        } finally {
+            quitar(emf);
+            em.close();
+        }
+    }
+
+    /**
+     * Ejecuta el trabajo en una unidad de trabajo repartida: no abre nada hasta que una base de datos se une
+     * (unirse). Al acabar, un commit en cada una por orden; si uno falla se hace rollback de las que quedan,
+     * pero las anteriores ya estan hechas (no es atomica entre bases de datos)
+     */
+    static <T> T ejecutarRepartida(Supplier<T> trabajo) {
+        if (REPARTIDA.get() != null) {
+            return trabajo.get();
+        }
+        List<Unida> unidas = new ArrayList<>();
+        REPARTIDA.set(unidas);
+        try {
+            T resultado = trabajo.get();
+            for (Unida unida : unidas) {
+                RegistroMetricas.medir("dao.commit", () -> unida.em().getTransaction().commit());
+            }
+            return resultado;
+        } catch (RuntimeException e) {
+            unidas.forEach(unida -> deshacer(unida.em()));
+            throw e;
+        } finally {
+            REPARTIDA.remove();
+            for (Unida unida : unidas) {
+                quitar(unida.emf());
+                try {
+                    unida.em().close();
+                } finally {
+                    unida.liberar().run();
+                }
+            }
+        }
+    }
+
+    /**
+     * ¿Hay una repartida abierta en este hilo a la que se pueda unir una base de datos?
+     */
+    static boolean hayRepartida() {
+        return REPARTIDA.get() != null;
+    }
+
+    /**
+     * Une la base de datos a la repartida abierta: abre su EntityManager y su transaccion, que se cierran al
+     * acabar la repartida. El que llama ya tiene la conexion reservada; liberar la devuelve al final
+     * @return el EntityManager, el mismo que dara actual(emf) hasta que acabe
+     */
+    static EntityManager unirse(EntityManagerFactory emf, Runnable liberar) {
+        List<Unida> unidas = REPARTIDA.get();
+        EntityManager em = null;
+        try {
+            em = emf.createEntityManager();
+            em.getTransaction().begin();
+        } catch (RuntimeException e) {
+            if (em != null) {
+                em.close();
+            }
+            liberar.run();
+            throw e;
+        }
+        unidas.add(new Unida(emf, em, liberar));
+        registrar(emf, em);
+        return em;
+    }
+
+    private static void registrar(EntityManagerFactory emf, EntityManager em) {
+        Map<EntityManagerFactory, EntityManager> abiertas = ACTUALES.get();
+        if (abiertas == null) {
+            abiertas = new HashMap<>();
+            ACTUALES.set(abiertas);
+        }
+        abiertas.put(emf, em);
+    }
+
+    private static void quitar(EntityManagerFactory emf) {
+        Map<EntityManagerFactory, EntityManager> abiertas = ACTUALES.get();
+        if (abiertas != null) {
+            abiertas.remove(emf);
+            if (abiertas.isEmpty()) {
+                ACTUALES.remove();
+            }
+        }
+    }
+
+    private static void deshacer(EntityManager em) {
+        if (em.getTransaction().isActive()) {
+            em.getTransaction().rollback();
+        }
+    }
+
+    /**
+     * @return el EntityManager de la unidad de trabajo abierta en este hilo para esa EMF, o null si no hay
+     */
+    static EntityManager actual(EntityManagerFactory emf) {
+        Map<EntityManagerFactory, EntityManager> abiertas = ACTUALES.get();
+        return abiertas == null ? null : abiertas.get(emf);
+    }
+
+    /**
+     * ¿Hay alguna abierta en este hilo? (de cualquier EMF, o una repartida aunque nadie se haya unido todavia)
+     */
+    static boolean hayAbierta() {
+        return ACTUALES.get() != null || REPARTIDA.get() != null;
+    }
+}
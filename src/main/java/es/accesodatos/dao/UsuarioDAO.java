@@ -1,117 +1,216 @@
 package es.accesodatos.dao;
 
-import jakarta.persistence.EntityManager;
-import jakarta.persistence.EntityManagerFactory;
-import jakarta.persistence.Persistence;
-import jakarta.persistence.TypedQuery;
+import es.accesodatos.dto.CriteriosBusqueda;
+import es.accesodatos.dto.Pagina;
+import es.accesodatos.dto.ResultadoBusqueda;
+import es.accesodatos.dto.UsuarioResumen;
 import es.accesodatos.entity.Usuario;
+import jakarta.persistence.OptimisticLockException;
+import org.hibernate.StaleStateException;
 import java.util.*;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
 
 /**
  * DAO para operaciones CRUD (Create, Read, Update, Delete)
+ * Dos implementaciones: UsuarioDAOBaseDatos (una base de datos) y UsuarioDAOShards (varias, cada una un
+ * UsuarioDAOBaseDatos). Cualquier operacion nueva va aqui, asi las dos tienen que implementarla
  */
-public class UsuarioDAO {
+public interface UsuarioDAO {
 
-    private static final String PERSISTENCE_UNIT = "acceso-datos-pu"; // debe coincidir con persistence.xml
-    private final EntityManagerFactory emf;
-
-    public UsuarioDAO() {
-        this.emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT);
+    /**
+     * El DAO que toca segun la configuracion: con -Dusuarios.shards=url1,url2,... los usuarios se reparten
+     * entre esas bases de datos (UsuarioDAOShards); si no, una sola como siempre
+     */
+    static UsuarioDAO desdeSistema() {
+        List<String> shards = UsuarioDAOShards.urlsDeSistema();
+        return shards.isEmpty()
+                ? UsuarioDAOBaseDatos.abrir()
+                : UsuarioDAOShards.desdeSistema(UsuarioDAOBaseDatos.propiedadesDeSistema());
     }
 
-    // CREATE
-    public Usuario crear(Usuario usuario) {
-        EntityManager em = emf.createEntityManager();
-        try {
-            em.getTransaction().begin();
-            em.persist(usuario);
-            em.getTransaction().commit();
-            return usuario;
-        } catch (Exception e) {
-            em.getTransaction().rollback();
-            throw e;
-        } finally {
-            em.close();
+    /**
+     * Crea o actualiza tablas, indices y secuencia para que coincidan con las entidades (en cada shard si hay).
+     * Es lo que antes hacia hbm2ddl.auto=update en cada arranque; ahora el arranque solo valida y esto se lanza
+     * aparte (Main --migrar)
+     */
+    static void migrarEsquema() {
+        List<String> shards = UsuarioDAOShards.urlsDeSistema();
+        if (shards.isEmpty()) {
+            UsuarioDAOBaseDatos.migrarEsquema(UsuarioDAOBaseDatos.propiedadesDeSistema());
+            return;
         }
-    }
-
-    // READ - Buscar por ID
-    public Optional<Usuario> buscarPorId(Long id) {
-        EntityManager em = emf.createEntityManager();
-        try {
-            Usuario usuario = em.find(Usuario.class, id);
-            return Optional.ofNullable(usuario);
-        } finally {
-            em.close();
+        for (int i = 0; i < shards.size(); i++) {
+            UsuarioDAOBaseDatos.migrarEsquema(UsuarioDAOShards.propiedadesDeShard(
+                    UsuarioDAOBaseDatos.propiedadesDeSistema(), i, shards.get(i)));
         }
     }
 
-    // READ - Buscar por email - Personalizado
-    public Optional<Usuario> buscarPorEmail(String email) {
-        EntityManager em = emf.createEntityManager();
-        try {
-            TypedQuery<Usuario> query = em.createQuery(
-                    "SELECT u FROM Usuario u WHERE u.email = :email", Usuario.class);
-            query.setParameter("email", email);
-            List<Usuario> resultados = query.getResultList();
-            return resultados.isEmpty() ? Optional.empty() : Optional.of(resultados.get(0));
-        } finally {
-            em.close();
+    /**
+     * ¿La excepcion es un conflicto de version? (OptimisticLockException de JPA o StaleStateException de Hibernate,
+     * que es la que llega dentro del RollbackException cuando el UPDATE ... WHERE version = ? no cambia ninguna fila)
+     */
+    static boolean esConflictoDeVersion(Throwable e) {
+        for (Throwable causa = e; causa != null; causa = causa.getCause()) {
+            if (causa instanceof OptimisticLockException || causa instanceof StaleStateException) {
+                return true;
+            }
         }
+        return false;
     }
 
-    // READ - Listar todos - Perosnalizado
-    public List<Usuario> listarTodos() {
-        EntityManager em = emf.createEntityManager();
-        try {
-            TypedQuery<Usuario> query = em.createQuery("SELECT u FROM Usuario u", Usuario.class);
-            return query.getResultList();
-        } finally {
-            em.close();
-        }
-    }
+    /**
+     * Espera a que JPA este arrancado. Para medir el arranque o para que los errores de conexion salgan ya
+     */
+    void esperarArranque();
 
-    // UPDATE
-    public Usuario actualizar(Usuario usuario) {
-        EntityManager em = emf.createEntityManager();
-        try {
-            em.getTransaction().begin();
-            Usuario usuarioActualizado = em.merge(usuario);
-            em.getTransaction().commit();
-            return usuarioActualizado;
-        } catch (Exception e) {
-            em.getTransaction().rollback();
-            throw e;
-        } finally {
-            em.close();
-        }
-    }
+    /**
+     * Ejecuta el trabajo en una unidad de trabajo: todas las llamadas a este DAO que se hagan dentro
+     * comparten EntityManager, conexion y transaccion (un solo commit al final)
+     */
+    <T> T enUnidadDeTrabajo(Supplier<T> trabajo);
 
-    // DELETE
-    public boolean eliminar(Long id) {
-        EntityManager em = emf.createEntityManager();
-        try {
-            em.getTransaction().begin();
-            Usuario usuario = em.find(Usuario.class, id);
-            if (usuario != null) {
-                em.remove(usuario);
-                em.getTransaction().commit();
-                return true;
-            }
-            em.getTransaction().rollback();
-            return false;
-        } catch (Exception e) {
-            em.getTransaction().rollback();
-            throw e;
-        } finally {
-            em.close();
-        }
-    }
+    /**
+     * Apunta que este hilo acaba de escribir (sus lecturas van al primario un rato, ver EnrutadorReplicas)
+     * cuando la escritura la ha hecho otro hilo por el, como el del group commit (AgrupadorEscrituras)
+     */
+    void marcarEscrito();
 
-    // Cerrar EntityManagerFactory
-    public void cerrar() {
-        if (emf != null && emf.isOpen()) {
-            emf.close();
-        }
-    }
+    /**
+     * Las lecturas que se hagan dentro van al primario aunque haya replicas (cuando no vale un dato con retraso)
+     */
+    <T> T enPrimario(Supplier<T> trabajo);
+
+    /**
+     * La base de datos donde se escribe entero este usuario (crear o actualizar) en una sola transaccion, para
+     * que el group commit haga una transaccion por base de datos. Vacio si la escritura toca varias (con shards,
+     * un cambio de email a otra cubeta)
+     */
+    Optional<UsuarioDAO> baseDatosDe(Usuario usuario);
+
+    /**
+     * INSERT. Si el email ya existe lanza EmailDuplicadoException
+     */
+    Usuario crear(Usuario usuario);
+
+    /**
+     * INSERT de muchos en batch, un commit para todo el lote. Devuelve los mismos usuarios, ya con id
+     */
+    List<Usuario> crearLote(List<Usuario> usuarios);
+
+    Optional<Usuario> buscarPorId(Long id);
+
+    /**
+     * Por id, sin cache y en el primario: la version que hay ahora en la tabla
+     */
+    Optional<Usuario> releer(Long id);
+
+    Optional<Usuario> buscarPorEmail(String email);
+
+    /**
+     * Muchos por id de una vez: los encontrados en el orden pedido y los ids que no existen
+     */
+    ResultadoBusqueda<Long> buscarPorIds(Collection<Long> ids);
+
+    ResultadoBusqueda<String> buscarPorEmails(Collection<String> emails);
+
+    Optional<UsuarioResumen> buscarResumenPorId(Long id);
+
+    Optional<UsuarioResumen> buscarResumenPorEmail(String email);
+
+    /**
+     * De una coleccion de emails, los que ya estan registrados
+     */
+    Set<String> buscarEmailsExistentes(Collection<String> emails);
+
+    /**
+     * Una pagina por orden de id
+     * @param cursor siguienteCursor de la pagina anterior (null para la primera)
+     */
+    Pagina<UsuarioResumen> listarPagina(String cursor, int tamano);
+
+    /**
+     * Una pagina de los que cumplen los criterios, en el orden de los criterios
+     */
+    Pagina<UsuarioResumen> buscar(CriteriosBusqueda criterios, String cursor, int tamano);
+
+    long contar(CriteriosBusqueda criterios);
+
+    /**
+     * Todos por orden de id sin cargarlos a la vez. [!] Hay que cerrar el Stream
+     */
+    Stream<UsuarioResumen> streamResumenes(int fetchSize);
+
+    /**
+     * Para exportar: los que tienen id > despuesDeId por orden de id, siempre del primario. [!] Hay que cerrar el Stream
+     */
+    Stream<UsuarioResumen> streamExportacion(long despuesDeId, int fetchSize);
+
+    long contar();
+
+    /**
+     * [!] Carga la tabla entera en memoria
+     */
+    List<Usuario> listarTodos();
+
+    /**
+     * Guarda un usuario leido antes (con su version). Si alguien lo ha cambiado desde entonces lanza
+     * OptimisticLockException. Devuelve la copia guardada
+     */
+    Usuario actualizar(Usuario usuario);
+
+    /**
+     * Leer, cambiar y guardar en una transaccion, con bloqueo optimista. Si otro ha escrito entre medias lanza
+     * OptimisticLockException y no se ha cambiado nada (se puede volver a intentar entero)
+     * @param cambios lo que se le hace al usuario leido
+     * @return el usuario cambiado, vacio si no existe
+     */
+    Optional<Usuario> modificar(Long id, Consumer<Usuario> cambios);
+
+    /**
+     * Lo mismo con bloqueo pesimista (SELECT ... FOR UPDATE): no hay conflictos, los demas esperan a que acabe
+     * la transaccion. Es lo que se hacia antes de tener version; se deja para comparar (UsuarioConcurrenciaBenchmark)
+     */
+    Optional<Usuario> modificarConBloqueo(Long id, Consumer<Usuario> cambios);
+
+    /**
+     * @return filas afectadas (0 si no existe el id)
+     */
+    int actualizarPassword(Long id, String passwordEncriptado);
+
+    /**
+     * Cambia el hash solo si sigue siendo passwordAnterior
+     * @return filas afectadas (0 si el usuario ya no existe o su contraseña ha cambiado)
+     */
+    int actualizarPasswordSiNoCambia(Long id, String passwordAnterior, String passwordNuevo);
+
+    /**
+     * Solo las columnas que vienen con valor (null = no se toca)
+     * @return filas afectadas (0 si no existe el id)
+     */
+    int actualizarCampos(Long id, String email, String nombre, Integer edad);
+
+    /**
+     * @return filas afectadas (0 si no existia)
+     */
+    int eliminar(Long id);
+
+    // Estado y metricas
+
+    MetricasPool.EstadoPool estadoPool();
+
+    FiltroEmails.EstadoFiltro estadoFiltroEmails();
+
+    void reconstruirFiltroEmails();
+
+    EnrutadorReplicas.EstadoReplicas estadoReplicas();
+
+    LimitadorConexiones.EstadoConexiones estadoConexiones();
+
+    EstadisticasHibernate estadisticasHibernate();
+
+    EstadisticasCache estadisticasCache();
+
+    void cerrar();
 }
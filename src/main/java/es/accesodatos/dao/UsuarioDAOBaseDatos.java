@@ -0,0 +1,955 @@
+package es.accesodatos.dao;
+
+import jakarta.persistence.CacheRetrieveMode;
+import jakarta.persistence.EntityManager;
+import jakarta.persistence.EntityManagerFactory;
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.OptimisticLockException;
+import jakarta.persistence.Persistence;
+import jakarta.persistence.PersistenceException;
+import jakarta.persistence.TypedQuery;
+import jakarta.persistence.criteria.CriteriaBuilder;
+import jakarta.persistence.criteria.CriteriaQuery;
+import jakarta.persistence.criteria.Order;
+import jakarta.persistence.criteria.Path;
+import jakarta.persistence.criteria.Predicate;
+import jakarta.persistence.criteria.Root;
+import es.accesodatos.dto.CriteriosBusqueda;
+import es.accesodatos.dto.Pagina;
+import es.accesodatos.dto.ResultadoBusqueda;
+import es.accesodatos.dto.UsuarioResumen;
+import es.accesodatos.entity.Usuario;
+import es.accesodatos.metricas.RegistroMetricas;
+import org.hibernate.CacheMode;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.StatelessSession;
+import org.hibernate.Transaction;
+import org.hibernate.dialect.sequence.SequenceSupport;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.exception.ConstraintViolationException;
+import org.hibernate.jpa.HibernateHints;
+import org.hibernate.jpa.SpecHints;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * UsuarioDAO de una sola base de datos con JPA/Hibernate: la de siempre o cada shard de UsuarioDAOShards
+ */
+public class UsuarioDAOBaseDatos implements UsuarioDAO {
+
+    static final String PERSISTENCE_UNIT = "acceso-datos-pu"; // debe coincidir con persistence.xml
+    private static final int BATCH_SIZE = 50; // igual que hibernate.jdbc.batch_size
+    private static final int LOTE_IN = 100; // claves por cada IN (...) en las busquedas multiples
+    private static final int FETCH_SIZE_FILTRO = 1000; // filas por viaje al cargar el filtro de emails
+    private static final String SECUENCIA = "usuarios_seq"; // la de GeneradorIdUsuario en Usuario
+    // Proyeccion: solo las columnas que se ven, sin la contraseña, y sin entidades que Hibernate tenga que vigilar
+    private static final String SELECT_RESUMEN =
+            "SELECT new es.accesodatos.dto.UsuarioResumen(u.id, u.email, u.nombre, u.edad) FROM Usuario u ";
+    private final CompletableFuture<Recursos> arranque;
+    private FiltroEmails filtroEmails; // lo pone abrir(), ver alli
+
+    /**
+     * Lo que se crea al arrancar JPA: la EMF del primario y lo que cuelga de ella, y las replicas
+     */
+    private record Recursos(EntityManagerFactory emf, MetricasPool metricasPool, LimitadorConexiones limitador,
+                            EnrutadorReplicas replicas) {
+    }
+
+    /**
+     * Arrancar Hibernate (EMF, pool, esquema...) tarda segundos. Por defecto se hace en segundo plano y
+     * abrir() vuelve enseguida: la primera operacion espera a que acabe si todavia no ha terminado.
+     * Con -Dusuarios.arranque=inmediato se hace aqui mismo, como antes (los errores de conexion saltan al crear el DAO)
+     */
+    public static UsuarioDAOBaseDatos abrir() {
+        return abrir(propiedadesDeSistema(), true);
+    }
+
+    /**
+     * @param propiedades las de persistence.xml que se sobrescriben (url, pool...)
+     * @param conReplicas si usa las replicas de -Dusuarios.replicas (no en los shards)
+     */
+    static UsuarioDAOBaseDatos abrir(Map<String, Object> propiedades, boolean conReplicas) {
+        UsuarioDAOBaseDatos dao = new UsuarioDAOBaseDatos(propiedades, conReplicas);
+        // El filtro se carga en otro hilo con las consultas del DAO: se crea cuando el DAO ya esta construido
+        dao.filtroEmails = new FiltroEmails(() -> dao.abrirStream("streamEmails", em -> em.createQuery(
+                        "SELECT u.email FROM Usuario u", String.class)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, FETCH_SIZE_FILTRO)
+                .getResultStream()), dao::contar);
+        return dao;
+    }
+
+    private UsuarioDAOBaseDatos(Map<String, Object> propiedades, boolean conReplicas) {
+        if ("inmediato".equals(System.getProperty("usuarios.arranque", "segundo-plano"))) {
+            this.arranque = CompletableFuture.completedFuture(arrancar(propiedades, conReplicas));
+        } else {
+            this.arranque = CompletableFuture.supplyAsync(() -> arrancar(propiedades, conReplicas),
+                    tarea -> Thread.ofPlatform().name("arranque-jpa").daemon().start(tarea));
+        }
+    }
+
+    private static Recursos arrancar(Map<String, Object> propiedades, boolean conReplicas) {
+        EntityManagerFactory emf = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, propiedades);
+        return new Recursos(emf, MetricasPool.registrar(emf), LimitadorConexiones.para(emf), conReplicas
+                ? EnrutadorReplicas.desdeSistema(PERSISTENCE_UNIT, propiedades)
+                : EnrutadorReplicas.ninguna());
+    }
+
+    // Espera a que termine el arranque (si no ha terminado ya) y devuelve lo creado
+    private Recursos recursos() {
+        try {
+            return arranque.join();
+        } catch (CompletionException e) {
+            throw new RuntimeException("[!] No se pudo arrancar la base de datos: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private EntityManagerFactory emf() {
+        return recursos().emf();
+    }
+
+    private LimitadorConexiones limitador() {
+        return recursos().limitador();
+    }
+
+    private EnrutadorReplicas replicas() {
+        return recursos().replicas();
+    }
+
+    @Override
+    public void esperarArranque() {
+        recursos();
+    }
+
+    // Crea o actualiza el esquema de una base de datos (ver UsuarioDAO.migrarEsquema)
+    static void migrarEsquema(Map<String, Object> propiedades) {
+        propiedades.put("jakarta.persistence.schema-generation.database.action", "update");
+        Persistence.generateSchema(PERSISTENCE_UNIT, propiedades);
+    }
+
+    /**
+     * Cualquier propiedad de persistence.xml se puede sobrescribir al arrancar con -D, por ejemplo
+     * -Dhibernate.hikari.maximumPoolSize=20 o -Djakarta.persistence.jdbc.url=jdbc:mysql://otro:3306/acceso_datos
+     */
+    static Map<String, Object> propiedadesDeSistema() {
+        Map<String, Object> propiedades = new HashMap<>();
+        for (String nombre : System.getProperties().stringPropertyNames()) {
+            if (nombre.startsWith("hibernate.") || nombre.startsWith("jakarta.persistence.")) {
+                propiedades.put(nombre, System.getProperty(nombre));
+            }
+        }
+        return propiedades;
+    }
+
+    // Unidad de trabajo: un EntityManager/transaccion por hilo para todo lo de dentro (UnidadDeTrabajo)
+    @Override
+    public <T> T enUnidadDeTrabajo(Supplier<T> trabajo) {
+        if (unidadActual() != null) {
+            return trabajo.get(); // se une a la de fuera, que ya tiene su permiso
+        }
+        T resultado = limitador().conPermiso(() -> UnidadDeTrabajo.ejecutar(emf(), trabajo));
+        replicas().escrito();
+        return resultado;
+    }
+
+    @Override
+    public void marcarEscrito() {
+        replicas().escrito();
+    }
+
+    @Override
+    public <T> T enPrimario(Supplier<T> trabajo) {
+        return replicas().enPrimario(trabajo);
+    }
+
+    @Override
+    public Optional<UsuarioDAO> baseDatosDe(Usuario usuario) {
+        return Optional.of(this);
+    }
+
+    // CREATE
+    // El flush fuerza el INSERT aqui mismo: si el email ya existe salta la restriccion UNIQUE y lo traducimos
+    // a EmailDuplicadoException, asi no hace falta un SELECT antes para comprobarlo
+    @Override
+    public Usuario crear(Usuario usuario) {
+        filtroEmails.agregar(usuario.getEmail()); // antes del INSERT, ver FiltroEmails
+        try {
+            return escribir("crear", em -> {
+                em.persist(usuario);
+                em.flush();
+                return usuario;
+            });
+        } catch (PersistenceException e) {
+            if (esEmailDuplicado(e)) {
+                throw new EmailDuplicadoException(usuario.getEmail(), e);
+            }
+            throw e;
+        }
+    }
+
+    // CREATE - Lote: un solo commit para todo el lote
+    // Los INSERT se mandan en batch JDBC (hibernate.jdbc.batch_size en persistence.xml), cada
+    // BATCH_SIZE usuarios hacemos flush + clear para no acumular todo el lote en el contexto de persistencia
+    // (dentro de una unidad de trabajo solo flush, el contexto es de quien la ha abierto)
+    @Override
+    public List<Usuario> crearLote(List<Usuario> usuarios) {
+        boolean contextoPropio = unidadActual() == null;
+        usuarios.forEach(usuario -> filtroEmails.agregar(usuario.getEmail()));
+        return escribir("crearLote", em -> {
+            for (int i = 0; i < usuarios.size(); i++) {
+                em.persist(usuarios.get(i));
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    em.flush();
+                    if (contextoPropio) {
+                        em.clear();
+                    }
+                }
+            }
+            return usuarios;
+        });
+    }
+
+    // READ - Buscar por ID
+    @Override
+    public Optional<Usuario> buscarPorId(Long id) {
+        return leer("buscarPorId", em -> Optional.ofNullable(em.find(Usuario.class, id)));
+    }
+
+    // READ - Por id en el primario y sin cache de segundo nivel: la version que hay ahora en la tabla
+    // (para volver a aplicar unos cambios despues de un conflicto de version)
+    @Override
+    public Optional<Usuario> releer(Long id) {
+        return leerPrimario("releer", em -> Optional.ofNullable(em.find(Usuario.class, id,
+                Map.of(SpecHints.HINT_SPEC_CACHE_RETRIEVE_MODE, CacheRetrieveMode.BYPASS))));
+    }
+
+    // READ - Buscar por email - Por natural id: primero mira la cache email -> id y luego la cache de entidades,
+    // solo va a MySQL si no esta en cache. Antes de nada el filtro de emails: si no existe seguro, ni eso
+    @Override
+    public Optional<Usuario> buscarPorEmail(String email) {
+        if (!filtroEmails.puedeExistir(email)) {
+            return Optional.empty();
+        }
+        return leer("buscarPorEmail", em -> em.unwrap(Session.class)
+                .bySimpleNaturalId(Usuario.class)
+                .loadOptional(email));
+    }
+
+    // READ - Muchos por ID de una vez (multi-load de Hibernate): primero mira el contexto de persistencia y la cache
+    // de segundo nivel, y los que falten los pide con WHERE id IN (...) de LOTE_IN en LOTE_IN. Los repetidos se piden una vez
+    @Override
+    public ResultadoBusqueda<Long> buscarPorIds(Collection<Long> ids) {
+        List<Long> distintos = new ArrayList<>(new LinkedHashSet<>(ids));
+        if (distintos.isEmpty()) {
+            return new ResultadoBusqueda<>(List.of(), List.of());
+        }
+        return leer("buscarPorIds", em -> ResultadoBusqueda.de(distintos, em.unwrap(Session.class)
+                .byMultipleIds(Usuario.class)
+                .with(CacheMode.NORMAL) // sin esto no mira la cache de segundo nivel
+                .enableSessionCheck(true)
+                .enableOrderedReturn(true) // misma posicion que el id, null si no existe
+                .withBatchSize(LOTE_IN)
+                .multiLoad(distintos)));
+    }
+
+    // READ - Muchos por email de una vez: igual pero por natural id (cache email -> id incluida).
+    // Los que el filtro de emails descarta ni se piden
+    @Override
+    public ResultadoBusqueda<String> buscarPorEmails(Collection<String> emails) {
+        List<String> distintos = new ArrayList<>(new LinkedHashSet<>(emails));
+        List<String> candidatos = new ArrayList<>();
+        Set<String> descartados = new HashSet<>();
+        for (String email : distintos) {
+            if (filtroEmails.puedeExistir(email)) {
+                candidatos.add(email);
+            } else {
+                descartados.add(email);
+            }
+        }
+        if (candidatos.isEmpty()) {
+            return new ResultadoBusqueda<>(List.of(), distintos);
+        }
+        ResultadoBusqueda<String> cargados = leer("buscarPorEmails", em -> {
+            List<Usuario> usuarios = em.unwrap(Session.class)
+                    .byMultipleNaturalId(Usuario.class)
+                    .with(CacheMode.NORMAL)
+                    .enableOrderedReturn(false)
+                    .withBatchSize(LOTE_IN)
+                    .multiLoad(candidatos);
+            // Por natural id Hibernate no respeta el orden (enableOrderedReturn no esta soportado): lo ponemos aqui.
+            // Sin distinguir mayusculas, como compara MySQL
+            Map<String, Usuario> porEmail = new HashMap<>();
+            usuarios.stream().filter(Objects::nonNull)
+                    .forEach(usuario -> porEmail.put(usuario.getEmail().toLowerCase(Locale.ROOT), usuario));
+            return ResultadoBusqueda.de(candidatos, candidatos.stream()
+                    .map(email -> porEmail.get(email.toLowerCase(Locale.ROOT)))
+                    .toList());
+        });
+        if (descartados.isEmpty()) {
+            return cargados;
+        }
+        // Los no encontrados en el orden pedido, mezclando los descartados por el filtro
+        Set<String> noEncontrados = new HashSet<>(cargados.noEncontrados());
+        noEncontrados.addAll(descartados);
+        return new ResultadoBusqueda<>(cargados.encontrados(), distintos.stream().filter(noEncontrados::contains).toList());
+    }
+
+    // READ - Resumen por ID (sin contraseña, sin entidad gestionada)
+    @Override
+    public Optional<UsuarioResumen> buscarResumenPorId(Long id) {
+        return buscarResumen("buscarResumenPorId", "WHERE u.id = :valor", id);
+    }
+
+    // READ - Resumen por email (sin contraseña, sin entidad gestionada)
+    @Override
+    public Optional<UsuarioResumen> buscarResumenPorEmail(String email) {
+        if (!filtroEmails.puedeExistir(email)) {
+            return Optional.empty();
+        }
+        return buscarResumen("buscarResumenPorEmail", "WHERE u.email = :valor", email);
+    }
+
+    private Optional<UsuarioResumen> buscarResumen(String operacion, String where, Object valor) {
+        List<UsuarioResumen> resultados = leer(operacion, em -> em.createQuery(SELECT_RESUMEN + where, UsuarioResumen.class)
+                .setParameter("valor", valor)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultList());
+        return resultados.isEmpty() ? Optional.empty() : Optional.of(resultados.get(0));
+    }
+
+    // READ - De una coleccion de emails, devuelve los que ya existen (una sola consulta con IN para todo el lote)
+    // Al IN solo van los que el filtro de emails no descarta; si no queda ninguno no hay consulta
+    // Siempre en el primario: se usa para decidir que se inserta
+    @Override
+    public Set<String> buscarEmailsExistentes(Collection<String> emails) {
+        List<String> candidatos = emails.stream().filter(filtroEmails::puedeExistir).toList();
+        if (candidatos.isEmpty()) {
+            return Set.of();
+        }
+        return leerPrimario("buscarEmailsExistentes", em -> {
+            TypedQuery<String> query = em.createQuery(
+                    "SELECT u.email FROM Usuario u WHERE u.email IN :emails", String.class);
+            query.setParameter("emails", candidatos);
+            return new HashSet<>(query.getResultList());
+        });
+    }
+
+    // READ - Listar por paginas (keyset): WHERE id > ultimo ORDER BY id LIMIT tamano
+    // Pedimos uno de mas para saber si hay otra pagina sin hacer un COUNT
+    @Override
+    public Pagina<UsuarioResumen> listarPagina(String cursor, int tamano) {
+        if (tamano <= 0) {
+            throw new RuntimeException("[!] El tamaño de pagina tiene que ser mayor que 0");
+        }
+        long ultimoId = Pagina.idDeCursor(cursor);
+        List<UsuarioResumen> resultados = leer("listarPagina", em -> em.createQuery(
+                        SELECT_RESUMEN + "WHERE u.id > :ultimoId ORDER BY u.id", UsuarioResumen.class)
+                .setParameter("ultimoId", ultimoId)
+                .setMaxResults(tamano + 1)
+                .getResultList());
+        if (resultados.size() <= tamano) {
+            return new Pagina<>(resultados, null);
+        }
+        List<UsuarioResumen> pagina = resultados.subList(0, tamano);
+        return new Pagina<>(pagina, Pagina.cursorDe(pagina.get(tamano - 1).id()));
+    }
+
+    // READ - Busqueda por criterios con Criteria API: solo los filtros que vienen entran en el WHERE, el resto
+    // ni aparece en el SQL (asi MySQL puede usar el indice de nombre o el de edad segun lo que se pida).
+    // Paginacion keyset por (columna de orden, id): WHERE ... AND (col > :v OR (col = :v AND id > :id)) ORDER BY col, id
+    @Override
+    public Pagina<UsuarioResumen> buscar(CriteriosBusqueda criterios, String cursor, int tamano) {
+        if (tamano <= 0) {
+            throw new RuntimeException("[!] El tamaño de pagina tiene que ser mayor que 0");
+        }
+        CriteriosBusqueda.PosicionCursor posicion = criterios.leerCursor(cursor);
+        List<UsuarioResumen> resultados = leer("buscar", em -> {
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<UsuarioResumen> query = cb.createQuery(UsuarioResumen.class);
+            Root<Usuario> u = query.from(Usuario.class);
+            List<Predicate> where = filtros(cb, u, criterios);
+            if (posicion != null) {
+                where.add(despuesDe(cb, u, criterios, posicion));
+            }
+            Path<Long> id = u.get("id");
+            List<Order> orden = new ArrayList<>();
+            if (criterios.orden() != CriteriosBusqueda.Orden.ID) {
+                Path<?> columna = columnaDeOrden(u, criterios);
+                orden.add(criterios.descendente() ? cb.desc(columna) : cb.asc(columna));
+            }
+            orden.add(criterios.descendente() ? cb.desc(id) : cb.asc(id));
+            query.select(cb.construct(UsuarioResumen.class, id, u.get("email"), u.get("nombre"), u.get("edad")))
+                    .where(where.toArray(Predicate[]::new))
+                    .orderBy(orden);
+            return em.createQuery(query)
+                    .setMaxResults(tamano + 1)
+                    .getResultList();
+        });
+        if (resultados.size() <= tamano) {
+            return new Pagina<>(resultados, null);
+        }
+        List<UsuarioResumen> pagina = resultados.subList(0, tamano);
+        return new Pagina<>(pagina, criterios.cursorDe(pagina.get(tamano - 1)));
+    }
+
+    // READ - Cuantos cumplen los criterios: un COUNT con el mismo WHERE (lo resuelve el indice, sin leer filas)
+    @Override
+    public long contar(CriteriosBusqueda criterios) {
+        return leer("contarBusqueda", em -> {
+            CriteriaBuilder cb = em.getCriteriaBuilder();
+            CriteriaQuery<Long> query = cb.createQuery(Long.class);
+            Root<Usuario> u = query.from(Usuario.class);
+            query.select(cb.count(u)).where(filtros(cb, u, criterios).toArray(Predicate[]::new));
+            return em.createQuery(query).getSingleResult();
+        });
+    }
+
+    private static List<Predicate> filtros(CriteriaBuilder cb, Root<Usuario> u, CriteriosBusqueda criterios) {
+        List<Predicate> filtros = new ArrayList<>();
+        if (criterios.prefijoNombre() != null) {
+            // LIKE 'prefijo%' usa el indice; con ! de escape, que la \ de MySQL en un literal da guerra
+            filtros.add(cb.like(u.get("nombre"), escaparLike(criterios.prefijoNombre()) + "%", '!'));
+        }
+        if (criterios.edadMinima() != null) {
+            filtros.add(cb.greaterThanOrEqualTo(u.get("edad"), criterios.edadMinima()));
+        }
+        if (criterios.edadMaxima() != null) {
+            filtros.add(cb.lessThanOrEqualTo(u.get("edad"), criterios.edadMaxima()));
+        }
+        if (criterios.orden() == CriteriosBusqueda.Orden.EDAD) {
+            filtros.add(cb.isNotNull(u.get("edad"))); // con NULL no hay keyset que valga
+        }
+        return filtros;
+    }
+
+    // Lo que va despues del cursor en el orden pedido
+    @SuppressWarnings("unchecked")
+    private static Predicate despuesDe(CriteriaBuilder cb, Root<Usuario> u, CriteriosBusqueda criterios,
+                                       CriteriosBusqueda.PosicionCursor posicion) {
+        Path<Long> id = u.get("id");
+        Predicate idDespues = criterios.descendente()
+                ? cb.lessThan(id, posicion.ultimoId())
+                : cb.greaterThan(id, posicion.ultimoId());
+        if (criterios.orden() == CriteriosBusqueda.Orden.ID) {
+            return idDespues;
+        }
+        Path<Comparable<Object>> columna = (Path<Comparable<Object>>) columnaDeOrden(u, criterios);
+        Comparable<Object> valor = (Comparable<Object>) posicion.ultimoValor();
+        Predicate columnaDespues = criterios.descendente() ? cb.lessThan(columna, valor) : cb.greaterThan(columna, valor);
+        return cb.or(columnaDespues, cb.and(cb.equal(columna, valor), idDespues));
+    }
+
+    private static Path<?> columnaDeOrden(Root<Usuario> u, CriteriosBusqueda criterios) {
+        return u.get(criterios.orden() == CriteriosBusqueda.Orden.NOMBRE ? "nombre" : "edad");
+    }
+
+    // % y _ del prefijo son letras, no comodines
+    private static String escaparLike(String texto) {
+        return texto.replace("!", "!!").replace("%", "!%").replace("_", "!_");
+    }
+
+    // READ - Recorrer todos en streaming: cursor de solo avance, en memoria solo hay fetchSize filas cada vez
+    // (en MySQL necesita useCursorFetch=true, ver persistence.xml). [!] Hay que cerrar el Stream, tiene la conexion abierta
+    @Override
+    public Stream<UsuarioResumen> streamResumenes(int fetchSize) {
+        return abrirStream("streamResumenes", em -> em.createQuery(SELECT_RESUMEN + "ORDER BY u.id", UsuarioResumen.class)
+                .setHint(HibernateHints.HINT_FETCH_SIZE, fetchSize)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultStream());
+    }
+
+    /**
+     * READ - Para exportar: los usuarios con id > despuesDeId por orden de id (sin la contraseña), con un
+     * StatelessSession (sin contexto de persistencia ni cache, no se queda nada en memoria) y un cursor de solo
+     * avance de fetchSize filas. Siempre en el primario, para no dejarse lo que todavia no ha llegado a una replica.
+     * [!] Hay que cerrar el Stream, tiene la sesion y un permiso del LimitadorConexiones
+     */
+    @Override
+    public Stream<UsuarioResumen> streamExportacion(long despuesDeId, int fetchSize) {
+        return RegistroMetricas.medir("dao.streamExportacion", () -> {
+            limitador().adquirir();
+            StatelessSession sesion = null;
+            try {
+                sesion = emf().unwrap(SessionFactory.class).openStatelessSession();
+                ScrollableResults<UsuarioResumen> cursor = sesion
+                        .createQuery(SELECT_RESUMEN + "WHERE u.id > :ultimoId ORDER BY u.id", UsuarioResumen.class)
+                        .setParameter("ultimoId", despuesDeId)
+                        .setFetchSize(fetchSize)
+                        .setReadOnly(true)
+                        .scroll(ScrollMode.FORWARD_ONLY);
+                Iterator<UsuarioResumen> filas = new Iterator<>() {
+                    private Boolean hayOtra;
+
+                    @Override
+                    public boolean hasNext() {
+                        if (hayOtra == null) {
+                            hayOtra = cursor.next();
+                        }
+                        return hayOtra;
+                    }
+
+                    @Override
+                    public UsuarioResumen next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        hayOtra = null;
+                        return cursor.get();
+                    }
+                };
+                StatelessSession propia = sesion;
+                return StreamSupport.stream(Spliterators.spliteratorUnknownSize(filas,
+                                Spliterator.ORDERED | Spliterator.NONNULL), false)
+                        .onClose(() -> {
+                            try {
+                                cursor.close();
+                                propia.close();
+                            } finally {
+                                limitador().liberar();
+                            }
+                        });
+            } catch (RuntimeException e) {
+                if (sesion != null) {
+                    sesion.close();
+                }
+                limitador().liberar();
+                throw e;
+            }
+        });
+    }
+
+    /**
+     * Abre una consulta en streaming: en la unidad de trabajo si hay una, si no con su propio EntityManager
+     * y un permiso del LimitadorConexiones, que se devuelven al cerrar el Stream
+     */
+    private <T> Stream<T> abrirStream(String operacion, Function<EntityManager, Stream<T>> consulta) {
+        return RegistroMetricas.medir("dao." + operacion, () -> {
+            EntityManager actual = unidadActual();
+            if (actual != null) {
+                return consulta.apply(actual);
+            }
+            limitador().adquirir(); // la conexion se queda ocupada hasta que se cierra el stream
+            EntityManager em = null;
+            try {
+                em = emf().createEntityManager();
+                EntityManager propio = em;
+                return consulta.apply(em).onClose(() -> {
+                    try {
+                        propio.close();
+                    } finally {
+                        limitador().liberar();
+                    }
+                });
+            } catch (RuntimeException e) {
+                if (em != null) {
+                    em.close();
+                }
+                limitador().liberar();
+                throw e;
+            }
+        });
+    }
+
+    // READ - Numero de usuarios
+    @Override
+    public long contar() {
+        return leer("contar", em -> em.createQuery("SELECT COUNT(u) FROM Usuario u", Long.class).getSingleResult());
+    }
+
+    // READ - Listar todos - Perosnalizado
+    // [!] Carga la tabla entera en memoria, para listados grandes usar listarPagina o streamResumenes
+    @Override
+    public List<Usuario> listarTodos() {
+        return leer("listarTodos", em -> {
+            TypedQuery<Usuario> query = em.createQuery("SELECT u FROM Usuario u", Usuario.class);
+            query.setHint(HibernateHints.HINT_READ_ONLY, true); // sin copias para el dirty checking
+            return query.getResultList();
+        });
+    }
+
+    // UPDATE - merge con la version que trae el usuario: si alguien lo ha cambiado desde que se leyo
+    // salta OptimisticLockException (aqui o en el commit de la unidad de trabajo)
+    @Override
+    public Usuario actualizar(Usuario usuario) {
+        if (usuario.getVersion() == null) {
+            // Sin version Hibernate lo tomaria por nuevo y haria un INSERT
+            throw new RuntimeException("[!] El usuario no tiene version: hay que leerlo antes de actualizarlo");
+        }
+        filtroEmails.agregar(usuario.getEmail()); // puede traer un email nuevo
+        return conVersion(usuario.getId(), () -> escribir("actualizar", em -> {
+            // Si lo han borrado, merge lo volveria a insertar (con otro id): es un conflicto mas
+            if (em.find(Usuario.class, usuario.getId()) == null) {
+                throw new OptimisticLockException("[!] El usuario " + usuario.getId() + " se ha borrado desde que se leyo");
+            }
+            Usuario actualizado = em.merge(usuario);
+            // La version sube al hacer el UPDATE: dentro de una unidad de trabajo (group commit) otro merge del
+            // mismo usuario con la version de antes no veria el conflicto si el UPDATE aun no se ha mandado
+            em.flush();
+            return actualizado;
+        }));
+    }
+
+    // UPDATE - Leer, cambiar y guardar con bloqueo optimista: lee sin la cache de segundo nivel (la version
+    // tiene que ser la de la tabla) y el UPDATE comprueba la version
+    @Override
+    public Optional<Usuario> modificar(Long id, Consumer<Usuario> cambios) {
+        return modificar("modificar", id, LockModeType.OPTIMISTIC, cambios);
+    }
+
+    // UPDATE - Lo mismo con SELECT ... FOR UPDATE
+    @Override
+    public Optional<Usuario> modificarConBloqueo(Long id, Consumer<Usuario> cambios) {
+        return modificar("modificarConBloqueo", id, LockModeType.PESSIMISTIC_WRITE, cambios);
+    }
+
+    private Optional<Usuario> modificar(String operacion, Long id, LockModeType bloqueo, Consumer<Usuario> cambios) {
+        AtomicReference<String> email = new AtomicReference<>(); // el de despues de los cambios, para el error
+        try {
+            return conVersion(id, () -> escribir(operacion, em -> {
+                Usuario usuario = em.find(Usuario.class, id, bloqueo,
+                        Map.of(SpecHints.HINT_SPEC_CACHE_RETRIEVE_MODE, CacheRetrieveMode.BYPASS));
+                if (usuario == null) {
+                    return Optional.<Usuario>empty();
+                }
+                cambios.accept(usuario);
+                email.set(usuario.getEmail());
+                filtroEmails.agregar(usuario.getEmail()); // antes del commit, puede ser un email nuevo
+                return Optional.of(usuario);
+            }));
+        } catch (PersistenceException e) {
+            if (esEmailDuplicado(e)) {
+                throw new EmailDuplicadoException(email.get(), e);
+            }
+            throw e;
+        }
+    }
+
+    // Los cambios de una fila suelta (contraseña, campos, borrado) van por la entidad gestionada, no con un
+    // UPDATE/DELETE de JPQL: con esos Hibernate no sabe que filas toca y vacia entera la region de Usuario y la
+    // del email en la cache de segundo nivel (cada login con rehash la dejaria fria). Asi solo se invalida ese id y
+    // su email, y @DynamicUpdate deja el UPDATE en las columnas que cambian. La fila se lee con SELECT ... FOR UPDATE:
+    // como los UPDATE directos de antes, no comprueban la version de nadie (no hay nada leido que pisar) pero la suben,
+    // para que un merge de alguien que leyo antes falle en vez de volver a poner lo de antes
+
+    // UPDATE - Solo la contraseña
+    // @return filas afectadas (0 si no existe el id)
+    @Override
+    public int actualizarPassword(Long id, String passwordEncriptado) {
+        return filasAfectadas(modificar("actualizarPassword", id, LockModeType.PESSIMISTIC_WRITE,
+                usuario -> usuario.setPassword(passwordEncriptado)));
+    }
+
+    // UPDATE - Cambia el hash solo si sigue siendo el que se leyo (para no pisar un cambio de contraseña que
+    // haya entrado mientras tanto). Lo usa el rehash al hacer login
+    // @return filas afectadas (0 si el usuario ya no existe o su contraseña ha cambiado)
+    @Override
+    public int actualizarPasswordSiNoCambia(Long id, String passwordAnterior, String passwordNuevo) {
+        AtomicBoolean cambiada = new AtomicBoolean();
+        modificar("actualizarPasswordSiNoCambia", id, LockModeType.PESSIMISTIC_WRITE, usuario -> {
+            if (usuario.getPassword().equals(passwordAnterior)) {
+                usuario.setPassword(passwordNuevo);
+                cambiada.set(true);
+            }
+        });
+        return cambiada.get() ? 1 : 0;
+    }
+
+    // UPDATE - Parcial: solo las columnas que vienen con valor (null = no se toca)
+    // @return filas afectadas (0 si no existe el id)
+    @Override
+    public int actualizarCampos(Long id, String email, String nombre, Integer edad) {
+        if (email == null && nombre == null && edad == null) {
+            throw new RuntimeException("[!] No hay ningun campo que actualizar");
+        }
+        return filasAfectadas(modificar("actualizarCampos", id, LockModeType.PESSIMISTIC_WRITE, usuario -> {
+            if (email != null) {
+                usuario.setEmail(email);
+            }
+            if (nombre != null) {
+                usuario.setNombre(nombre);
+            }
+            if (edad != null) {
+                usuario.setEdad(edad);
+            }
+        }));
+    }
+
+    // DELETE - El email se queda en el filtro de emails (falso positivo) hasta que se reconstruya
+    // @return filas afectadas (0 si no existia)
+    @Override
+    public int eliminar(Long id) {
+        return escribir("eliminar", em -> {
+            Usuario usuario = em.find(Usuario.class, id, LockModeType.PESSIMISTIC_WRITE,
+                    Map.of(SpecHints.HINT_SPEC_CACHE_RETRIEVE_MODE, CacheRetrieveMode.BYPASS));
+            if (usuario == null) {
+                return 0;
+            }
+            em.remove(usuario);
+            return 1;
+        });
+    }
+
+    private static int filasAfectadas(Optional<Usuario> modificado) {
+        return modificado.isPresent() ? 1 : 0;
+    }
+
+    // Para mover usuarios entre shards (RebalanceadorShards): los de esas cubetas con id > despuesDeId, por orden de id
+    List<Usuario> leerCubetas(Collection<Integer> cubetas, long despuesDeId, int maximo) {
+        return leerPrimario("leerCubetas", em -> em.createQuery("SELECT u FROM Usuario u WHERE MOD(u.id, "
+                        + MapaShards.CUBETAS + ") IN :cubetas AND u.id > :ultimoId ORDER BY u.id", Usuario.class)
+                .setParameter("cubetas", cubetas)
+                .setParameter("ultimoId", despuesDeId)
+                .setMaxResults(maximo)
+                .setHint(HibernateHints.HINT_READ_ONLY, true)
+                .getResultList());
+    }
+
+    // Copia usuarios tal cual, con su id y su version (sin pasar por GeneradorIdUsuario). Si ya estan se sobrescriben
+    // (se borran y se vuelven a insertar), asi una copia que se corto a medias se puede repetir.
+    // INSERT por JDBC en batch: upsert() de StatelessSession falla en Hibernate 6.4 con entidades con @Version
+    void copiar(List<Usuario> usuarios) {
+        usuarios.forEach(usuario -> filtroEmails.agregar(usuario.getEmail()));
+        RegistroMetricas.medir("dao.copiar", () -> limitador().conPermiso(() -> {
+            try (StatelessSession sesion = emf().unwrap(SessionFactory.class).openStatelessSession()) {
+                Transaction transaccion = sesion.beginTransaction();
+                try {
+                    sesion.createMutationQuery("DELETE FROM Usuario u WHERE u.id IN :ids")
+                            .setParameter("ids", usuarios.stream().map(Usuario::getId).toList())
+                            .executeUpdate();
+                    sesion.doWork(conexion -> {
+                        try (PreparedStatement insert = conexion.prepareStatement(
+                                "INSERT INTO usuarios (id, email, nombre, password, edad, version) VALUES (?, ?, ?, ?, ?, ?)")) {
+                            for (Usuario usuario : usuarios) {
+                                insert.setLong(1, usuario.getId());
+                                insert.setString(2, usuario.getEmail());
+                                insert.setString(3, usuario.getNombre());
+                                insert.setString(4, usuario.getPassword());
+                                insert.setObject(5, usuario.getEdad(), Types.INTEGER);
+                                insert.setLong(6, usuario.getVersion());
+                                insert.addBatch();
+                            }
+                            insert.executeBatch();
+                        }
+                    });
+                    transaccion.commit();
+                } catch (RuntimeException e) {
+                    if (transaccion.isActive()) {
+                        transaccion.rollback();
+                    }
+                    throw e;
+                }
+            }
+            return null;
+        }));
+    }
+
+    // DELETE - Muchos por id, un solo DELETE ... IN
+    int eliminarIds(Collection<Long> ids) {
+        return escribir("eliminarIds", em -> em.createQuery("DELETE FROM Usuario u WHERE u.id IN :ids")
+                .setParameter("ids", ids)
+                .executeUpdate());
+    }
+
+    // El valor de la secuencia mas alto que se ha usado en esta tabla (sale de los ids, ver GeneradorIdUsuario)
+    long maxSecuenciaUsada() {
+        Long maximo = leerPrimario("maxId", em -> em.createQuery("SELECT MAX(u.id) FROM Usuario u", Long.class)
+                .getSingleResult());
+        return maximo == null ? 0 : MapaShards.secuenciaDeId(maximo);
+    }
+
+    // Sube la secuencia hasta minimo si va por detras (nunca la baja). Al mover cubetas de un shard a otro, la
+    // secuencia del nuevo no puede repetir numeros que ya uso el viejo con esas cubetas: saldrian ids repetidos
+    void avanzarSecuencia(long minimo) {
+        escribir("avanzarSecuencia", em -> {
+            SequenceSupport secuencias = emf().unwrap(SessionFactoryImplementor.class).getJdbcServices()
+                    .getDialect().getSequenceSupport();
+            if (secuencias.supportsSequences()) {
+                long actual = ((Number) em.createNativeQuery(secuencias.getSequenceNextValString(SECUENCIA))
+                        .getSingleResult()).longValue();
+                if (actual < minimo) {
+                    em.createNativeQuery("ALTER SEQUENCE " + SECUENCIA + " RESTART WITH " + minimo).executeUpdate();
+                }
+            } else {
+                // MySQL: Hibernate la emula con una tabla de una fila (next_val)
+                em.createNativeQuery("UPDATE " + SECUENCIA + " SET next_val = ?1 WHERE next_val < ?1")
+                        .setParameter(1, minimo)
+                        .executeUpdate();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * ¿La excepcion viene de la restriccion UNIQUE? (MySQL: error 1062 ER_DUP_ENTRY, estandar: SQLState 23505)
+     * La unica restriccion unica de la tabla aparte de la clave primaria es la del email
+     */
+    static boolean esEmailDuplicado(Throwable e) {
+        for (Throwable causa = e; causa != null; causa = causa.getCause()) {
+            if (causa instanceof ConstraintViolationException violacion) {
+                SQLException sql = violacion.getSQLException();
+                return sql.getErrorCode() == 1062 || "23505".equals(sql.getSQLState());
+            }
+        }
+        return false;
+    }
+
+    // Todos los conflictos de version salen como OptimisticLockException, vengan del merge o del commit
+    private <T> T conVersion(Long id, Supplier<T> escritura) {
+        try {
+            return escritura.get();
+        } catch (RuntimeException e) {
+            if (!(e instanceof OptimisticLockException) && UsuarioDAO.esConflictoDeVersion(e)) {
+                throw new OptimisticLockException("[!] El usuario " + id + " ha cambiado desde que se leyo", e);
+            }
+            throw e;
+        }
+    }
+
+    // El EntityManager de la unidad de trabajo de este hilo en esta base de datos, o null si no hay. Dentro de una
+    // repartida (UsuarioDAOShards) este shard se une aqui, la primera vez que se usa, con su permiso del limitador
+    private EntityManager unidadActual() {
+        EntityManager actual = UnidadDeTrabajo.actual(emf());
+        if (actual == null && UnidadDeTrabajo.hayRepartida()) {
+            LimitadorConexiones limitador = limitador();
+            limitador.adquirir();
+            actual = UnidadDeTrabajo.unirse(emf(), limitador::liberar);
+        }
+        return actual;
+    }
+
+    /**
+     * Lectura: usa el EntityManager de la unidad de trabajo si hay una abierta. Si no, la hace en una replica
+     * (EnrutadorReplicas) o, si no hay o no toca, en el primario con un EntityManager que se cierra al acabar
+     * @param operacion nombre para las metricas (dao.operacion)
+     */
+    private <T> T leer(String operacion, Function<EntityManager, T> lectura) {
+        return RegistroMetricas.medir("dao." + operacion, () -> {
+            EntityManager actual = unidadActual();
+            if (actual != null) {
+                return lectura.apply(actual);
+            }
+            return replicas().leer(lectura, () -> leerEnPrimario(lectura));
+        });
+    }
+
+    // Lectura que no puede ir a una replica
+    private <T> T leerPrimario(String operacion, Function<EntityManager, T> lectura) {
+        return RegistroMetricas.medir("dao." + operacion, () -> {
+            EntityManager actual = unidadActual();
+            return actual != null ? lectura.apply(actual) : leerEnPrimario(lectura);
+        });
+    }
+
+    // EntityManager propio en el primario, esperando antes a que el LimitadorConexiones le de permiso
+    private <T> T leerEnPrimario(Function<EntityManager, T> lectura) {
+        return limitador().conPermiso(() -> {
+            EntityManager em = emf().createEntityManager();
+            try {
+                return lectura.apply(em);
+            } finally {
+                em.close();
+            }
+        });
+    }
+
+    /**
+     * Escritura: dentro de una unidad de trabajo se une a su transaccion (el commit lo hace ella),
+     * si no abre su propio EntityManager y transaccion (con permiso del LimitadorConexiones). El commit se mide aparte (dao.commit)
+     * @param operacion nombre para las metricas (dao.operacion)
+     */
+    private <T> T escribir(String operacion, Function<EntityManager, T> escritura) {
+        return RegistroMetricas.medir("dao." + operacion, () -> {
+            EntityManager actual = unidadActual();
+            if (actual != null) {
+                return escritura.apply(actual);
+            }
+            return limitador().conPermiso(() -> {
+                EntityManager em = emf().createEntityManager();
+                try {
+                    em.getTransaction().begin();
+                    T resultado = escritura.apply(em);
+                    RegistroMetricas.medir("dao.commit", () -> em.getTransaction().commit());
+                    replicas().escrito();
+                    return resultado;
+                } catch (Exception e) {
+                    if (em.getTransaction().isActive()) {
+                        em.getTransaction().rollback();
+                    }
+                    throw e;
+                } finally {
+                    em.close();
+                }
+            });
+        });
+    }
+
+    // Estado del pool de conexiones (null si no se usa Hikari)
+    @Override
+    public MetricasPool.EstadoPool estadoPool() {
+        MetricasPool metricasPool = recursos().metricasPool();
+        return metricasPool == null ? null : metricasPool.estado();
+    }
+
+    // Tamaño, memoria y aciertos del filtro de emails
+    @Override
+    public FiltroEmails.EstadoFiltro estadoFiltroEmails() {
+        return filtroEmails.estado();
+    }
+
+    // Vuelve a cargar el filtro de emails desde la tabla (sin esperar a la reconstruccion programada)
+    @Override
+    public void reconstruirFiltroEmails() {
+        filtroEmails.reconstruir();
+    }
+
+    // Lecturas por replica, replicas apartadas y veces que se ha tenido que ir a otra
+    @Override
+    public EnrutadorReplicas.EstadoReplicas estadoReplicas() {
+        return replicas().estado();
+    }
+
+    // Conexiones reservadas por el limitador y hilos esperando a una
+    @Override
+    public LimitadorConexiones.EstadoConexiones estadoConexiones() {
+        return limitador().estado();
+    }
+
+    // Consultas, cargas de entidades, consultas lentas... de Hibernate (necesita hibernate.generate_statistics=true)
+    @Override
+    public EstadisticasHibernate estadisticasHibernate() {
+        return EstadisticasHibernate.de(emf().unwrap(SessionFactory.class).getStatistics());
+    }
+
+    // Aciertos y fallos de la cache de segundo nivel (necesita hibernate.generate_statistics=true)
+    @Override
+    public EstadisticasCache estadisticasCache() {
+        return EstadisticasCache.de(emf().unwrap(SessionFactory.class).getStatistics());
+    }
+
+    // Cerrar EntityManagerFactory
+    @Override
+    public void cerrar() {
+        filtroEmails.cerrar();
+        if (arranque.isCompletedExceptionally()) {
+            return; // no llego a crearse nada
+        }
+        Recursos recursos = arranque.join();
+        recursos.replicas().cerrar();
+        if (recursos.emf().isOpen()) {
+            recursos.emf().close();
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.dto.CriteriosBusqueda;
+import es.accesodatos.dto.Pagina;
+import es.accesodatos.dto.ResultadoBusqueda;
+import es.accesodatos.dto.UsuarioResumen;
+import es.accesodatos.entity.Usuario;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * UsuarioDAO repartido entre varias bases de datos (shards) con la misma tabla. Cada usuario vive en el shard
+ * de la cubeta de su email (MapaShards), y como la cubeta va dentro del id:
+ * - Por email o por id se va directo a su shard (buscar, autenticar, actualizar, eliminar...)
+ * - Lo que no tiene clave (listar, contar, streams) pregunta a todos a la vez y junta por orden de id
+ * - El email solo se puede cambiar a uno de la misma cubeta: con otra cubeta el usuario tendria que cambiar de id
+ *   (y quien guardase el viejo lo perderia), asi que se rechaza
+ * Cada shard es un UsuarioDAOBaseDatos (su pool, su limitador, su filtro de emails), sin replicas.
+ * [!] Una unidad de trabajo abre una transaccion en cada shard que toca (solo en esos) y hace un commit en cada
+ * uno: si falla a medias no es atomica entre shards
+ *
+ * Configuracion: -Dusuarios.shards=url1,url2,... y -Dusuarios.shards.mapa (shards.properties, lo escribe
+ * Main --rebalancear; sin fichero cada cubeta va al shard cubeta % numero de shards)
+ */
+public class UsuarioDAOShards implements UsuarioDAO {
+
+    /**
+     * Foto de un shard: cuantas cubetas tiene y como va su pool
+     */
+    public record EstadoShard(int shard, String url, int cubetas, MetricasPool.EstadoPool pool) {
+    }
+
+    private final List<String> urls;
+    private final List<UsuarioDAOBaseDatos> shards;
+    private final MapaShards mapa;
+    private final ExecutorService dispersion = Executors.newVirtualThreadPerTaskExecutor();
+
+    UsuarioDAOShards(List<String> urls, List<UsuarioDAOBaseDatos> shards, MapaShards mapa) {
+        this.urls = urls;
+        this.shards = shards;
+        this.mapa = mapa;
+    }
+
+    static UsuarioDAOShards desdeSistema(Map<String, Object> propiedades) {
+        List<String> urls = urlsDeSistema();
+        return new UsuarioDAOShards(urls, crearShards(urls, propiedades),
+                MapaShards.cargar(ficheroMapa(), urls.size()));
+    }
+
+    static List<String> urlsDeSistema() {
+        return Arrays.stream(System.getProperty("usuarios.shards", "").split(","))
+                .map(String::trim)
+                .filter(url -> !url.isEmpty())
+                .toList();
+    }
+
+    static Path ficheroMapa() {
+        return Path.of(System.getProperty("usuarios.shards.mapa", "shards.properties"));
+    }
+
+    /**
+     * Las propiedades de un shard: las de siempre con su url y su propio pool
+     */
+    static Map<String, Object> propiedadesDeShard(Map<String, Object> propiedades, int shard, String url) {
+        Map<String, Object> deShard = new HashMap<>(propiedades);
+        deShard.put("jakarta.persistence.jdbc.url", url);
+        deShard.put("hibernate.hikari.poolName", "acceso-datos-shard-" + shard);
+        return deShard;
+    }
+
+    // Arrancan todos a la vez (cada UsuarioDAOBaseDatos arranca JPA en segundo plano)
+    static List<UsuarioDAOBaseDatos> crearShards(List<String> urls, Map<String, Object> propiedades) {
+        List<UsuarioDAOBaseDatos> shards = new ArrayList<>();
+        for (int i = 0; i < urls.size(); i++) {
+            shards.add(UsuarioDAOBaseDatos.abrir(propiedadesDeShard(propiedades, i, urls.get(i)), false));
+        }
+        return List.copyOf(shards);
+    }
+
+    private UsuarioDAOBaseDatos shardDeEmail(String email) {
+        return shards.get(mapa.shardDeEmail(email));
+    }
+
+    private UsuarioDAOBaseDatos shardDeId(Long id) {
+        return shards.get(mapa.shardDeId(id));
+    }
+
+    // Unidad de trabajo repartida: cada shard abre la suya (conexion, transaccion, permiso) la primera vez que
+    // se usa dentro, asi una escritura en un shard cuesta una conexion y un commit, no uno por shard
+    @Override
+    public <T> T enUnidadDeTrabajo(Supplier<T> trabajo) {
+        return UnidadDeTrabajo.ejecutarRepartida(trabajo);
+    }
+
+    @Override
+    public <T> T enPrimario(Supplier<T> trabajo) {
+        return trabajo.get(); // los shards no tienen replicas
+    }
+
+    @Override
+    public void marcarEscrito() {
+        // los shards no tienen replicas
+    }
+
+    @Override
+    public void esperarArranque() {
+        shards.forEach(UsuarioDAO::esperarArranque);
+    }
+
+    // El shard del email, menos si el usuario se cambia de cubeta: ese no va a ningun shard, actualizar lo rechaza
+    @Override
+    public Optional<UsuarioDAO> baseDatosDe(Usuario usuario) {
+        if (usuario.getId() != null && MapaShards.cubeta(usuario.getEmail()) != MapaShards.cubetaDeId(usuario.getId())) {
+            return Optional.empty();
+        }
+        return Optional.of(shardDeEmail(usuario.getEmail()));
+    }
+
+    // CREATE
+    @Override
+    public Usuario crear(Usuario usuario) {
+        return shardDeEmail(usuario.getEmail()).crear(usuario);
+    }
+
+    // CREATE - Lote: un lote (y un commit) por shard
+    @Override
+    public List<Usuario> crearLote(List<Usuario> usuarios) {
+        porShard(usuarios, usuario -> mapa.shardDeEmail(usuario.getEmail()), UsuarioDAO::crearLote);
+        return usuarios;
+    }
+
+    // READ
+    @Override
+    public Optional<Usuario> buscarPorId(Long id) {
+        return shardDeId(id).buscarPorId(id);
+    }
+
+    @Override
+    public Optional<Usuario> releer(Long id) {
+        return shardDeId(id).releer(id);
+    }
+
+    @Override
+    public Optional<Usuario> buscarPorEmail(String email) {
+        return shardDeEmail(email).buscarPorEmail(email);
+    }
+
+    @Override
+    public ResultadoBusqueda<Long> buscarPorIds(Collection<Long> ids) {
+        List<Long> distintos = new ArrayList<>(new LinkedHashSet<>(ids));
+        Map<Long, Usuario> porId = new HashMap<>();
+        porShard(distintos, mapa::shardDeId, UsuarioDAO::buscarPorIds)
+                .forEach(resultado -> resultado.encontrados().forEach(usuario -> porId.put(usuario.getId(), usuario)));
+        return ResultadoBusqueda.de(distintos, distintos.stream().map(porId::get).toList());
+    }
+
+    @Override
+    public ResultadoBusqueda<String> buscarPorEmails(Collection<String> emails) {
+        List<String> distintos = new ArrayList<>(new LinkedHashSet<>(emails));
+        Map<String, Usuario> porEmail = new HashMap<>();
+        porShard(distintos, mapa::shardDeEmail, UsuarioDAO::buscarPorEmails)
+                .forEach(resultado -> resultado.encontrados().forEach(usuario ->
+                        porEmail.put(usuario.getEmail().toLowerCase(Locale.ROOT), usuario)));
+        return ResultadoBusqueda.de(distintos, distintos.stream()
+                .map(email -> porEmail.get(email.toLowerCase(Locale.ROOT)))
+                .toList());
+    }
+
+    @Override
+    public Optional<UsuarioResumen> buscarResumenPorId(Long id) {
+        return shardDeId(id).buscarResumenPorId(id);
+    }
+
+    @Override
+    public Optional<UsuarioResumen> buscarResumenPorEmail(String email) {
+        return shardDeEmail(email).buscarResumenPorEmail(email);
+    }
+
+    @Override
+    public Set<String> buscarEmailsExistentes(Collection<String> emails) {
+        Set<String> existentes = new HashSet<>();
+        porShard(emails, mapa::shardDeEmail, UsuarioDAO::buscarEmailsExistentes).forEach(existentes::addAll);
+        return existentes;
+    }
+
+    // READ - Listar por paginas: cada shard da su pagina despues del cursor y nos quedamos con los tamano
+    // ids mas bajos de todas. El cursor sigue siendo un id, vale para todos los shards
+    @Override
+    public Pagina<UsuarioResumen> listarPagina(String cursor, int tamano) {
+        return juntarPaginas(enTodos(shard -> shard.listarPagina(cursor, tamano)), tamano,
+                Comparator.comparingLong(UsuarioResumen::id), ultimo -> Pagina.cursorDe(ultimo.id()));
+    }
+
+    // READ - Busqueda por criterios: igual que listarPagina pero en el orden de la busqueda
+    @Override
+    public Pagina<UsuarioResumen> buscar(CriteriosBusqueda criterios, String cursor, int tamano) {
+        return juntarPaginas(enTodos(shard -> shard.buscar(criterios, cursor, tamano)), tamano,
+                criterios.comparador(), criterios::cursorDe);
+    }
+
+    @Override
+    public long contar(CriteriosBusqueda criterios) {
+        return enTodos(shard -> shard.contar(criterios)).stream().mapToLong(Long::longValue).sum();
+    }
+
+    // De las paginas de todos los shards (cada una con hasta tamano despues del cursor) se queda con las
+    // tamano primeras en el orden pedido
+    private static Pagina<UsuarioResumen> juntarPaginas(List<Pagina<UsuarioResumen>> paginas, int tamano,
+                                                        Comparator<UsuarioResumen> orden,
+                                                        Function<UsuarioResumen, String> cursorDe) {
+        List<UsuarioResumen> todos = paginas.stream()
+                .flatMap(pagina -> pagina.elementos().stream())
+                .sorted(orden)
+                .toList();
+        boolean hayMas = todos.size() > tamano || paginas.stream().anyMatch(Pagina::hayMas);
+        if (!hayMas) {
+            return new Pagina<>(todos, null);
+        }
+        List<UsuarioResumen> pagina = todos.subList(0, Math.min(tamano, todos.size()));
+        return new Pagina<>(pagina, cursorDe.apply(pagina.get(pagina.size() - 1)));
+    }
+
+    // READ - Streaming: un stream por shard mezclados por id (en memoria solo la fila de cabeza de cada uno).
+    // [!] Tiene una conexion abierta en cada shard hasta que se cierra
+    @Override
+    public Stream<UsuarioResumen> streamResumenes(int fetchSize) {
+        List<Stream<UsuarioResumen>> streams = new ArrayList<>();
+        try {
+            shards.forEach(shard -> streams.add(shard.streamResumenes(fetchSize)));
+        } catch (RuntimeException e) {
+            cerrarTodos(streams);
+            throw e;
+        }
+        Iterator<UsuarioResumen> mezcla = mezclarPorId(streams.stream().map(Stream::iterator).toList());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(mezcla,
+                        Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> cerrarTodos(streams));
+    }
+
+    // READ - Exportacion: igual, un cursor por shard mezclados por id
+    @Override
+    public Stream<UsuarioResumen> streamExportacion(long despuesDeId, int fetchSize) {
+        List<Stream<UsuarioResumen>> streams = new ArrayList<>();
+        try {
+            shards.forEach(shard -> streams.add(shard.streamExportacion(despuesDeId, fetchSize)));
+        } catch (RuntimeException e) {
+            cerrarTodos(streams);
+            throw e;
+        }
+        Iterator<UsuarioResumen> mezcla = mezclarPorId(streams.stream().map(Stream::iterator).toList());
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(mezcla,
+                        Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose(() -> cerrarTodos(streams));
+    }
+
+    @Override
+    public long contar() {
+        return enTodos(UsuarioDAO::contar).stream().mapToLong(Long::longValue).sum();
+    }
+
+    @Override
+    public List<Usuario> listarTodos() {
+        return enTodos(UsuarioDAO::listarTodos).stream().flatMap(List::stream).toList();
+    }
+
+    // UPDATE - En el shard del id. El email nuevo tiene que ser de la misma cubeta (ver comprobarCubeta)
+    @Override
+    public Usuario actualizar(Usuario usuario) {
+        if (usuario.getId() == null) {
+            return shardDeEmail(usuario.getEmail()).actualizar(usuario);
+        }
+        comprobarCubeta(usuario.getId(), usuario.getEmail());
+        return shardDeId(usuario.getId()).actualizar(usuario);
+    }
+
+    // UPDATE - Leer y cambiar en el shard del id
+    @Override
+    public Optional<Usuario> modificar(Long id, Consumer<Usuario> cambios) {
+        return shardDeId(id).modificar(id, enSuCubeta(id, cambios));
+    }
+
+    @Override
+    public Optional<Usuario> modificarConBloqueo(Long id, Consumer<Usuario> cambios) {
+        return shardDeId(id).modificarConBloqueo(id, enSuCubeta(id, cambios));
+    }
+
+    private static Consumer<Usuario> enSuCubeta(Long id, Consumer<Usuario> cambios) {
+        return usuario -> {
+            cambios.accept(usuario);
+            comprobarCubeta(id, usuario.getEmail());
+        };
+    }
+
+    /**
+     * La cubeta va en el id: un email de otra cubeta obligaria a darle otro id al usuario y los que tengan el
+     * viejo dejarian de encontrarlo. Eso no se hace por debajo, se rechaza
+     */
+    private static void comprobarCubeta(Long id, String email) {
+        if (email != null && MapaShards.cubeta(email) != MapaShards.cubetaDeId(id)) {
+            throw new RuntimeException("[!] Con shards no se puede cambiar el email a '" + email
+                    + "': es de otra cubeta y el usuario " + id + " tendria que cambiar de id");
+        }
+    }
+
+    @Override
+    public int actualizarPassword(Long id, String passwordEncriptado) {
+        return shardDeId(id).actualizarPassword(id, passwordEncriptado);
+    }
+
+    @Override
+    public int actualizarPasswordSiNoCambia(Long id, String passwordAnterior, String passwordNuevo) {
+        return shardDeId(id).actualizarPasswordSiNoCambia(id, passwordAnterior, passwordNuevo);
+    }
+
+    // UPDATE - Parcial, en el shard del id. El email nuevo tiene que ser de la misma cubeta
+    @Override
+    public int actualizarCampos(Long id, String email, String nombre, Integer edad) {
+        comprobarCubeta(id, email);
+        return shardDeId(id).actualizarCampos(id, email, nombre, edad);
+    }
+
+    @Override
+    public int eliminar(Long id) {
+        return shardDeId(id).eliminar(id);
+    }
+
+    // Estado de todos los shards juntos
+    @Override
+    public MetricasPool.EstadoPool estadoPool() {
+        List<MetricasPool.EstadoPool> pools = enTodos(UsuarioDAO::estadoPool);
+        return pools.contains(null) ? null : MetricasPool.EstadoPool.sumar(pools);
+    }
+
+    @Override
+    public FiltroEmails.EstadoFiltro estadoFiltroEmails() {
+        return FiltroEmails.EstadoFiltro.sumar(enTodos(UsuarioDAO::estadoFiltroEmails));
+    }
+
+    @Override
+    public void reconstruirFiltroEmails() {
+        shards.forEach(UsuarioDAO::reconstruirFiltroEmails);
+    }
+
+    @Override
+    public EnrutadorReplicas.EstadoReplicas estadoReplicas() {
+        long lecturas = enTodos(UsuarioDAO::estadoReplicas).stream()
+                .mapToLong(EnrutadorReplicas.EstadoReplicas::lecturasPrimario)
+                .sum();
+        return new EnrutadorReplicas.EstadoReplicas(lecturas, 0, List.of());
+    }
+
+    @Override
+    public LimitadorConexiones.EstadoConexiones estadoConexiones() {
+        return LimitadorConexiones.EstadoConexiones.sumar(enTodos(UsuarioDAO::estadoConexiones));
+    }
+
+    @Override
+    public EstadisticasHibernate estadisticasHibernate() {
+        return EstadisticasHibernate.sumar(enTodos(UsuarioDAO::estadisticasHibernate));
+    }
+
+    @Override
+    public EstadisticasCache estadisticasCache() {
+        return EstadisticasCache.sumar(enTodos(UsuarioDAO::estadisticasCache));
+    }
+
+    public List<EstadoShard> estadoShards() {
+        List<EstadoShard> estados = new ArrayList<>();
+        for (int i = 0; i < shards.size(); i++) {
+            estados.add(new EstadoShard(i, urls.get(i), mapa.cubetasDe(i).size(), shards.get(i).estadoPool()));
+        }
+        return estados;
+    }
+
+    @Override
+    public void cerrar() {
+        dispersion.shutdownNow();
+        shards.forEach(UsuarioDAO::cerrar);
+    }
+
+    private <T> List<T> enTodos(Function<UsuarioDAOBaseDatos, T> trabajo) {
+        return enParalelo(shards.stream().<Supplier<T>>map(shard -> () -> trabajo.apply(shard)).toList());
+    }
+
+    // Agrupa las claves por shard y lanza el trabajo en cada shard con las suyas
+    private <K, T> List<T> porShard(Collection<K> claves, ToIntFunction<K> shardDe,
+                                    BiFunction<UsuarioDAOBaseDatos, List<K>, T> trabajo) {
+        Map<Integer, List<K>> grupos = new TreeMap<>();
+        claves.forEach(clave -> grupos.computeIfAbsent(shardDe.applyAsInt(clave), shard -> new ArrayList<>()).add(clave));
+        return enParalelo(grupos.entrySet().stream()
+                .<Supplier<T>>map(grupo -> () -> trabajo.apply(shards.get(grupo.getKey()), grupo.getValue()))
+                .toList());
+    }
+
+    /**
+     * Lanza las tareas a la vez en hilos virtuales y espera a todas. Dentro de una unidad de trabajo van
+     * en este hilo, una detras de otra: sus EntityManager son del hilo y en otro no se verian
+     */
+    private <T> List<T> enParalelo(List<Supplier<T>> tareas) {
+        if (tareas.size() <= 1 || UnidadDeTrabajo.hayAbierta()) {
+            return tareas.stream().map(Supplier::get).toList();
+        }
+        List<CompletableFuture<T>> enCurso = tareas.stream()
+                .map(tarea -> CompletableFuture.supplyAsync(tarea, dispersion))
+                .toList();
+        List<T> resultados = new ArrayList<>(enCurso.size());
+        for (CompletableFuture<T> tarea : enCurso) {
+            try {
+                resultados.add(tarea.join());
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException causa) {
+                    throw causa;
+                }
+                throw e;
+            }
+        }
+        return resultados;
+    }
+
+    // Mezcla iteradores ordenados por id en uno solo ordenado (k-way merge con una cola de prioridad)
+    private static Iterator<UsuarioResumen> mezclarPorId(List<Iterator<UsuarioResumen>> iteradores) {
+        record Cabeza(UsuarioResumen resumen, Iterator<UsuarioResumen> resto) {
+        }
+        PriorityQueue<Cabeza> cola = new PriorityQueue<>(Comparator.comparingLong(cabeza -> cabeza.resumen().id()));
+        iteradores.stream().filter(Iterator::hasNext).forEach(it -> cola.add(new Cabeza(it.next(), it)));
+        return new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return !cola.isEmpty();
+            }
+
+            @Override
+            public UsuarioResumen next() {
+                Cabeza cabeza = cola.poll();
+                if (cabeza == null) {
+                    throw new NoSuchElementException();
+                }
+                if (cabeza.resto().hasNext()) {
+                    cola.add(new Cabeza(cabeza.resto().next(), cabeza.resto()));
+                }
+                return cabeza.resumen();
+            }
+        };
+    }
+
+    private static void cerrarTodos(List<Stream<UsuarioResumen>> streams) {
+        RuntimeException primero = null;
+        for (Stream<UsuarioResumen> stream : streams) {
+            try {
+                stream.close();
+            } catch (RuntimeException e) {
+                primero = primero == null ? e : primero;
+            }
+        }
+        if (primero != null) {
+            throw primero;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package es.accesodatos.dto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Filtros y orden de una busqueda de usuarios. Los filtros a null no se aplican (no entran en el WHERE)
+ * @param prefijoNombre nombres que empiezan por esto (sin distinguir mayusculas, como compara MySQL)
+ * @param edadMinima edad minima incluida
+ * @param edadMaxima edad maxima incluida
+ * @param orden por que columna se ordena (siempre desempata el id). Por EDAD quedan fuera los que no tienen edad
+ * @param descendente de mayor a menor
+ */
+public record CriteriosBusqueda(String prefijoNombre, Integer edadMinima, Integer edadMaxima,
+                                Orden orden, boolean descendente) {
+
+    public enum Orden { ID, NOMBRE, EDAD }
+
+    public CriteriosBusqueda {
+        if (prefijoNombre != null && prefijoNombre.isBlank()) {
+            prefijoNombre = null;
+        }
+        if (edadMinima != null && edadMaxima != null && edadMinima > edadMaxima) {
+            throw new RuntimeException("[!] La edad minima (" + edadMinima + ") es mayor que la maxima (" + edadMaxima + ")");
+        }
+        if (orden == null) {
+            orden = Orden.ID;
+        }
+    }
+
+    /**
+     * Sin filtros, por id ascendente
+     */
+    public static CriteriosBusqueda todos() {
+        return new CriteriosBusqueda(null, null, null, Orden.ID, false);
+    }
+
+    /**
+     * Valor de la columna de orden de un resultado (lo que va en el cursor con su id)
+     */
+    public Object valorDeOrden(UsuarioResumen usuario) {
+        return switch (orden) {
+            case ID -> usuario.id();
+            case NOMBRE -> usuario.nombre();
+            case EDAD -> usuario.edad();
+        };
+    }
+
+    /**
+     * El mismo orden que la consulta, para juntar resultados de varios shards. El nombre se compara sin
+     * mayusculas, parecido a la collation de MySQL (con acentos o simbolos puede no coincidir del todo)
+     */
+    public Comparator<UsuarioResumen> comparador() {
+        Comparator<UsuarioResumen> porColumna = switch (orden) {
+            case ID -> Comparator.comparingLong(UsuarioResumen::id);
+            case NOMBRE -> Comparator.comparing((UsuarioResumen u) -> u.nombre().toLowerCase(Locale.ROOT))
+                    .thenComparingLong(UsuarioResumen::id);
+            case EDAD -> Comparator.comparingInt(UsuarioResumen::edad).thenComparingLong(UsuarioResumen::id);
+        };
+        return descendente ? porColumna.reversed() : porColumna;
+    }
+
+    /**
+     * Cursor de una busqueda: el valor de orden y el id del ultimo resultado, en Base64 (token opaco como el de Pagina).
+     * Lleva tambien el orden, para no aceptar un cursor de una busqueda ordenada de otra forma
+     */
+    public String cursorDe(UsuarioResumen ultimo) {
+        String texto = orden + "\n" + ultimo.id() + "\n" + valorDeOrden(ultimo);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(texto.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Lo que guarda un cursor. Para el orden por id el valor es el propio id
+     */
+    public record PosicionCursor(long ultimoId, Object ultimoValor) {
+    }
+
+    /**
+     * @return la posicion del cursor, o null si cursor es null o vacio (primera pagina)
+     */
+    public PosicionCursor leerCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+        try {
+            String[] partes = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8).split("\n", 3);
+            if (partes.length != 3 || Orden.valueOf(partes[0]) != orden) {
+                throw new IllegalArgumentException();
+            }
+            long id = Long.parseLong(partes[1]);
+            Object valor = switch (orden) {
+                case ID -> id;
+                case NOMBRE -> partes[2];
+                case EDAD -> Integer.valueOf(partes[2]);
+            };
+            return new PosicionCursor(id, valor);
+        } catch (IllegalArgumentException e) { // Base64 mal, NumberFormatException y Orden desconocido incluidos
+            throw new RuntimeException("[!] El cursor no es valido para esta busqueda");
+        }
+    }
+}
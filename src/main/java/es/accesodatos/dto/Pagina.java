@@ -0,0 +1,39 @@
+package es.accesodatos.dto;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Una pagina de resultados con paginacion por cursor (keyset): en vez de OFFSET se pide "lo que va despues del
+ * ultimo id que he visto", asi MySQL salta directamente con el indice de la clave primaria aunque la tabla sea enorme
+ * @param elementos elementos de esta pagina
+ * @param siguienteCursor cursor para pedir la siguiente pagina, null si es la ultima
+ */
+public record Pagina<T>(List<T> elementos, String siguienteCursor) {
+
+    public boolean hayMas() {
+        return siguienteCursor != null;
+    }
+
+    /**
+     * El cursor es el ultimo id de la pagina en Base64, para que quien lo usa lo trate como un token opaco
+     */
+    public static String cursorDe(long ultimoId) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(Long.toString(ultimoId).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param cursor cursor de una pagina anterior, null o vacio para empezar desde el principio
+     * @return el ultimo id visto (0 si se empieza desde el principio)
+     */
+    public static long idDeCursor(String cursor) {
+        if (cursor == null || cursor.isEmpty()) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8));
+        } catch (IllegalArgumentException e) { // NumberFormatException tambien es IllegalArgumentException
+            throw new RuntimeException("[!] El cursor no es valido");
+        }
+    }
+}
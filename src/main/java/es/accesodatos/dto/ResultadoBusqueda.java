@@ -0,0 +1,33 @@
+package es.accesodatos.dto;
+
+import es.accesodatos.entity.Usuario;
+import java.util.*;
+
+/**
+ * Resultado de buscar muchos usuarios de una vez (por ids o por emails)
+ * @param encontrados los que existen, en el mismo orden en que se pidieron (sin repetidos)
+ * @param noEncontrados las claves que no existen, tambien en el orden en que se pidieron
+ */
+public record ResultadoBusqueda<K>(List<Usuario> encontrados, List<K> noEncontrados) {
+
+    public boolean estanTodos() {
+        return noEncontrados.isEmpty();
+    }
+
+    /**
+     * Junta las claves con lo que ha cargado Hibernate (misma posicion, null si no existe)
+     */
+    public static <K> ResultadoBusqueda<K> de(List<K> claves, List<Usuario> cargados) {
+        List<Usuario> encontrados = new ArrayList<>(claves.size());
+        List<K> noEncontrados = new ArrayList<>();
+        for (int i = 0; i < claves.size(); i++) {
+            Usuario usuario = cargados.get(i);
+            if (usuario != null) {
+                encontrados.add(usuario);
+            } else {
+                noEncontrados.add(claves.get(i));
+            }
+        }
+        return new ResultadoBusqueda<>(encontrados, noEncontrados);
+    }
+}
@@ -0,0 +1,18 @@
+package es.accesodatos.dto;
+
+import java.nio.file.Path;
+
+/**
+ * Lo que ha hecho una exportacion
+ * @param filas las escritas en esta ejecucion
+ * @param filasTotales las que tiene el fichero, contando las de antes si se ha reanudado
+ * @param desdeId se ha empezado despues de este id (0 si no se ha reanudado)
+ * @param bytes tamaño del fichero al acabar (comprimido si es .gz)
+ */
+public record ResultadoExportacion(Path fichero, long filas, long filasTotales, long desdeId,
+                                   long milisegundos, long bytes) {
+
+    public double filasPorSegundo() {
+        return milisegundos == 0 ? 0 : filas * 1000.0 / milisegundos;
+    }
+}
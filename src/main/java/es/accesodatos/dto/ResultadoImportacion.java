@@ -0,0 +1,51 @@
+package es.accesodatos.dto;
+
+import java.util.*;
+
+/**
+ * Resumen de una importacion masiva: cuantas filas se han insertado y que ha fallado en cada fila
+ */
+public class ResultadoImportacion {
+
+    /**
+     * Error de una fila concreta
+     * @param fila numero de fila dentro de la entrada (empieza en 1)
+     * @param email email de la fila (puede ser null si la fila no se pudo leer)
+     * @param motivo mensaje de error
+     */
+    public record ErrorFila(long fila, String email, String motivo) {
+    }
+
+    private long filasLeidas;
+    private long insertados;
+    private final List<ErrorFila> errores = new ArrayList<>();
+
+    public void sumarLeidas(long filas) {
+        this.filasLeidas += filas;
+    }
+
+    public void sumarInsertados(long filas) {
+        this.insertados += filas;
+    }
+
+    public void agregarError(long fila, String email, String motivo) {
+        errores.add(new ErrorFila(fila, email, motivo));
+    }
+
+    public long getFilasLeidas() {
+        return filasLeidas;
+    }
+
+    public long getInsertados() {
+        return insertados;
+    }
+
+    public List<ErrorFila> getErrores() {
+        return Collections.unmodifiableList(errores);
+    }
+
+    @Override
+    public String toString() {
+        return "ResultadoImportacion{leidas=" + filasLeidas + ", insertados=" + insertados + ", errores=" + errores.size() + "}";
+    }
+}
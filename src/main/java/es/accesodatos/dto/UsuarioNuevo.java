@@ -0,0 +1,13 @@
+package es.accesodatos.dto;
+
+/**
+ * Datos de entrada para registrar un usuario (una fila de la importacion masiva)
+ * La contraseña va en texto plano, se encripta en el servicio antes de guardar
+ */
+public record UsuarioNuevo(String email, String nombre, String password, Integer edad) {
+
+    @Override //Igual que en Usuario, no devolvemos la contraseña
+    public String toString() {
+        return "UsuarioNuevo{email='" + email + "', nombre='" + nombre + "', edad=" + edad + "}";
+    }
+}
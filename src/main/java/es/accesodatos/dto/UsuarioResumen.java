@@ -0,0 +1,8 @@
+package es.accesodatos.dto;
+
+/**
+ * Vista de solo lectura de un usuario: lo que se ve en los listados, sin la contraseña
+ * Se construye directamente en la consulta (SELECT new ...), Hibernate no lo gestiona ni lo vigila
+ */
+public record UsuarioResumen(Long id, String email, String nombre, Integer edad) {
+}
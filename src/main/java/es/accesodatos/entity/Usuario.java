@@ -1,15 +1,44 @@
 package es.accesodatos.entity;
 
+import es.accesodatos.dao.GeneradorIdUsuario;
 import jakarta.persistence.*;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
+import org.hibernate.annotations.ColumnDefault;
+import org.hibernate.annotations.DynamicUpdate;
+import org.hibernate.annotations.GenericGenerator;
+import org.hibernate.annotations.NaturalId;
+import org.hibernate.annotations.NaturalIdCache;
+import org.hibernate.annotations.Parameter;
+import java.util.Objects;
 
 @Entity
-@Table(name = "usuarios")
+// Indices para las busquedas por nombre (prefijo) y por rango de edad; los crea Main --migrar
+@Table(name = "usuarios", indexes = {
+        @Index(name = "idx_usuarios_nombre", columnList = "nombre"),
+        @Index(name = "idx_usuarios_edad", columnList = "edad")})
+@Cacheable // cache de segundo nivel (por id), ver shared-cache-mode en persistence.xml
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = Usuario.REGION_CACHE)
+@NaturalIdCache(region = Usuario.REGION_CACHE_EMAIL) // cache email -> id, para que buscarPorEmail no vaya siempre a MySQL
+@DynamicUpdate // en los UPDATE solo van las columnas que han cambiado, no todas
 public class Usuario {
 
+    // Nombres de las regiones de cache (se configuran en application.conf)
+    public static final String REGION_CACHE = "usuarios";
+    public static final String REGION_CACHE_EMAIL = "usuarios-email";
+
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    // SEQUENCE y no IDENTITY: con IDENTITY Hibernate tiene que hacer el INSERT al momento para saber el id
+    // y desactiva el batching. En MySQL no hay secuencias asi que Hibernate usa la tabla "usuarios_seq"
+    // y reserva los ids de 50 en 50 (increment_size) sin ir a la bd por cada usuario.
+    // GeneradorIdUsuario mete ademas la cubeta del email en el id (para el sharding, ver MapaShards)
+    @GeneratedValue(generator = "usuarios_seq")
+    @GenericGenerator(name = "usuarios_seq", type = GeneradorIdUsuario.class, parameters = {
+            @Parameter(name = "sequence_name", value = "usuarios_seq"),
+            @Parameter(name = "increment_size", value = "50")})
     private Long id;
 
+    @NaturalId(mutable = true) // El email identifica al usuario (como el id) pero se puede cambiar
     @Column(nullable = false, unique = true) // Obligatorio y UNICO
     private String email;
 
@@ -21,6 +50,22 @@ public class Usuario {
 
     private Integer edad; // Opcional
 
+    // Bloqueo optimista: cada UPDATE suma 1 y comprueba que sigue siendo la que se leyo (WHERE version = ?).
+    // Si otro ha escrito antes no cambia ninguna fila y salta OptimisticLockException en vez de pisarle.
+    // El DEFAULT 0 es para las filas que ya existian al añadir la columna con --migrar
+    @Version
+    @ColumnDefault("0")
+    @Column(nullable = false)
+    private Long version;
+
+    // Como estaba la ultima vez que se leyo o se guardo (no va a la tabla): para saber que campos ha cambiado
+    // quien lo tiene si al guardarlo choca con otro, ver copiarCambiosA. Null si no viene de la base de datos
+    @Transient
+    private Foto leido;
+
+    private record Foto(String email, String nombre, Integer edad) {
+    }
+
     //Constructor vacio
     public Usuario() {
     }
@@ -74,6 +119,48 @@ public class Usuario {
         this.edad = edad;
     }
 
+    // La pone Hibernate: setVersion solo para copiar un usuario que ya se leyo (con la version de entonces)
+    public Long getVersion() {
+        return version;
+    }
+
+    public void setVersion(Long version) {
+        this.version = version;
+    }
+
+    @PostLoad
+    @PostPersist
+    @PostUpdate
+    void tomarFoto() {
+        leido = new Foto(email, nombre, edad);
+    }
+
+    /**
+     * ¿Viene de la base de datos? Si no, no se sabe que campos se han cambiado desde que se leyo
+     */
+    public boolean sabeQueHaCambiado() {
+        return leido != null;
+    }
+
+    /**
+     * Copia a destino (este mismo usuario leido mas tarde) solo el email, nombre y edad que se han cambiado
+     * en este desde que se leyo. Lo demas se queda como lo tenga destino
+     */
+    public void copiarCambiosA(Usuario destino) {
+        if (leido == null) {
+            throw new RuntimeException("[!] El usuario " + id + " no se ha leido de la base de datos: no se sabe que ha cambiado");
+        }
+        if (!Objects.equals(email, leido.email())) {
+            destino.setEmail(email);
+        }
+        if (!Objects.equals(nombre, leido.nombre())) {
+            destino.setNombre(nombre);
+        }
+        if (!Objects.equals(edad, leido.edad())) {
+            destino.setEdad(edad);
+        }
+    }
+
     @Override //Fijaros de que no devolvemos la contraseña
     public String toString() {
         return "Usuario{id=" + id + ", email='" + email + "', nombre='" + nombre + "', edad=" + edad + "}";
@@ -0,0 +1,69 @@
+package es.accesodatos.metricas;
+
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+/**
+ * Escucha el evento JFR jdk.VirtualThreadPinned: un hilo virtual que se bloquea sin poder soltar su hilo del sistema
+ * (carrier), por ejemplo dentro de codigo nativo. Sirve para comprobar que el camino JDBC/Hibernate no fija hilos:
+ * en un arranque normal fijados() deberia quedarse en 0
+ */
+public class DetectorPinning {
+
+    private static final String EVENTO = "jdk.VirtualThreadPinned";
+    private static final int FRAMES_TRAZA = 10;
+
+    private final RecordingStream grabacion = new RecordingStream();
+    private final LongAdder fijados = new LongAdder();
+    private volatile String ultimaTraza;
+
+    private DetectorPinning() {
+    }
+
+    /**
+     * Empieza a escuchar en segundo plano. Todos los bloqueos cuentan, por cortos que sean (umbral 0)
+     */
+    public static DetectorPinning arrancar() {
+        DetectorPinning detector = new DetectorPinning();
+        detector.grabacion.enable(EVENTO).withThreshold(Duration.ZERO).withStackTrace();
+        detector.grabacion.onEvent(EVENTO, detector::registrar);
+        detector.grabacion.startAsync();
+        return detector;
+    }
+
+    private void registrar(RecordedEvent evento) {
+        fijados.increment();
+        if (evento.getStackTrace() != null) {
+            ultimaTraza = evento.getStackTrace().getFrames().stream()
+                    .limit(FRAMES_TRAZA)
+                    .map(DetectorPinning::formatear)
+                    .collect(Collectors.joining("\n    <- "));
+        }
+    }
+
+    private static String formatear(RecordedFrame frame) {
+        return frame.getMethod().getType().getName() + "." + frame.getMethod().getName() + ":" + frame.getLineNumber();
+    }
+
+    /**
+     * Veces que se ha fijado un hilo virtual. JFR entrega los eventos con hasta un segundo de retraso
+     */
+    public long fijados() {
+        return fijados.sum();
+    }
+
+    /**
+     * Donde se fijo el ultimo (primeros frames de la pila), o null si no ha pasado nunca
+     */
+    public String ultimaTraza() {
+        return ultimaTraza;
+    }
+
+    public void cerrar() {
+        grabacion.close();
+    }
+}
@@ -0,0 +1,29 @@
+package es.accesodatos.metricas;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Evento de Java Flight Recorder por cada operacion medida. Se ve en JDK Mission Control junto con GC, locks, etc.
+ * Grabar: java -XX:StartFlightRecording=filename=acceso-datos.jfr ... (si JFR no esta grabando el evento no cuesta nada)
+ */
+@Name("es.accesodatos.Operacion")
+@Label("Operacion de acceso a datos")
+@Category("Acceso Datos")
+@Description("Llamada al DAO o a BCrypt con su duracion")
+@StackTrace(false)
+class EventoOperacion extends Event {
+
+    @Label("Operacion")
+    String operacion;
+
+    @Label("Filas")
+    long filas;
+
+    @Label("Correcta")
+    boolean correcta;
+}
@@ -0,0 +1,74 @@
+package es.accesodatos.metricas;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * MXBean con las metricas de la aplicacion. Cada parte (pool, cache, Hibernate...) se pasa como Supplier
+ * para que este paquete no dependa de los DAO
+ */
+public class Metricas implements MetricasMXBean {
+
+    public static final String NOMBRE_JMX = "es.accesodatos:type=Metricas";
+
+    private final Supplier<?> poolConexiones;
+    private final Supplier<?> cache;
+    private final Supplier<?> hibernate;
+    private final Supplier<?> poolHash;
+
+    public Metricas(Supplier<?> poolConexiones, Supplier<?> cache, Supplier<?> hibernate, Supplier<?> poolHash) {
+        this.poolConexiones = poolConexiones;
+        this.cache = cache;
+        this.hibernate = hibernate;
+        this.poolHash = poolHash;
+    }
+
+    /**
+     * Registra el MXBean en el servidor de la JVM. Si ya habia uno (otro UsuarioService) lo sustituye
+     */
+    public static void registrarEnJmx(Metricas metricas) {
+        try {
+            MBeanServer servidor = ManagementFactory.getPlatformMBeanServer();
+            ObjectName nombre = new ObjectName(NOMBRE_JMX);
+            if (servidor.isRegistered(nombre)) {
+                servidor.unregisterMBean(nombre);
+            }
+            servidor.registerMBean(metricas, nombre);
+        } catch (Exception e) {
+            throw new RuntimeException("[!] No se pudo registrar las metricas en JMX", e);
+        }
+    }
+
+    @Override
+    public Map<String, MetricasOperacion.Resumen> getOperaciones() {
+        return RegistroMetricas.resumen();
+    }
+
+    @Override
+    public String getPoolConexiones() {
+        return String.valueOf(poolConexiones.get());
+    }
+
+    @Override
+    public String getPoolHash() {
+        return String.valueOf(poolHash.get());
+    }
+
+    @Override
+    public String getCache() {
+        return String.valueOf(cache.get());
+    }
+
+    @Override
+    public String getHibernate() {
+        return String.valueOf(hibernate.get());
+    }
+
+    @Override
+    public void reiniciar() {
+        RegistroMetricas.reiniciar();
+    }
+}
@@ -0,0 +1,21 @@
+package es.accesodatos.metricas;
+
+import java.util.Map;
+
+/**
+ * Lo que se ve por JMX (jconsole / VisualVM) en es.accesodatos:type=Metricas
+ */
+public interface MetricasMXBean {
+
+    Map<String, MetricasOperacion.Resumen> getOperaciones();
+
+    String getPoolConexiones();
+
+    String getPoolHash();
+
+    String getCache();
+
+    String getHibernate();
+
+    void reiniciar();
+}
@@ -0,0 +1,54 @@
+package es.accesodatos.metricas;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metricas de una operacion (por ejemplo "dao.buscarPorEmail"): histograma de latencias, errores y filas devueltas
+ */
+public class MetricasOperacion {
+
+    /**
+     * Foto de la operacion. Latencias en milisegundos
+     */
+    public record Resumen(long llamadas, long errores, long filas,
+                          double p50Ms, double p99Ms, double p999Ms, double maxMs) {
+    }
+
+    private static final long MAX_MICROS = 3_600_000_000L; // 1 hora, lo que pase de ahi se apunta como 1 hora
+
+    private final Histogram latencias = new ConcurrentHistogram(MAX_MICROS, 2); // 2 cifras significativas
+    private final LongAdder errores = new LongAdder();
+    private final LongAdder filas = new LongAdder();
+
+    void registrar(long nanos, boolean correcta, long filasDevueltas) {
+        latencias.recordValue(Math.min(nanos / 1000, MAX_MICROS));
+        if (!correcta) {
+            errores.increment();
+        }
+        filas.add(filasDevueltas);
+    }
+
+    public Resumen resumen() {
+        Histogram copia = latencias.copy();
+        return new Resumen(copia.getTotalCount(), errores.sum(), filas.sum(),
+                copia.getValueAtPercentile(50) / 1000.0,
+                copia.getValueAtPercentile(99) / 1000.0,
+                copia.getValueAtPercentile(99.9) / 1000.0,
+                copia.getMaxValue() / 1000.0);
+    }
+
+    /**
+     * Latencia en milisegundos para un percentil (0-100)
+     */
+    public double percentilMs(double percentil) {
+        return latencias.getValueAtPercentile(percentil) / 1000.0;
+    }
+
+    void reiniciar() {
+        latencias.reset();
+        errores.reset();
+        filas.reset();
+    }
+}
@@ -0,0 +1,92 @@
+package es.accesodatos.metricas;
+
+import es.accesodatos.dto.Pagina;
+import es.accesodatos.dto.ResultadoBusqueda;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
+
+/**
+ * Registro global de metricas por operacion. Las capas lo usan envolviendo su trabajo:
+ * RegistroMetricas.medir("dao.buscarPorId", () -> ...)
+ * Cada llamada apunta su latencia en el histograma de la operacion, si ha fallado, cuantas filas ha devuelto
+ * y emite un evento JFR.
+ */
+public class RegistroMetricas {
+
+    private static final ConcurrentMap<String, MetricasOperacion> OPERACIONES = new ConcurrentHashMap<>();
+
+    private RegistroMetricas() {
+    }
+
+    public static <T> T medir(String operacion, Supplier<T> trabajo) {
+        EventoOperacion evento = new EventoOperacion();
+        evento.begin();
+        long inicio = System.nanoTime();
+        boolean correcta = false;
+        long filas = 0;
+        try {
+            T resultado = trabajo.get();
+            correcta = true;
+            filas = contarFilas(resultado);
+            return resultado;
+        } finally {
+            OPERACIONES.computeIfAbsent(operacion, k -> new MetricasOperacion())
+                    .registrar(System.nanoTime() - inicio, correcta, filas);
+            evento.end();
+            if (evento.shouldCommit()) {
+                evento.operacion = operacion;
+                evento.filas = filas;
+                evento.correcta = correcta;
+                evento.commit();
+            }
+        }
+    }
+
+    public static void medir(String operacion, Runnable trabajo) {
+        medir(operacion, () -> {
+            trabajo.run();
+            return null;
+        });
+    }
+
+    /**
+     * Filas que devuelve una operacion segun el tipo de resultado (Optional 0/1, listas su tamaño, UPDATE/DELETE las afectadas)
+     */
+    private static long contarFilas(Object resultado) {
+        if (resultado instanceof Optional<?> opcional) {
+            return opcional.isPresent() ? 1 : 0;
+        }
+        if (resultado instanceof Collection<?> coleccion) {
+            return coleccion.size();
+        }
+        if (resultado instanceof Pagina<?> pagina) {
+            return pagina.elementos().size();
+        }
+        if (resultado instanceof ResultadoBusqueda<?> busqueda) {
+            return busqueda.encontrados().size();
+        }
+        if (resultado instanceof Integer filas) {
+            return filas;
+        }
+        return 0;
+    }
+
+    public static MetricasOperacion de(String operacion) {
+        return OPERACIONES.get(operacion);
+    }
+
+    /**
+     * Resumen de todas las operaciones ordenadas por nombre
+     */
+    public static Map<String, MetricasOperacion.Resumen> resumen() {
+        Map<String, MetricasOperacion.Resumen> resumen = new TreeMap<>();
+        OPERACIONES.forEach((nombre, metricas) -> resumen.put(nombre, metricas.resumen()));
+        return resumen;
+    }
+
+    public static void reiniciar() {
+        OPERACIONES.values().forEach(MetricasOperacion::reiniciar);
+    }
+}
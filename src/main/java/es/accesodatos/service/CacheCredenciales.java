@@ -0,0 +1,128 @@
+package es.accesodatos.service;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import es.accesodatos.metricas.MetricasOperacion;
+import es.accesodatos.metricas.RegistroMetricas;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Logins que ya se han comprobado hace poco, para no repetir BCrypt cuando el mismo usuario entra muchas veces seguidas.
+ * Por cada email guarda un HMAC-SHA256 de la contraseña que funciono (con una clave aleatoria que solo esta en memoria,
+ * se pierde al parar) y el hash BCrypt contra el que se comprobo. Nunca la contraseña.
+ * - Solo se guardan los aciertos: una contraseña mala siempre pasa por BCrypt
+ * - Un acierto de cache solo vale si el hash de la base de datos sigue siendo el mismo: si la contraseña ha cambiado
+ *   (tambien desde otro proceso) no coincide y se comprueba entera
+ * - cambiarPassword, eliminar y cambiar el email lo quitan enseguida (invalidar)
+ *
+ * Configuracion: -Dusuarios.credenciales.activo=true, -Dusuarios.credenciales.ttl-segundos (60) y
+ * -Dusuarios.credenciales.max (10000 emails)
+ */
+public class CacheCredenciales {
+
+    /**
+     * Foto de la cache. msAhorradosEstimados: aciertos por la mediana de hash.verify (lo que habria tardado BCrypt)
+     */
+    public record EstadoCredenciales(long ttlSegundos, long maximo, long entradas, long aciertos, long fallos,
+                                     double tasaAciertos, double msAhorradosEstimados) {
+    }
+
+    private static final String ALGORITMO = "HmacSHA256";
+
+    /**
+     * Lo que se guarda de un login correcto
+     * @param hash el hash BCrypt de la base de datos con el que se comprobo
+     */
+    private record Entrada(Long id, byte[] hmac, String hash) {
+    }
+
+    private final Cache<String, Entrada> entradas;
+    private final SecretKeySpec clave;
+    private final long ttlSegundos;
+    private final long maximo;
+    private final LongAdder aciertos = new LongAdder();
+    private final LongAdder fallos = new LongAdder();
+
+    CacheCredenciales(long ttlSegundos, long maximo) {
+        this.ttlSegundos = ttlSegundos;
+        this.maximo = maximo;
+        this.entradas = Caffeine.newBuilder()
+                .expireAfterWrite(Duration.ofSeconds(ttlSegundos))
+                .maximumSize(maximo)
+                .build();
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        this.clave = new SecretKeySpec(bytes, ALGORITMO);
+    }
+
+    /**
+     * La cache configurada con las propiedades de sistema, o null si no esta activada
+     */
+    static CacheCredenciales desdeSistema() {
+        if (!Boolean.getBoolean("usuarios.credenciales.activo")) {
+            return null;
+        }
+        return new CacheCredenciales(Long.getLong("usuarios.credenciales.ttl-segundos", 60L),
+                Long.getLong("usuarios.credenciales.max", 10_000L));
+    }
+
+    /**
+     * ¿Esta contraseña ya se comprobo hace poco contra este mismo hash?
+     * @param hashActual el hash que tiene ahora el usuario en la base de datos
+     */
+    boolean yaVerificada(String email, String passwordPlano, Long id, String hashActual) {
+        Entrada entrada = entradas.getIfPresent(email);
+        boolean vale = entrada != null && entrada.id().equals(id) && entrada.hash().equals(hashActual)
+                && MessageDigest.isEqual(entrada.hmac(), hmac(passwordPlano)); // tiempo constante
+        (vale ? aciertos : fallos).increment();
+        return vale;
+    }
+
+    /**
+     * Apunta un login correcto (despues de comprobarlo con BCrypt)
+     */
+    void guardar(String email, String passwordPlano, Long id, String hash) {
+        entradas.put(email, new Entrada(id, hmac(passwordPlano), hash));
+    }
+
+    /**
+     * Quita lo del usuario (contraseña o email cambiados, usuario borrado). Recorre la cache, como mucho maximo
+     * entradas: por id porque quien llama no siempre sabe el email
+     */
+    void invalidar(Long id) {
+        entradas.asMap().values().removeIf(entrada -> entrada.id().equals(id));
+    }
+
+    /**
+     * Quita lo del usuario que este apuntado con otro email que no sea emailNuevo (al cambiarle el email)
+     */
+    void invalidarOtroEmail(Long id, String emailNuevo) {
+        entradas.asMap().entrySet().removeIf(e -> e.getValue().id().equals(id) && !e.getKey().equals(emailNuevo));
+    }
+
+    EstadoCredenciales estado() {
+        long a = aciertos.sum();
+        long f = fallos.sum();
+        MetricasOperacion verify = RegistroMetricas.de("hash.verify");
+        double msPorVerify = verify == null ? 0 : verify.percentilMs(50);
+        return new EstadoCredenciales(ttlSegundos, maximo, entradas.estimatedSize(), a, f,
+                a + f == 0 ? 0 : (double) a / (a + f), a * msPorVerify);
+    }
+
+    private byte[] hmac(String passwordPlano) {
+        try {
+            Mac mac = Mac.getInstance(ALGORITMO);
+            mac.init(clave);
+            return mac.doFinal(passwordPlano.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("[!] No se pudo calcular el " + ALGORITMO, e);
+        }
+    }
+}
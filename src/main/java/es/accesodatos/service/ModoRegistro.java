@@ -0,0 +1,28 @@
+package es.accesodatos.service;
+
+/**
+ * Como comprueba registrar() que el email no esta repetido
+ * Se elige al arrancar con -Dusuarios.registro.modo=directo|comprobar (por defecto directo)
+ */
+public enum ModoRegistro {
+
+    /**
+     * INSERT directo y la restriccion UNIQUE de la bd decide: un solo viaje a la bd y sin carreras
+     * entre dos registros a la vez con el mismo email
+     */
+    DIRECTO,
+
+    /**
+     * SELECT por email antes del INSERT (como se hacia al principio). Un viaje mas a la bd por registro
+     */
+    COMPROBAR;
+
+    static ModoRegistro desdeSistema() {
+        String valor = System.getProperty("usuarios.registro.modo", "directo");
+        try {
+            return valueOf(valor.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new RuntimeException("[!] usuarios.registro.modo no valido: " + valor + " (directo o comprobar)");
+        }
+    }
+}
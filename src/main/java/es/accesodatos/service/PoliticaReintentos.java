@@ -0,0 +1,97 @@
+package es.accesodatos.service;
+
+import es.accesodatos.dao.UsuarioDAO;
+import jakarta.persistence.OptimisticLockException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Reintentos cuando dos escrituras del mismo usuario chocan (conflicto de version, ver Usuario.version).
+ * El intento se repite entero (volver a leer y volver a aplicar los cambios) despues de esperar un tiempo
+ * aleatorio entre 0 y espera-ms * 2^intento (como mucho espera-max-ms): si todos esperasen lo mismo volverian a chocar.
+ * Si se acaban los intentos sale el OptimisticLockException del ultimo
+ *
+ * Configuracion: -Dusuarios.reintentos.max (10 intentos en total), -Dusuarios.reintentos.espera-ms (2)
+ * y -Dusuarios.reintentos.espera-max-ms (100)
+ */
+public class PoliticaReintentos {
+
+    /**
+     * Foto de los reintentos: cuantas operaciones han tenido algun conflicto, cuantos reintentos y cuantas se han rendido
+     */
+    public record EstadoReintentos(int maxIntentos, long esperaMs, long esperaMaxMs,
+                                   long conConflicto, long reintentos, long agotados) {
+    }
+
+    private final int maxIntentos;
+    private final long esperaMs;
+    private final long esperaMaxMs;
+    private final LongAdder conConflicto = new LongAdder();
+    private final LongAdder reintentos = new LongAdder();
+    private final LongAdder agotados = new LongAdder();
+
+    /**
+     * @param maxIntentos intentos en total, el primero incluido
+     * @param esperaMs espera maxima antes del primer reintento, se dobla en cada uno
+     * @param esperaMaxMs tope de la espera
+     */
+    public PoliticaReintentos(int maxIntentos, long esperaMs, long esperaMaxMs) {
+        if (maxIntentos < 1) {
+            throw new RuntimeException("[!] Tiene que haber al menos un intento");
+        }
+        this.maxIntentos = maxIntentos;
+        this.esperaMs = esperaMs;
+        this.esperaMaxMs = esperaMaxMs;
+    }
+
+    static PoliticaReintentos desdeSistema() {
+        return new PoliticaReintentos(Integer.getInteger("usuarios.reintentos.max", 10),
+                Long.getLong("usuarios.reintentos.espera-ms", 2L),
+                Long.getLong("usuarios.reintentos.espera-max-ms", 100L));
+    }
+
+    /**
+     * Ejecuta el intento y lo repite mientras falle por un conflicto de version. Cualquier otro error sale a la primera
+     * @param intento tiene que poder repetirse entero (leer otra vez, no reutilizar lo leido en el intento anterior)
+     */
+    public <T> T ejecutar(Supplier<T> intento) {
+        for (int numero = 1; ; numero++) {
+            try {
+                return intento.get();
+            } catch (RuntimeException e) {
+                if (!UsuarioDAO.esConflictoDeVersion(e)) {
+                    throw e;
+                }
+                if (numero == 1) {
+                    conConflicto.increment();
+                }
+                if (numero == maxIntentos) {
+                    agotados.increment();
+                    throw e instanceof OptimisticLockException ? e : new OptimisticLockException(
+                            "[!] El usuario ha cambiado " + maxIntentos + " veces mientras se actualizaba", e);
+                }
+                reintentos.increment();
+                esperar(numero);
+            }
+        }
+    }
+
+    public EstadoReintentos estado() {
+        return new EstadoReintentos(maxIntentos, esperaMs, esperaMaxMs, conConflicto.sum(), reintentos.sum(), agotados.sum());
+    }
+
+    // Full jitter: aleatorio entre 0 y el tope de este intento
+    private void esperar(int numero) {
+        long tope = Math.min(esperaMaxMs, esperaMs << Math.min(numero - 1, 20));
+        if (tope <= 0) {
+            return;
+        }
+        try {
+            Thread.sleep(ThreadLocalRandom.current().nextLong(tope + 1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("[!] Interrumpido esperando para reintentar", e);
+        }
+    }
+}
@@ -1,19 +1,100 @@
 package es.accesodatos.service;
 
+import es.accesodatos.dao.AgrupadorEscrituras;
+import es.accesodatos.dao.EmailDuplicadoException;
+import es.accesodatos.dao.EnrutadorReplicas;
+import es.accesodatos.dao.EstadisticasCache;
+import es.accesodatos.dao.EstadisticasHibernate;
+import es.accesodatos.dao.FiltroEmails;
+import es.accesodatos.dao.LimitadorConexiones;
+import es.accesodatos.dao.MetricasPool;
+import es.accesodatos.dao.RebalanceadorShards;
 import es.accesodatos.dao.UsuarioDAO;
+import es.accesodatos.dao.UsuarioDAOShards;
+import es.accesodatos.dto.CriteriosBusqueda;
+import es.accesodatos.dto.Pagina;
+import es.accesodatos.dto.ResultadoBusqueda;
+import es.accesodatos.dto.ResultadoExportacion;
+import es.accesodatos.dto.ResultadoImportacion;
+import es.accesodatos.dto.UsuarioNuevo;
+import es.accesodatos.dto.UsuarioResumen;
 import es.accesodatos.entity.Usuario;
+import es.accesodatos.metricas.Metricas;
+import es.accesodatos.metricas.MetricasOperacion;
+import es.accesodatos.metricas.RegistroMetricas;
+import es.accesodatos.util.EjecutorHash;
+import es.accesodatos.util.EscritorUsuarios;
 import es.accesodatos.util.PasswordUtil;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
 
 /**
  * Logica de negocio
  */
 public class UsuarioService {
 
+    public static final int TAMANO_LOTE_POR_DEFECTO = 1000;
+    public static final int FETCH_SIZE_POR_DEFECTO = 500;
+    public static final int FETCH_SIZE_EXPORTACION = 5000; // filas por viaje al exportar: pocos viajes y aun poca memoria
+    // he buscado el regex y este es el basico para email: "algo + '@' + algo + '.' + algo"
+    public static final String REGEX_EMAIL = "^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$";
+    private static final Pattern PATRON_EMAIL = Pattern.compile(REGEX_EMAIL);
+
     private final UsuarioDAO usuarioDAO;
+    private final ModoRegistro modoRegistro;
+    private final AgrupadorEscrituras agrupador; // null si no se agrupan las escrituras (-Dusuarios.agrupar.activo)
+    private final CacheCredenciales credenciales; // null si no esta activada (-Dusuarios.credenciales.activo)
+    private final PoliticaReintentos reintentos = PoliticaReintentos.desdeSistema();
+    private final Set<Long> rehashEnCurso = ConcurrentHashMap.newKeySet();
+    // El UPDATE del rehash, fuera de los hilos de BCrypt (y no en el ForkJoinPool comun): espera a la bd, hilos virtuales
+    private final ExecutorService hilosRehash =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("rehash-", 0).factory());
 
     public UsuarioService() {
-        this.usuarioDAO = new UsuarioDAO();
+        this(ModoRegistro.desdeSistema());
+    }
+
+    public UsuarioService(ModoRegistro modoRegistro) {
+        this.usuarioDAO = UsuarioDAO.desdeSistema(); // una base de datos o varias (-Dusuarios.shards)
+        this.modoRegistro = modoRegistro;
+        this.agrupador = AgrupadorEscrituras.desdeSistema(usuarioDAO);
+        this.credenciales = CacheCredenciales.desdeSistema();
+        // Calibra BCrypt en segundo plano mientras arranca JPA, no en el primer registro/login
+        CompletableFuture.runAsync(PasswordUtil::coste, EjecutorHash.compartido());
+        Metricas.registrarEnJmx(new Metricas(usuarioDAO::estadoPool, usuarioDAO::estadisticasCache,
+                usuarioDAO::estadisticasHibernate, () -> EjecutorHash.compartido().estado()));
+    }
+
+    /**
+     * Crea o actualiza el esquema de la base de datos (tablas, indices, secuencia). Paso aparte del arranque
+     */
+    public static void migrarEsquema() {
+        UsuarioDAO.migrarEsquema();
+    }
+
+    /**
+     * Mueve cubetas a los shards nuevos (con la aplicacion parada), ver RebalanceadorShards
+     * @param shardsAntes cuantos habia, solo si todavia no hay fichero de mapa
+     */
+    public static RebalanceadorShards.ResultadoRebalanceo rebalancearShards(int shardsAntes) {
+        return RebalanceadorShards.rebalancear(shardsAntes);
+    }
+
+    /**
+     * Espera a que la base de datos este lista (el DAO arranca JPA en segundo plano).
+     */
+    public void esperarArranque() {
+        usuarioDAO.esperarArranque();
     }
 
     /**
@@ -23,12 +104,162 @@ public class UsuarioService {
         // Validaciones
         validarCamposObligatorios(email, nombre, passwordPlano);
         validarFormatoEmail(email);
-        validarEmailUnico(email, null); // null porque es nuevo usuario
 
-        // [!] OJO: Encriptar contraseña antes de guardar
-        String passwordEncriptado = PasswordUtil.encrypt(passwordPlano);
+        // [!] OJO: Encriptar contraseña antes de guardar (fuera de la transaccion, no tiene que esperar al hash)
+        String passwordEncriptado = esperar(PasswordUtil.encryptAsync(passwordPlano));
         Usuario usuario = new Usuario(email, nombre, passwordEncriptado, edad);
-        return usuarioDAO.crear(usuario);
+
+        if (modoRegistro == ModoRegistro.DIRECTO) {
+            // Sin SELECT previo: si el email ya existe el DAO lanza EmailDuplicadoException ("ya esta registrado")
+            return crear(usuario);
+        }
+
+        // Comprobar y guardar en la misma unidad de trabajo: una conexion y un commit
+        return usuarioDAO.enUnidadDeTrabajo(() -> {
+            validarEmailUnico(email, null); // null porque es nuevo usuario
+            return usuarioDAO.crear(usuario);
+        });
+    }
+
+    /**
+     * Registra el usuario solo si el email no existe todavia (insert-if-absent).
+     * Es un INSERT directo, si el email ya esta cogido no falla: devuelve vacio y no toca al usuario existente.
+     * @return el usuario creado, o vacio si el email ya estaba registrado
+     */
+    public Optional<Usuario> registrarSiNoExiste(String email, String nombre, String passwordPlano, Integer edad) {
+        validarCamposObligatorios(email, nombre, passwordPlano);
+        validarFormatoEmail(email);
+
+        Usuario usuario = new Usuario(email, nombre, esperar(PasswordUtil.encryptAsync(passwordPlano)), edad);
+        try {
+            return Optional.of(crear(usuario));
+        } catch (EmailDuplicadoException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Registra muchos usuarios de golpe (importaciones de otros sistemas)
+     * Lee la entrada poco a poco y la procesa por lotes de tamanoLote: valida, comprueba los emails
+     * del lote con una sola consulta y los inserta en batch con un unico commit por lote.
+     * Las filas que fallan no paran la importacion, se apuntan en el resultado.
+     * @param filas entrada en streaming (la cierra quien la ha abierto). Una fila null es una fila que no se pudo leer
+     * @param tamanoLote numero de filas por transaccion
+     * @return resumen con los insertados y los errores de cada fila
+     */
+    public ResultadoImportacion registrarLote(Stream<UsuarioNuevo> filas, int tamanoLote) {
+        if (tamanoLote <= 0) {
+            throw new RuntimeException("[!] El tamaño de lote tiene que ser mayor que 0");
+        }
+        ResultadoImportacion resultado = new ResultadoImportacion();
+        List<UsuarioNuevo> lote = new ArrayList<>(tamanoLote);
+        long numeroFila = 0;
+        long primeraFilaLote = 1;
+
+        Iterator<UsuarioNuevo> it = filas.iterator();
+        while (it.hasNext()) {
+            lote.add(it.next());
+            numeroFila++;
+            if (lote.size() == tamanoLote) {
+                procesarLote(lote, primeraFilaLote, resultado);
+                lote.clear();
+                primeraFilaLote = numeroFila + 1;
+            }
+        }
+        if (!lote.isEmpty()) {
+            procesarLote(lote, primeraFilaLote, resultado);
+        }
+        return resultado;
+    }
+
+    public ResultadoImportacion registrarLote(Stream<UsuarioNuevo> filas) {
+        return registrarLote(filas, TAMANO_LOTE_POR_DEFECTO);
+    }
+
+    /**
+     * Procesa un lote de la importacion: validacion -> emails repetidos -> hash -> insert en batch
+     */
+    private void procesarLote(List<UsuarioNuevo> lote, long primeraFila, ResultadoImportacion resultado) {
+        resultado.sumarLeidas(lote.size());
+
+        // 1. Validaciones de formato (no tocan la bd) y emails repetidos dentro del propio lote.
+        // Las claves van normalizadas como compara MySQL (sin mayusculas ni acentos): "Ana@x.com" y "ana@x.com"
+        // chocan en el indice unico y harian fallar el insert del lote entero
+        Map<String, Long> filaPorEmail = new LinkedHashMap<>();
+        Map<String, UsuarioNuevo> validos = new LinkedHashMap<>();
+        for (int i = 0; i < lote.size(); i++) {
+            long fila = primeraFila + i;
+            UsuarioNuevo nuevo = lote.get(i);
+            try {
+                if (nuevo == null) {
+                    throw new RuntimeException("[!] La fila no tiene un formato valido");
+                }
+                validarCamposObligatorios(nuevo.email(), nuevo.nombre(), nuevo.password());
+                validarFormatoEmail(nuevo.email());
+                String clave = FiltroEmails.normalizar(nuevo.email());
+                if (filaPorEmail.containsKey(clave)) {
+                    throw new RuntimeException("[!] El email '" + nuevo.email() + "' esta repetido en la fila " + filaPorEmail.get(clave));
+                }
+                filaPorEmail.put(clave, fila);
+                validos.put(clave, nuevo);
+            } catch (RuntimeException e) {
+                resultado.agregarError(fila, nuevo == null ? null : nuevo.email(), e.getMessage());
+            }
+        }
+
+        // 2. Unicidad contra la bd: una consulta para todo el lote en vez de una por usuario
+        List<String> emails = validos.values().stream().map(UsuarioNuevo::email).toList();
+        for (String existente : usuarioDAO.buscarEmailsExistentes(emails)) {
+            String clave = FiltroEmails.normalizar(existente);
+            UsuarioNuevo repetido = validos.remove(clave);
+            if (repetido != null) {
+                resultado.agregarError(filaPorEmail.get(clave), repetido.email(), "[!] El email '" + existente + "' ya esta registrado");
+            }
+        }
+        if (validos.isEmpty()) {
+            return;
+        }
+
+        // 3. Encriptar contraseñas en paralelo en el pool de BCrypt (un hash por nucleo a la vez) y crear las entidades
+        Map<String, CompletableFuture<String>> hashes = new LinkedHashMap<>();
+        for (UsuarioNuevo nuevo : validos.values()) {
+            CompletableFuture<String> hash;
+            try {
+                hash = PasswordUtil.encryptAsync(nuevo.password());
+            } catch (RejectedExecutionException e) {
+                // Cola de BCrypt llena: esa fila sale con error, las demas siguen
+                hash = CompletableFuture.failedFuture(e);
+            }
+            hashes.put(nuevo.email(), hash);
+        }
+        List<Usuario> usuarios = new ArrayList<>(validos.size());
+        for (UsuarioNuevo nuevo : validos.values()) {
+            try {
+                usuarios.add(new Usuario(nuevo.email(), nuevo.nombre(), esperar(hashes.get(nuevo.email())), nuevo.edad()));
+            } catch (RuntimeException e) {
+                resultado.agregarError(filaPorEmail.get(FiltroEmails.normalizar(nuevo.email())), nuevo.email(), "[!] No se pudo encriptar la contraseña: " + e.getMessage());
+            }
+        }
+        if (usuarios.isEmpty()) {
+            return;
+        }
+
+        // 4. Insert en batch con un commit. Si falla (por ejemplo alguien ha registrado uno de los emails
+        // mientras tanto) el lote entero hace rollback y lo repetimos uno a uno para saber que fila es la mala
+        try {
+            usuarioDAO.crearLote(usuarios);
+            resultado.sumarInsertados(usuarios.size());
+        } catch (RuntimeException e) {
+            for (Usuario usuario : usuarios) {
+                usuario.setId(null); // el rollback no deshace los ids que ya se habian asignado
+                try {
+                    usuarioDAO.crear(usuario);
+                    resultado.sumarInsertados(1);
+                } catch (RuntimeException filaError) {
+                    resultado.agregarError(filaPorEmail.get(FiltroEmails.normalizar(usuario.getEmail())), usuario.getEmail(), "[!] No se pudo insertar: " + filaError.getMessage());
+                }
+            }
+        }
     }
 
     /**
@@ -36,18 +267,47 @@ public class UsuarioService {
      * @return Optional con el usuario si las credenciales son correctas
      */
     public Optional<Usuario> autenticar(String email, String passwordPlano) {
-        // 1. Primero vemos si existe su correo
-        Optional<Usuario> usuarioOpt = usuarioDAO.buscarPorEmail(email);
+        // 1. Primero vemos si existe su correo (en el primario: con una replica atrasada, despues de cambiar
+        // la contraseña seguiria valiendo la vieja un rato)
+        Optional<Usuario> usuarioOpt = usuarioDAO.enPrimario(() -> usuarioDAO.buscarPorEmail(email));
         if (usuarioOpt.isPresent()) {
             Usuario usuario = usuarioOpt.get();
-            // 2. Si existe el correo, miramos a ver si coinciden las contraseñas
-            if (PasswordUtil.verify(passwordPlano, usuario.getPassword())) {
+            // 2. Si existe el correo, miramos a ver si coinciden las contraseñas (sin BCrypt si acaba de entrar
+            // con la misma contraseña y el hash no ha cambiado, ver CacheCredenciales)
+            boolean enCache = credenciales != null
+                    && credenciales.yaVerificada(email, passwordPlano, usuario.getId(), usuario.getPassword());
+            if (enCache || esperar(PasswordUtil.verifyAsync(passwordPlano, usuario.getPassword()))) {
+                if (credenciales != null && !enCache) {
+                    credenciales.guardar(email, passwordPlano, usuario.getId(), usuario.getPassword());
+                }
+                // 3. Si su hash es de otro coste lo regeneramos en segundo plano (el login no espera)
+                if (PasswordUtil.necesitaRehash(usuario.getPassword())) {
+                    rehashEnSegundoPlano(usuario.getId(), usuario.getPassword(), passwordPlano);
+                }
                 return Optional.of(usuario);
             }
         }
         return Optional.empty();
     }
 
+    /**
+     * Genera el hash con el coste actual y lo guarda, sin bloquear al que llama. Asi toda la base de usuarios
+     * pasa al coste nuevo segun van entrando, sin migracion. Si falla no pasa nada: se reintenta en el siguiente login
+     */
+    private void rehashEnSegundoPlano(Long id, String hashAnterior, String passwordPlano) {
+        if (!rehashEnCurso.add(id)) {
+            return; // ya hay otro login de este usuario haciendolo
+        }
+        try {
+            PasswordUtil.encryptAsync(passwordPlano)
+                    .thenAcceptAsync(hashNuevo -> usuarioDAO.actualizarPasswordSiNoCambia(id, hashAnterior, hashNuevo), hilosRehash)
+                    .whenComplete((ok, error) -> rehashEnCurso.remove(id));
+        } catch (RuntimeException e) {
+            // Cola de BCrypt llena: el login ya es bueno, se hara en otro
+            rehashEnCurso.remove(id);
+        }
+    }
+
     /**
      * Busca un usuario por su ID.
      */
@@ -62,62 +322,351 @@ public class UsuarioService {
         return usuarioDAO.buscarPorEmail(email);
     }
 
+    /**
+     * Busca muchos usuarios por ID de una vez (en lotes, mirando antes la cache), en vez de llamar a buscarPorId
+     * en un bucle. Devuelve los encontrados en el orden pedido y los ids que no existen.
+     */
+    public ResultadoBusqueda<Long> buscarPorIds(Collection<Long> ids) {
+        return usuarioDAO.buscarPorIds(ids);
+    }
+
+    /**
+     * Lo mismo que buscarPorIds pero por email.
+     */
+    public ResultadoBusqueda<String> buscarPorEmails(Collection<String> emails) {
+        return usuarioDAO.buscarPorEmails(emails);
+    }
+
+    /**
+     * Busca un usuario por su ID y devuelve solo los datos visibles (sin contraseña).
+     * Es la que hay que usar para consultar, mas ligera que buscarPorId.
+     */
+    public Optional<UsuarioResumen> buscarResumenPorId(Long id) {
+        return usuarioDAO.buscarResumenPorId(id);
+    }
+
+    /**
+     * Busca un usuario por su email y devuelve solo los datos visibles (sin contraseña).
+     */
+    public Optional<UsuarioResumen> buscarResumenPorEmail(String email) {
+        return usuarioDAO.buscarResumenPorEmail(email);
+    }
+
     /**
      * Lista todos los usuarios.
+     * [!] Carga la tabla entera, para listados usar listarPagina o streamResumenes
      */
     public List<Usuario> listarTodos() {
         return usuarioDAO.listarTodos();
     }
 
     /**
-     * Actualiza los datos de un usuario (sin cambiar contraseña).
+     * Lista una pagina de usuarios ordenados por id.
+     * @param cursor siguienteCursor de la pagina anterior (null para la primera)
+     */
+    public Pagina<UsuarioResumen> listarPagina(String cursor, int tamano) {
+        return usuarioDAO.listarPagina(cursor, tamano);
+    }
+
+    /**
+     * Busca usuarios por prefijo de nombre y/o rango de edad (los criterios a null no filtran), por paginas.
+     * @param cursor siguienteCursor de la pagina anterior de la misma busqueda (null para la primera)
+     */
+    public Pagina<UsuarioResumen> buscar(CriteriosBusqueda criterios, String cursor, int tamano) {
+        return usuarioDAO.buscar(criterios == null ? CriteriosBusqueda.todos() : criterios, cursor, tamano);
+    }
+
+    /**
+     * Cuantos usuarios cumplen los criterios (sin traerlos)
+     */
+    public long contar(CriteriosBusqueda criterios) {
+        return usuarioDAO.contar(criterios == null ? CriteriosBusqueda.todos() : criterios);
+    }
+
+    /**
+     * Recorre todos los usuarios sin cargarlos a la vez en memoria (para exportaciones).
+     * [!] Usar con try-with-resources, el Stream mantiene abierta una conexion
+     */
+    public Stream<UsuarioResumen> streamResumenes() {
+        return usuarioDAO.streamResumenes(FETCH_SIZE_POR_DEFECTO);
+    }
+
+    /**
+     * Exporta todos los usuarios (sin contraseña) a un fichero CSV o JSONL, .gz para comprimirlo (ver EscritorUsuarios).
+     * Va leyendo y escribiendo a la vez, sin tener nunca la tabla en memoria.
+     * @param reanudar seguir una exportacion a este fichero que se corto, despues del ultimo usuario que llego a escribirse
+     */
+    public ResultadoExportacion exportar(Path fichero, boolean reanudar) {
+        long inicio = System.nanoTime();
+        try (EscritorUsuarios escritor = EscritorUsuarios.abrir(fichero, reanudar)) {
+            long filasAntes = escritor.filas();
+            try (Stream<UsuarioResumen> usuarios = usuarioDAO.streamExportacion(escritor.desdeId(), FETCH_SIZE_EXPORTACION)) {
+                usuarios.forEach(escritor::escribir);
+            }
+            escritor.terminar();
+            long milisegundos = (System.nanoTime() - inicio) / 1_000_000;
+            return new ResultadoExportacion(fichero, escritor.filas() - filasAntes, escritor.filas(), escritor.desdeId(),
+                    milisegundos, fichero.toFile().length());
+        }
+    }
+
+    /**
+     * Actualiza los datos de un usuario (sin cambiar contraseña). El usuario tiene que haberse leido antes.
+     * Se guarda con la version con la que se leyo: si otro lo ha cambiado mientras tanto, se vuelve a leer y se
+     * le aplican encima solo los campos (email, nombre, edad) que se han cambiado en este desde que se leyo, con los
+     * reintentos de PoliticaReintentos: lo que haya cambiado el otro en los demas campos se queda.
+     * Si el usuario no viene de la base de datos (solo se le ha puesto la version) el conflicto sale sin reintentar
      */
     public Usuario actualizar(Usuario usuario) {
         // Validaciones
         if (usuario == null || usuario.getId() == null) {
             throw new RuntimeException("[!] El usuario o su ID no pueden ser nulos");
         }
+        if (usuario.getVersion() == null) {
+            throw new RuntimeException("[!] El usuario no tiene version: hay que leerlo antes de actualizarlo");
+        }
         validarCamposObligatorios(usuario.getEmail(), usuario.getNombre(), usuario.getPassword());
         validarFormatoEmail(usuario.getEmail());
-        validarEmailUnico(usuario.getEmail(), usuario.getId()); // Pasamos el ID para excluirlo de la búsqueda
 
-        return usuarioDAO.actualizar(usuario);
+        Usuario actualizado;
+        if (usuario.sabeQueHaCambiado()) {
+            AtomicBoolean primerIntento = new AtomicBoolean(true);
+            actualizado = reintentos.ejecutar(() -> primerIntento.getAndSet(false)
+                    ? guardarActualizacion(usuario)
+                    : guardarActualizacion(reaplicar(usuario)));
+        } else {
+            actualizado = guardarActualizacion(usuario);
+        }
+        if (credenciales != null) {
+            credenciales.invalidarOtroEmail(usuario.getId(), actualizado.getEmail());
+        }
+        return actualizado;
+    }
+
+    /**
+     * Lee el usuario, le aplica los cambios y lo guarda en una transaccion, sin bloquear a nadie: si otro lo
+     * escribe entre medias se repite todo (leer otra vez y volver a llamar a cambios) con PoliticaReintentos.
+     * Para cambiar un campo sin pisar lo que cambien otros en los demas (p.ej. {@code u -> u.setEdad(u.getEdad() + 1)})
+     * @param cambios se puede llamar mas de una vez, cada vez con el usuario recien leido
+     */
+    public Usuario modificar(Long id, Consumer<Usuario> cambios) {
+        if (id == null) {
+            throw new RuntimeException("[!] El ID no puede ser nulo");
+        }
+        Usuario modificado = reintentos.ejecutar(() -> usuarioDAO.modificar(id, usuario -> {
+            cambios.accept(usuario);
+            validarCamposObligatorios(usuario.getEmail(), usuario.getNombre(), usuario.getPassword());
+            validarFormatoEmail(usuario.getEmail());
+        }).orElseThrow(() -> new RuntimeException("[!] Usuario no encontrado con ID: " + id)));
+        if (credenciales != null) {
+            credenciales.invalidarOtroEmail(id, modificado.getEmail());
+        }
+        return modificado;
+    }
+
+    // El merge, por el agrupador si esta activado
+    private Usuario guardarActualizacion(Usuario usuario) {
+        if (agrupador != null) {
+            // Sin SELECT previo, con el resto del grupo: si el email es de otro salta la restriccion UNIQUE
+            Usuario actualizado = esperar(agrupador.actualizar(usuario));
+            usuarioDAO.marcarEscrito(); // lo ha escrito el hilo del agrupador: las lecturas de este, al primario
+            return actualizado;
+        }
+        return usuarioDAO.enUnidadDeTrabajo(() -> {
+            validarEmailUnico(usuario.getEmail(), usuario.getId()); // Pasamos el ID para excluirlo de la búsqueda
+            return usuarioDAO.actualizar(usuario);
+        });
+    }
+
+    // Lo que hay ahora en la tabla (version incluida) con los campos que el usuario ha cambiado desde que se leyo
+    private Usuario reaplicar(Usuario usuario) {
+        Usuario actual = usuarioDAO.releer(usuario.getId())
+                .orElseThrow(() -> new RuntimeException("[!] Usuario no encontrado con ID: " + usuario.getId()));
+        usuario.copiarCambiosA(actual);
+        return actual;
+    }
+
+    /**
+     * Actualiza solo los campos que vienen con valor (null = se mantiene el actual).
+     * El UPDATE lleva solo las columnas que cambian. No comprueba la version (para eso actualizar o modificar).
+     */
+    public void actualizarCampos(Long id, String email, String nombre, Integer edad) {
+        // Validaciones (solo de lo que se cambia)
+        if (id == null) {
+            throw new RuntimeException("[!] El ID no puede ser nulo");
+        }
+        if (nombre != null && nombre.trim().isEmpty()) {
+            throw new RuntimeException("[!] El nombre es obligatorio");
+        }
+        if (email != null) {
+            validarFormatoEmail(email);
+        }
+
+        usuarioDAO.enUnidadDeTrabajo(() -> {
+            if (email != null) {
+                validarEmailUnico(email, id);
+            }
+            if (usuarioDAO.actualizarCampos(id, email, nombre, edad) == 0) {
+                throw new RuntimeException("[!] Usuario no encontrado con ID: " + id);
+            }
+            return null;
+        });
+        if (credenciales != null && email != null) {
+            credenciales.invalidarOtroEmail(id, email);
+        }
     }
 
     /**
      * Cambia la contraseña de un usuario.
      */
-    public Usuario cambiarPassword(Long id, String nuevaPasswordPlana) {
+    public void cambiarPassword(Long id, String nuevaPasswordPlana) {
         // Validación de contraseña
         if (nuevaPasswordPlana == null || nuevaPasswordPlana.trim().isEmpty()) {
             throw new RuntimeException("[!] La contraseña no puede estar vacía");
         }
 
-        // 1. Primero buscamos a ver si existe el usuario
-        Optional<Usuario> usuarioOpt = usuarioDAO.buscarPorId(id);
-        if (usuarioOpt.isPresent()) {
-            Usuario usuario = usuarioOpt.get();
-            // 2. Si existe le ponemos la nueva contraseña
-            usuario.setPassword(PasswordUtil.encrypt(nuevaPasswordPlana));
-            return usuarioDAO.actualizar(usuario);
+        // Si no ha cambiado ninguna fila es que el usuario no existe
+        if (usuarioDAO.actualizarPassword(id, esperar(PasswordUtil.encryptAsync(nuevaPasswordPlana))) == 0) {
+            throw new RuntimeException("[!] Usuario no encontrado con ID: " + id);
+        }
+        if (credenciales != null) {
+            credenciales.invalidar(id); // la contraseña vieja ya no puede entrar por la cache
         }
-        throw new RuntimeException("[!] Usuario no encontrado con ID: " + id);
     }
 
     /**
      * Elimina un usuario por su ID.
      */
     public boolean eliminar(Long id) {
-        return usuarioDAO.eliminar(id);
+        boolean eliminado = usuarioDAO.eliminar(id) > 0;
+        if (credenciales != null) {
+            credenciales.invalidar(id);
+        }
+        return eliminado;
+    }
+
+    /**
+     * Estado del pool de conexiones: activas, libres, esperando y latencia de adquisicion.
+     */
+    public MetricasPool.EstadoPool estadoPool() {
+        return usuarioDAO.estadoPool();
+    }
+
+    /**
+     * Aciertos y fallos de la cache de segundo nivel (por id y por email).
+     */
+    public EstadisticasCache estadisticasCache() {
+        return usuarioDAO.estadisticasCache();
+    }
+
+    /**
+     * Filtro de emails: memoria, probabilidad de falso positivo y cuantas busquedas se ha ahorrado.
+     */
+    public FiltroEmails.EstadoFiltro estadoFiltroEmails() {
+        return usuarioDAO.estadoFiltroEmails();
+    }
+
+    /**
+     * Reparto de lecturas entre el primario y las replicas, y replicas apartadas por fallos.
+     */
+    public EnrutadorReplicas.EstadoReplicas estadoReplicas() {
+        return usuarioDAO.estadoReplicas();
+    }
+
+    /**
+     * Conexiones reservadas por el limitador del DAO y cuantos hilos esperan a una.
+     */
+    public LimitadorConexiones.EstadoConexiones estadoConexiones() {
+        return usuarioDAO.estadoConexiones();
+    }
+
+    /**
+     * Cubetas y pool de cada shard, vacio sin shards
+     */
+    public List<UsuarioDAOShards.EstadoShard> estadoShards() {
+        return usuarioDAO instanceof UsuarioDAOShards shards ? shards.estadoShards() : List.of();
+    }
+
+    /**
+     * Estado del group commit, vacio si no esta activado
+     */
+    public Optional<AgrupadorEscrituras.EstadoAgrupador> estadoAgrupador() {
+        return Optional.ofNullable(agrupador).map(AgrupadorEscrituras::estado);
+    }
+
+    /**
+     * Cache de logins: aciertos, tasa de aciertos y tiempo de BCrypt ahorrado, vacio si no esta activada
+     */
+    public Optional<CacheCredenciales.EstadoCredenciales> estadoCredenciales() {
+        return Optional.ofNullable(credenciales).map(CacheCredenciales::estado);
+    }
+
+    /**
+     * Conflictos de version: operaciones que han chocado, reintentos y las que se han quedado sin intentos
+     */
+    public PoliticaReintentos.EstadoReintentos estadoReintentos() {
+        return reintentos.estado();
+    }
+
+    /**
+     * Contadores de Hibernate: consultas, cargas, sentencias y las consultas mas lentas.
+     */
+    public EstadisticasHibernate estadisticasHibernate() {
+        return usuarioDAO.estadisticasHibernate();
+    }
+
+    /**
+     * Latencia (p50/p99/p99.9/max), errores y filas de cada operacion del DAO y de BCrypt.
+     */
+    public Map<String, MetricasOperacion.Resumen> metricasOperaciones() {
+        return RegistroMetricas.resumen();
+    }
+
+    /**
+     * Estado del pool de BCrypt: tareas en cola, rechazadas y tiempo de espera en la cola.
+     */
+    public EjecutorHash.EstadoHash estadoHash() {
+        return EjecutorHash.compartido().estado();
     }
 
     /**
      * Cierra los recursos del servicio.
      */
     public void cerrar() {
+        if (agrupador != null) {
+            agrupador.cerrar();
+        }
+        hilosRehash.close(); // espera a los rehash que esten guardandose
         usuarioDAO.cerrar();
     }
 
+    /**
+     * INSERT de un usuario, por el agrupador de escrituras si esta activado (un commit para todo el grupo)
+     */
+    private Usuario crear(Usuario usuario) {
+        if (agrupador == null) {
+            return usuarioDAO.crear(usuario);
+        }
+        Usuario creado = esperar(agrupador.crear(usuario));
+        usuarioDAO.marcarEscrito(); // lo ha escrito el hilo del agrupador: las lecturas de este, al primario
+        return creado;
+    }
+
+    /**
+     * Espera al resultado de una tarea del pool de BCrypt o del agrupador. Si la tarea ha fallado lanza su excepcion original
+     * (join() la envuelve en CompletionException)
+     */
+    private static <T> T esperar(CompletableFuture<T> tarea) {
+        try {
+            return tarea.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException causa) {
+                throw causa;
+            }
+            throw e;
+        }
+    }
+
     /**
      * Metodos de validacion (hibernate.validation es mejor y mas recomendado pero manualmente seria asi)
      */
@@ -141,13 +690,18 @@ public class UsuarioService {
      * Valida que el email tenga un formato válido usando regex simple
      */
     private void validarFormatoEmail(String email) {
-        // he buscado el regex y este es el basico para email: "algo + '@' + algo + '.' + algo"
-        String regex = "^[A-Za-z0-9+_.-]+@[A-Za-z0-9.-]+\\.[A-Za-z]{2,}$";
-        if (!email.matches(regex)) {
+        if (!esFormatoEmailValido(email)) {
             throw new RuntimeException("[!] El formato del email no es correcto");
         }
     }
 
+    /**
+     * Comprueba el formato del email con el regex ya compilado (String.matches lo compila en cada llamada)
+     */
+    public static boolean esFormatoEmailValido(String email) {
+        return PATRON_EMAIL.matcher(email).matches();
+    }
+
     /**
      * Valida que el email no esté duplicado en la base de datos
      * @param email Email a validar
@@ -159,7 +713,7 @@ public class UsuarioService {
         if (usuarioExistente.isPresent()) {
             // Si es un nuevo registro o el email pertenece a otro usuario
             if (idUsuarioActual == null || !usuarioExistente.get().getId().equals(idUsuarioActual)) {
-                throw new RuntimeException("[!] El email '" + email + "' ya esta registrado");
+                throw new EmailDuplicadoException(email);
             }
         }
     }
@@ -0,0 +1,102 @@
+package es.accesodatos.service;
+
+import es.accesodatos.entity.Usuario;
+import es.accesodatos.metricas.DetectorPinning;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Version asincrona de UsuarioService para llamantes con mucha concurrencia.
+ * Cada llamada corre en su propio hilo virtual, asi que puede haber decenas de miles en vuelo sin un pool enorme:
+ * - BCrypt sigue en su pool de CPU (EjecutorHash), el hilo virtual solo espera al resultado
+ * - La base de datos la limita el DAO a tantas a la vez como conexiones tiene el pool (LimitadorConexiones),
+ *   el resto espera aparcado
+ * Con -Dusuarios.async.detectar-pinning=true escucha los eventos JFR de hilos virtuales fijados (ver estado())
+ */
+public class UsuarioServiceAsync {
+
+    /**
+     * Foto de la fachada: peticiones en vuelo y terminadas, conexiones libres/esperando y hilos fijados (-1 si no se mira)
+     */
+    public record EstadoAsync(long enCurso, long completadas, int conexionesLibres, int esperandoConexion,
+                              long hilosFijados) {
+    }
+
+    private final UsuarioService service;
+    private final ExecutorService hilosVirtuales =
+            Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("usuarios-async-", 0).factory());
+    private final AtomicLong enCurso = new AtomicLong();
+    private final LongAdder completadas = new LongAdder();
+    private final DetectorPinning detectorPinning;
+
+    public UsuarioServiceAsync(UsuarioService service) {
+        this.service = service;
+        this.detectorPinning = Boolean.getBoolean("usuarios.async.detectar-pinning") ? DetectorPinning.arrancar() : null;
+    }
+
+    public CompletableFuture<Usuario> registrar(String email, String nombre, String passwordPlano, Integer edad) {
+        return enHiloVirtual(() -> service.registrar(email, nombre, passwordPlano, edad));
+    }
+
+    public CompletableFuture<Optional<Usuario>> autenticar(String email, String passwordPlano) {
+        return enHiloVirtual(() -> service.autenticar(email, passwordPlano));
+    }
+
+    public CompletableFuture<Optional<Usuario>> buscarPorId(Long id) {
+        return enHiloVirtual(() -> service.buscarPorId(id));
+    }
+
+    public CompletableFuture<Optional<Usuario>> buscarPorEmail(String email) {
+        return enHiloVirtual(() -> service.buscarPorEmail(email));
+    }
+
+    public CompletableFuture<Usuario> actualizar(Usuario usuario) {
+        return enHiloVirtual(() -> service.actualizar(usuario));
+    }
+
+    public CompletableFuture<Usuario> modificar(Long id, Consumer<Usuario> cambios) {
+        return enHiloVirtual(() -> service.modificar(id, cambios));
+    }
+
+    public CompletableFuture<Boolean> eliminar(Long id) {
+        return enHiloVirtual(() -> service.eliminar(id));
+    }
+
+    private <T> CompletableFuture<T> enHiloVirtual(Supplier<T> trabajo) {
+        enCurso.incrementAndGet();
+        return CompletableFuture.supplyAsync(trabajo, hilosVirtuales)
+                .whenComplete((resultado, error) -> {
+                    enCurso.decrementAndGet();
+                    completadas.increment();
+                });
+    }
+
+    public EstadoAsync estado() {
+        var conexiones = service.estadoConexiones();
+        return new EstadoAsync(enCurso.get(), completadas.sum(), conexiones.libres(), conexiones.esperando(),
+                detectorPinning != null ? detectorPinning.fijados() : -1);
+    }
+
+    /**
+     * Donde se fijo un hilo virtual la ultima vez, o null (si no ha pasado o no se esta mirando)
+     */
+    public String ultimoPinning() {
+        return detectorPinning != null ? detectorPinning.ultimaTraza() : null;
+    }
+
+    /**
+     * Deja de aceptar peticiones y espera a las que estan en vuelo. No cierra el UsuarioService (es de quien lo crea)
+     */
+    public void cerrar() {
+        hilosVirtuales.close();
+        if (detectorPinning != null) {
+            detectorPinning.cerrar();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package es.accesodatos.util;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool de hilos solo para BCrypt. Cada hash son decenas de ms de CPU pura: si se hacen en los hilos que atienden
+ * peticiones, en un pico de logins ocupan todos los nucleos y las peticiones que solo esperan a la bd se quedan atras.
+ * Aqui como mucho hay un hash por nucleo a la vez y una cola limitada detras.
+ *
+ * Configuracion al arrancar:
+ * -Dpassword.hash.hilos=N        hilos (por defecto uno por nucleo)
+ * -Dpassword.hash.cola=N         tareas esperando como maximo (por defecto 1000)
+ * -Dpassword.hash.rechazo=rechazar|llamante  que hacer con la cola llena: se rechaza con error (por defecto)
+ *                                o el que llama hace el hash el mismo. llamante frena al que envia, pero a costa de
+ *                                meter BCrypt en los hilos de peticiones y en los virtuales, justo lo que este pool evita
+ */
+public class EjecutorHash implements Executor {
+
+    /**
+     * Foto del ejecutor: tareas en cola, completadas, rechazadas y cuanto esperan en la cola
+     */
+    public record EstadoHash(int hilos, int enCola, long completadas, long rechazadas,
+                             double esperaMediaMs, double esperaMaxMs) {
+    }
+
+    private static final EjecutorHash COMPARTIDO = new EjecutorHash(
+            Integer.getInteger("password.hash.hilos", Runtime.getRuntime().availableProcessors()),
+            Integer.getInteger("password.hash.cola", 1000),
+            !"llamante".equalsIgnoreCase(System.getProperty("password.hash.rechazo", "rechazar")));
+
+    private final ThreadPoolExecutor pool;
+    private final LongAdder completadas = new LongAdder();
+    private final LongAdder rechazadas = new LongAdder();
+    private final LongAdder nanosEspera = new LongAdder();
+    private final AtomicLong maxNanosEspera = new AtomicLong();
+
+    public EjecutorHash(int hilos, int capacidadCola, boolean rechazarSiLleno) {
+        AtomicInteger contador = new AtomicInteger();
+        ThreadFactory factoria = tarea -> {
+            Thread hilo = new Thread(tarea, "bcrypt-" + contador.incrementAndGet());
+            hilo.setDaemon(true); // no impide que la aplicacion termine
+            return hilo;
+        };
+        RejectedExecutionHandler politica = rechazarSiLleno
+                ? (tarea, ejecutor) -> {
+                    throw new RejectedExecutionException("[!] La cola de BCrypt esta llena (" + capacidadCola
+                            + " hashes esperando), vuelve a intentarlo en un momento");
+                }
+                : new ThreadPoolExecutor.CallerRunsPolicy();
+        this.pool = new ThreadPoolExecutor(hilos, hilos, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacidadCola), factoria, (tarea, ejecutor) -> {
+            rechazadas.increment();
+            politica.rejectedExecution(tarea, ejecutor);
+        });
+    }
+
+    public static EjecutorHash compartido() {
+        return COMPARTIDO;
+    }
+
+    /**
+     * Encola la tarea apuntando cuanto tiempo pasa en la cola hasta que un hilo la coge
+     */
+    @Override
+    public void execute(Runnable tarea) {
+        long encolada = System.nanoTime();
+        pool.execute(() -> {
+            long espera = System.nanoTime() - encolada;
+            nanosEspera.add(espera);
+            maxNanosEspera.accumulateAndGet(espera, Math::max);
+            try {
+                tarea.run();
+            } finally {
+                completadas.increment();
+            }
+        });
+    }
+
+    public EstadoHash estado() {
+        long total = completadas.sum();
+        double mediaMs = total == 0 ? 0 : nanosEspera.sum() / (double) total / 1_000_000;
+        return new EstadoHash(pool.getMaximumPoolSize(), pool.getQueue().size(), total, rechazadas.sum(),
+                mediaMs, maxNanosEspera.get() / 1_000_000.0);
+    }
+}
@@ -0,0 +1,235 @@
+package es.accesodatos.util;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.accesodatos.dto.UsuarioResumen;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Escribe usuarios para la exportacion (CSV o JSONL, opcionalmente con gzip) sin acumularlos en memoria:
+ * las filas van a un buffer de TAMANO_TRAMO bytes y cada vez que se llena se escribe en el FileChannel.
+ * Nunca lleva la contraseña: escribe UsuarioResumen, que no la tiene.
+ *
+ * Para poder reanudar: al acabar cada tramo se apunta en fichero.progreso el ultimo id escrito y hasta que
+ * byte del fichero esta bien. Si se corta, al reanudar se corta el fichero por ahi y se sigue despues de ese id.
+ * Con gzip cada tramo es un miembro gzip completo (un fichero .gz puede tener varios seguidos, gzip -d y
+ * GZIPInputStream los leen como uno), asi el corte siempre cae entre dos miembros
+ */
+public class EscritorUsuarios implements Closeable {
+
+    private static final int TAMANO_TRAMO = 1 << 20; // 1 MiB sin comprimir por escritura y por punto de control
+    private static final String CABECERA_CSV = "id,email,nombre,edad\n";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final Path fichero;
+    private final Path progreso;
+    private final boolean jsonl;
+    private final boolean gzip;
+    private final FileChannel canal;
+    private final OutputStream salidaGzip; // el canal, para los GZIPOutputStream de cada tramo
+    private final ByteBuffer buffer = ByteBuffer.allocate(TAMANO_TRAMO);
+    private final long desdeId;
+    private long ultimoId;
+    private long filas;
+
+    private EscritorUsuarios(Path fichero, boolean reanudar) throws IOException {
+        this.fichero = fichero;
+        this.progreso = fichero.resolveSibling(fichero.getFileName() + ".progreso");
+        String nombre = fichero.getFileName().toString().toLowerCase();
+        this.gzip = nombre.endsWith(".gz");
+        String sinGz = gzip ? nombre.substring(0, nombre.length() - 3) : nombre;
+        this.jsonl = sinGz.endsWith(".jsonl") || sinGz.endsWith(".json");
+
+        if (reanudar) {
+            if (!Files.exists(progreso)) {
+                throw new RuntimeException("[!] No hay ninguna exportacion a medias de " + fichero + " (falta " + progreso + ")");
+            }
+            Properties punto = leerProgreso();
+            this.desdeId = Long.parseLong(punto.getProperty("ultimoId"));
+            this.filas = Long.parseLong(punto.getProperty("filas"));
+            this.canal = FileChannel.open(fichero, StandardOpenOption.WRITE);
+            canal.truncate(Long.parseLong(punto.getProperty("bytes"))); // lo que se escribio despues del ultimo punto
+            canal.position(canal.size());
+        } else {
+            this.desdeId = 0;
+            this.canal = FileChannel.open(fichero, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            if (!jsonl) {
+                buffer.put(CABECERA_CSV.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        this.ultimoId = desdeId;
+        this.salidaGzip = new SinCerrar(Channels.newOutputStream(canal));
+    }
+
+    /**
+     * Formato por la extension, como LectorUsuarios: .jsonl/.json -> JSONL, el resto CSV. Acabado en .gz, comprimido
+     * @param reanudar seguir una exportacion que se corto (necesita el fichero .progreso)
+     */
+    public static EscritorUsuarios abrir(Path fichero, boolean reanudar) {
+        try {
+            return new EscritorUsuarios(fichero, reanudar);
+        } catch (IOException e) {
+            throw new UncheckedIOException("[!] No se pudo abrir el fichero " + fichero, e);
+        }
+    }
+
+    /**
+     * Ultimo id que ya estaba escrito al abrir (0 si se empieza de cero): hay que seguir por el siguiente
+     */
+    public long desdeId() {
+        return desdeId;
+    }
+
+    /**
+     * Filas del fichero, contando las de antes de reanudar
+     */
+    public long filas() {
+        return filas;
+    }
+
+    public void escribir(UsuarioResumen usuario) {
+        byte[] linea = (jsonl ? json(usuario) : csv(usuario)).getBytes(StandardCharsets.UTF_8);
+        if (linea.length > buffer.remaining()) {
+            vaciar();
+        }
+        buffer.put(linea);
+        ultimoId = usuario.id();
+        filas++;
+    }
+
+    /**
+     * Ha terminado bien: escribe lo que queda y borra el .progreso (ya no hay nada que reanudar)
+     */
+    public void terminar() {
+        close();
+        try {
+            Files.deleteIfExists(progreso);
+        } catch (IOException e) {
+            throw new UncheckedIOException("[!] No se pudo borrar " + progreso, e);
+        }
+    }
+
+    /**
+     * Escribe lo que queda en el buffer y cierra. Si no se ha llamado a terminar() el .progreso se queda para reanudar
+     */
+    @Override
+    public void close() {
+        if (!canal.isOpen()) {
+            return;
+        }
+        try {
+            vaciar();
+        } finally {
+            try {
+                canal.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("[!] No se pudo cerrar " + fichero, e);
+            }
+        }
+    }
+
+    /**
+     * Escribe el tramo del buffer en el canal (comprimido si toca), lo baja a disco y apunta el punto de control
+     */
+    private void vaciar() {
+        if (buffer.position() == 0) {
+            return;
+        }
+        buffer.flip();
+        try {
+            if (gzip) {
+                // Un miembro gzip por tramo. Se cierra para que suelte ya la memoria nativa de su Deflater (si no,
+                // una por tramo hasta que pase el GC); salidaGzip no deja que cierre tambien el canal
+                try (GZIPOutputStream comprimido = new GZIPOutputStream(salidaGzip, 64 * 1024)) {
+                    comprimido.write(buffer.array(), 0, buffer.limit());
+                }
+            } else {
+                while (buffer.hasRemaining()) {
+                    canal.write(buffer);
+                }
+            }
+            canal.force(false); // el punto de control no puede apuntar a bytes que aun no estan en disco
+            guardarProgreso();
+        } catch (IOException e) {
+            throw new UncheckedIOException("[!] No se pudo escribir en " + fichero, e);
+        }
+        buffer.clear();
+    }
+
+    // Escribe en el canal pero close() no lo cierra, solo vacia
+    private static final class SinCerrar extends FilterOutputStream {
+
+        SinCerrar(OutputStream salida) {
+            super(salida);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len); // el de FilterOutputStream escribe byte a byte
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    // Se escribe en un temporal y se renombra, asi nunca queda un .progreso a medias
+    private void guardarProgreso() throws IOException {
+        Properties punto = new Properties();
+        punto.setProperty("ultimoId", Long.toString(ultimoId));
+        punto.setProperty("filas", Long.toString(filas));
+        punto.setProperty("bytes", Long.toString(canal.position()));
+        Path temporal = progreso.resolveSibling(progreso.getFileName() + ".tmp");
+        try (Writer escritor = Files.newBufferedWriter(temporal, StandardCharsets.UTF_8)) {
+            punto.store(escritor, "exportacion de " + fichero.getFileName() + " a medias, para reanudar");
+        }
+        Files.move(temporal, progreso, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private Properties leerProgreso() throws IOException {
+        Properties punto = new Properties();
+        try (Reader lector = Files.newBufferedReader(progreso, StandardCharsets.UTF_8)) {
+            punto.load(lector);
+        }
+        return punto;
+    }
+
+    private static String json(UsuarioResumen usuario) {
+        try {
+            return MAPPER.writeValueAsString(usuario) + "\n";
+        } catch (JsonProcessingException e) {
+            throw new RuntimeException("[!] No se pudo convertir a JSON el usuario " + usuario.id(), e);
+        }
+    }
+
+    // Mismo formato que lee LectorUsuarios: entre comillas si lleva coma, comillas o salto de linea
+    private static String csv(UsuarioResumen usuario) {
+        return usuario.id() + "," + campoCsv(usuario.email()) + "," + campoCsv(usuario.nombre()) + ","
+                + (usuario.edad() == null ? "" : usuario.edad()) + "\n";
+    }
+
+    private static String campoCsv(String valor) {
+        if (valor.contains(",") || valor.contains("\"") || valor.contains("\n") || valor.contains("\r")) {
+            return "\"" + valor.replace("\"", "\"\"") + "\"";
+        }
+        return valor;
+    }
+}
@@ -0,0 +1,116 @@
+package es.accesodatos.util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Filtro de Bloom de cadenas: dice si un valor "puede estar" o "seguro que no esta" sin guardar los valores.
+ * Nunca da falsos negativos, falsos positivos con la probabilidad que se le pida (si no se pasa de la capacidad).
+ * No se pueden quitar elementos: para eso hay que construir uno nuevo.
+ * Se puede usar desde varios hilos a la vez (los bits se ponen con CAS)
+ */
+public class FiltroBloom {
+
+    private static final double LN2 = Math.log(2);
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int funcionesHash;
+    private final long capacidad;
+
+    /**
+     * @param capacidad cuantos elementos se esperan como mucho
+     * @param probabilidadFalsoPositivo por ejemplo 0.01 para un 1%
+     */
+    public FiltroBloom(long capacidad, double probabilidadFalsoPositivo) {
+        if (capacidad <= 0) {
+            throw new RuntimeException("[!] La capacidad del filtro tiene que ser mayor que 0");
+        }
+        if (probabilidadFalsoPositivo <= 0 || probabilidadFalsoPositivo >= 1) {
+            throw new RuntimeException("[!] La probabilidad de falso positivo tiene que estar entre 0 y 1");
+        }
+        // Formulas de siempre: m = -n ln(p) / ln(2)^2 bits, k = m/n ln(2) funciones hash
+        long optimo = (long) Math.ceil(-capacidad * Math.log(probabilidadFalsoPositivo) / (LN2 * LN2));
+        long palabras = Math.max(1, (optimo + 63) / 64);
+        if (palabras > Integer.MAX_VALUE) {
+            throw new RuntimeException("[!] El filtro seria demasiado grande, baja la capacidad o sube la probabilidad");
+        }
+        this.bits = new AtomicLongArray((int) palabras);
+        this.numBits = palabras * 64;
+        this.funcionesHash = Math.max(1, (int) Math.round((double) numBits / capacidad * LN2));
+        this.capacidad = capacidad;
+    }
+
+    public void agregar(String valor) {
+        long h1 = hash(valor);
+        long h2 = mezclar(h1 ^ 0x9E3779B97F4A7C15L) | 1; // impar para recorrer bien todas las posiciones
+        for (int i = 0; i < funcionesHash; i++) {
+            long posicion = Math.floorMod(h1 + i * h2, numBits);
+            long mascara = 1L << posicion;
+            int palabra = (int) (posicion >>> 6);
+            if ((bits.get(palabra) & mascara) == 0) {
+                bits.getAndAccumulate(palabra, mascara, (actual, m) -> actual | m);
+            }
+        }
+    }
+
+    /**
+     * @return false si el valor seguro que no se ha agregado nunca, true si puede que si
+     */
+    public boolean puedeContener(String valor) {
+        long h1 = hash(valor);
+        long h2 = mezclar(h1 ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < funcionesHash; i++) {
+            long posicion = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits.get((int) (posicion >>> 6)) & (1L << posicion)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Probabilidad de falso positivo ahora mismo, segun los bits que ya estan a 1: (bits a 1 / total)^k.
+     * Sube segun se llena; si pasa mucho de la pedida es que se ha superado la capacidad
+     */
+    public double probabilidadFalsoPositivoActual() {
+        long aUno = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            aUno += Long.bitCount(bits.get(i));
+        }
+        return Math.pow((double) aUno / numBits, funcionesHash);
+    }
+
+    public long capacidad() {
+        return capacidad;
+    }
+
+    public long numBits() {
+        return numBits;
+    }
+
+    public int funcionesHash() {
+        return funcionesHash;
+    }
+
+    // Memoria que ocupan los bits
+    public long bytes() {
+        return numBits / 8;
+    }
+
+    // FNV-1a de 64 bits sobre los caracteres y luego una mezcla para repartir mejor los bits
+    private static long hash(String valor) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < valor.length(); i++) {
+            h ^= valor.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mezclar(h);
+    }
+
+    // Finalizador de SplitMix64
+    private static long mezclar(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,112 @@
+package es.accesodatos.util;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import es.accesodatos.dto.UsuarioNuevo;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Lee ficheros de usuarios para la importacion masiva (CSV o JSONL)
+ * Los ficheros se leen linea a linea (Files.lines es perezoso), nunca se cargan enteros en memoria.
+ * Las lineas que no se pueden leer se devuelven como null para que el servicio las apunte como error.
+ * [!] El Stream hay que cerrarlo (try-with-resources) para cerrar el fichero
+ */
+public class LectorUsuarios {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    /**
+     * Elige el formato por la extension: .jsonl o .json -> JSONL, cualquier otra -> CSV
+     */
+    public static Stream<UsuarioNuevo> leer(Path fichero) {
+        String nombre = fichero.getFileName().toString().toLowerCase();
+        return nombre.endsWith(".jsonl") || nombre.endsWith(".json") ? leerJsonl(fichero) : leerCsv(fichero);
+    }
+
+    /**
+     * CSV con cabecera: email,nombre,password,edad (la edad puede ir vacia)
+     */
+    public static Stream<UsuarioNuevo> leerCsv(Path fichero) {
+        return lineas(fichero)
+                .skip(1) // cabecera
+                .filter(linea -> !linea.isBlank())
+                .map(LectorUsuarios::parsearCsv);
+    }
+
+    /**
+     * JSONL: un objeto por linea, {"email":"...","nombre":"...","password":"...","edad":30}
+     */
+    public static Stream<UsuarioNuevo> leerJsonl(Path fichero) {
+        return lineas(fichero)
+                .filter(linea -> !linea.isBlank())
+                .map(LectorUsuarios::parsearJson);
+    }
+
+    private static Stream<String> lineas(Path fichero) {
+        try {
+            return Files.lines(fichero, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("[!] No se pudo abrir el fichero " + fichero, e);
+        }
+    }
+
+    private static UsuarioNuevo parsearJson(String linea) {
+        try {
+            return MAPPER.readValue(linea, UsuarioNuevo.class);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static UsuarioNuevo parsearCsv(String linea) {
+        List<String> campos = separarCsv(linea);
+        if (campos.size() != 4) {
+            return null;
+        }
+        try {
+            String edad = campos.get(3).trim();
+            return new UsuarioNuevo(campos.get(0).trim(), campos.get(1).trim(), campos.get(2),
+                    edad.isEmpty() ? null : Integer.valueOf(edad));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Separa una linea CSV por comas respetando los campos entre comillas ("a,b" y "" para una comilla)
+     */
+    private static List<String> separarCsv(String linea) {
+        List<String> campos = new ArrayList<>();
+        StringBuilder actual = new StringBuilder();
+        boolean entreComillas = false;
+        for (int i = 0; i < linea.length(); i++) {
+            char c = linea.charAt(i);
+            if (entreComillas) {
+                if (c == '"' && i + 1 < linea.length() && linea.charAt(i + 1) == '"') {
+                    actual.append('"');
+                    i++;
+                } else if (c == '"') {
+                    entreComillas = false;
+                } else {
+                    actual.append(c);
+                }
+            } else if (c == '"') {
+                entreComillas = true;
+            } else if (c == ',') {
+                campos.add(actual.toString());
+                actual.setLength(0);
+            } else {
+                actual.append(c);
+            }
+        }
+        campos.add(actual.toString());
+        return campos;
+    }
+}
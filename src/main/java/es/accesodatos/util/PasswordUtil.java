@@ -1,19 +1,31 @@
 package es.accesodatos.util;
 
+import es.accesodatos.metricas.RegistroMetricas;
 import org.mindrot.jbcrypt.BCrypt;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Utilidad para encriptar y verificar contraseñas usando BCrypt.
+ *
+ * El coste (cuantas vueltas hace BCrypt, 2^coste) se elige al arrancar midiendo cuanto tarda un hash en esta maquina:
+ * el mas alto que quepa en -Dpassword.bcrypt.presupuesto-ms (por defecto 100 ms), nunca menos de 10.
+ * Con -Dpassword.bcrypt.coste=N se fija a mano y no se mide nada.
  */
 public class PasswordUtil {
 
+    private static final int COSTE_MINIMO = 10; // el de BCrypt.gensalt() por defecto
+    private static final int COSTE_MAXIMO = 31; // limite de BCrypt
+    private static volatile int costeObjetivo; // 0 = sin calcular todavia
+
     /**
      * Encripta una contraseña en texto plano
      * @param passTexto contraseña sin encriptar
      * @return hash BCrypt de la contraseña
      */
     public static String encrypt(String passTexto) {
-        return BCrypt.hashpw(passTexto, BCrypt.gensalt()); // esta es la funcion que encrypta y te devuleve el hash
+        int coste = coste(); // fuera de la medicion para no contar la calibracion como un hash
+        return RegistroMetricas.medir("hash.encrypt",
+                () -> BCrypt.hashpw(passTexto, BCrypt.gensalt(coste))); // esta es la funcion que encrypta y te devuleve el hash
     }
 
     /**
@@ -24,6 +36,91 @@ public class PasswordUtil {
      * @return true si coinciden false si no
      */
     public static boolean verify(String passTexto, String passHashed) {
-        return BCrypt.checkpw(passTexto, passHashed); // esta es la funcion que compara contraseñas ¿hash1 == hash2?
+        return RegistroMetricas.medir("hash.verify",
+                () -> BCrypt.checkpw(passTexto, passHashed)); // esta es la funcion que compara contraseñas ¿hash1 == hash2?
+    }
+
+    /**
+     * Igual que encrypt pero en el pool de BCrypt (EjecutorHash), el hilo que llama queda libre
+     * @return el hash cuando este calculado
+     */
+    public static CompletableFuture<String> encryptAsync(String passTexto) {
+        return CompletableFuture.supplyAsync(() -> encrypt(passTexto), EjecutorHash.compartido());
+    }
+
+    /**
+     * Igual que verify pero en el pool de BCrypt (EjecutorHash)
+     */
+    public static CompletableFuture<Boolean> verifyAsync(String passTexto, String passHashed) {
+        return CompletableFuture.supplyAsync(() -> verify(passTexto, passHashed), EjecutorHash.compartido());
+    }
+
+    /**
+     * Coste con el que se generan los hashes nuevos. La primera llamada hace la calibracion (o lee el coste fijado)
+     */
+    public static int coste() {
+        int coste = costeObjetivo;
+        if (coste == 0) {
+            synchronized (PasswordUtil.class) {
+                if (costeObjetivo == 0) {
+                    Integer fijado = Integer.getInteger("password.bcrypt.coste");
+                    costeObjetivo = fijado != null
+                            ? validarCoste(fijado)
+                            : calibrar(Long.getLong("password.bcrypt.presupuesto-ms", 100L));
+                }
+                coste = costeObjetivo;
+            }
+        }
+        return coste;
+    }
+
+    /**
+     * Mide un hash con el coste minimo y calcula el mas alto que cabe en el presupuesto
+     * (cada punto de coste duplica el tiempo, asi que no hace falta probarlos todos)
+     * @param presupuestoMs lo maximo que deberia tardar un hash
+     */
+    public static int calibrar(long presupuestoMs) {
+        BCrypt.hashpw("calentamiento", BCrypt.gensalt(COSTE_MINIMO)); // la primera vez carga clases y el JIT no ha actuado
+        long mejorNanos = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long inicio = System.nanoTime();
+            BCrypt.hashpw("calibracion", BCrypt.gensalt(COSTE_MINIMO));
+            mejorNanos = Math.min(mejorNanos, System.nanoTime() - inicio);
+        }
+        int coste = COSTE_MINIMO;
+        long nanos = mejorNanos;
+        while (coste < COSTE_MAXIMO && nanos * 2 <= presupuestoMs * 1_000_000) {
+            nanos *= 2;
+            coste++;
+        }
+        return coste;
+    }
+
+    /**
+     * Coste con el que se genero un hash ("$2a$10$..." -> 10)
+     */
+    public static int costeDe(String passHashed) {
+        try {
+            return Integer.parseInt(passHashed.substring(4, 6));
+        } catch (RuntimeException e) {
+            throw new RuntimeException("[!] El hash no tiene formato BCrypt");
+        }
+    }
+
+    /**
+     * ¿El hash se genero con un coste menor que el actual? Entonces conviene volver a generarlo
+     * (se puede hacer al hacer login, que es cuando tenemos la contraseña en claro).
+     * Solo hacia arriba: el coste calibrado cambia de una maquina a otra y con != cada login en un nodo distinto
+     * reescribiria el hash. Para bajarlo a proposito hay que esperar a que cada usuario cambie la contraseña
+     */
+    public static boolean necesitaRehash(String passHashed) {
+        return costeDe(passHashed) < coste();
+    }
+
+    private static int validarCoste(int coste) {
+        if (coste < 4 || coste > COSTE_MAXIMO) {
+            throw new RuntimeException("[!] password.bcrypt.coste tiene que estar entre 4 y " + COSTE_MAXIMO);
+        }
+        return coste;
     }
 }
@@ -0,0 +1,51 @@
+package es.accesodatos.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bases de datos de los tests: H2 en memoria en modo MySQL, cada url una base vacia
+ * (el resto de persistence.xml se usa tal cual, como en EntornoBenchmark)
+ */
+public final class BaseDatosPrueba {
+
+    private static final AtomicInteger BASES = new AtomicInteger();
+
+    private BaseDatosPrueba() {
+    }
+
+    public static String urlNueva() {
+        return "jdbc:h2:mem:test" + BASES.incrementAndGet() + ";MODE=MySQL;DB_CLOSE_DELAY=-1;IGNORE_UNKNOWN_SETTINGS=TRUE";
+    }
+
+    public static Map<String, Object> propiedades(String url) {
+        Map<String, Object> propiedades = new HashMap<>();
+        propiedades.put("jakarta.persistence.jdbc.url", url);
+        propiedades.put("jakarta.persistence.jdbc.driver", "org.h2.Driver");
+        propiedades.put("jakarta.persistence.jdbc.user", "sa");
+        propiedades.put("jakarta.persistence.jdbc.password", "");
+        propiedades.put("hibernate.dialect", "org.hibernate.dialect.H2Dialect");
+        propiedades.put("hibernate.hbm2ddl.auto", "update"); // la base en memoria empieza vacia
+        return propiedades;
+    }
+
+    /**
+     * DAO sobre una base nueva, sin replicas
+     */
+    static UsuarioDAOBaseDatos dao() {
+        return dao(urlNueva());
+    }
+
+    static UsuarioDAOBaseDatos dao(String url) {
+        return UsuarioDAOBaseDatos.abrir(propiedades(url), false);
+    }
+
+    /**
+     * Para lo que arranca con las propiedades del sistema (UsuarioService): lo apunta a una base nueva
+     */
+    public static void usarEnSistema() {
+        propiedades(urlNueva()).forEach((nombre, valor) -> System.setProperty(nombre, (String) valor));
+        System.setProperty("password.bcrypt.coste", "4");
+    }
+}
@@ -0,0 +1,154 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Lecturas con una replica: dos H2 en memoria, el primario y una "replica" que no recibe nada
+ * (una replica que va con retraso), asi se ve de cual viene cada lectura
+ */
+class EnrutadorReplicasTest {
+
+    private static final List<String> PROPIEDADES = List.of("usuarios.replicas", "usuarios.replicas.pegado-ms",
+            "usuarios.replicas.cuarentena-segundos", "usuarios.filtro.activo");
+
+    private UsuarioDAOBaseDatos dao;
+    private EnrutadorReplicas enrutador;
+
+    @AfterEach
+    void cerrar() {
+        if (dao != null) {
+            dao.cerrar();
+        }
+        if (enrutador != null) {
+            enrutador.cerrar();
+        }
+        PROPIEDADES.forEach(System::clearProperty);
+    }
+
+    @Test
+    void quienEscribeLeeDelPrimarioYLosDemasDeLaReplica() throws Exception {
+        System.setProperty("usuarios.replicas.pegado-ms", "500");
+        String replica = replicaConEsquema();
+        dao = daoConReplica(replica);
+
+        dao.crear(new Usuario("escrito@test.com", "Escrito", "hash", 30));
+
+        assertEquals(1, dao.contar()); // este hilo acaba de escribir: primario
+        assertEquals(0, enOtroHilo(dao::contar)); // otro hilo: replica, que no lo tiene
+        assertEquals(1, enOtroHilo(() -> dao.enPrimario(dao::contar)));
+        assertEquals(1, enOtroHilo(() -> {
+            dao.marcarEscrito(); // como hace el servicio cuando escribe el hilo del group commit
+            return dao.contar();
+        }));
+
+        Thread.sleep(600); // pasado pegado-ms ya vuelve a la replica
+        assertEquals(0, dao.contar());
+
+        EnrutadorReplicas.EstadoReplicas estado = dao.estadoReplicas();
+        assertEquals(0, estado.failovers());
+        assertEquals(2, estado.replicas().getFirst().lecturas());
+    }
+
+    @Test
+    void siLaReplicaFallaLeeDelPrimarioYLaApartaHastaQuePasaLaCuarentena() throws Exception {
+        System.setProperty("usuarios.replicas.cuarentena-segundos", "1");
+        String replica = BaseDatosPrueba.urlNueva(); // sin tabla: cada consulta falla
+        dao = daoConReplica(replica);
+        dao.crear(new Usuario("primario@test.com", "Primario", "hash", 30));
+
+        assertEquals(1, enOtroHilo(dao::contar));
+        EnrutadorReplicas.EstadoReplica apartada = dao.estadoReplicas().replicas().getFirst();
+        assertFalse(apartada.sana());
+        assertEquals(1, apartada.fallos());
+        assertEquals(1, dao.estadoReplicas().failovers());
+
+        assertEquals(1, enOtroHilo(dao::contar)); // en cuarentena ni se prueba
+        assertEquals(1, dao.estadoReplicas().replicas().getFirst().fallos());
+
+        UsuarioDAOBaseDatos.migrarEsquema(BaseDatosPrueba.propiedades(replica)); // la replica se arregla
+        Thread.sleep(1100);
+        assertEquals(0, enOtroHilo(dao::contar)); // ya lee de ella otra vez
+        assertTrue(dao.estadoReplicas().replicas().getFirst().sana());
+        assertEquals(1, dao.estadoReplicas().failovers());
+    }
+
+    @Test
+    void sinConexionLibreEnLaReplicaPasaAlPrimario() throws Exception {
+        System.setProperty("usuarios.replicas", replicaConEsquema());
+        Map<String, Object> propiedades = BaseDatosPrueba.propiedades(BaseDatosPrueba.urlNueva());
+        propiedades.put("hibernate.hikari.maximumPoolSize", "1"); // un solo permiso
+        propiedades.put("hibernate.hikari.minimumIdle", "1");
+        propiedades.put("hibernate.hikari.connectionTimeout", "250");
+        enrutador = EnrutadorReplicas.desdeSistema(UsuarioDAOBaseDatos.PERSISTENCE_UNIT, propiedades);
+
+        // Una lectura lenta se queda con la unica conexion de la replica
+        CountDownLatch dentro = new CountDownLatch(1);
+        CountDownLatch soltar = new CountDownLatch(1);
+        CompletableFuture<String> lenta = CompletableFuture.supplyAsync(() -> enrutador.leer(em -> {
+            dentro.countDown();
+            try {
+                soltar.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "replica";
+        }, () -> "primario"), tarea -> new Thread(tarea).start());
+        dentro.await();
+
+        assertEquals("primario", enrutador.leer(em -> "replica", () -> "primario"));
+        soltar.countDown();
+        assertEquals("replica", lenta.get());
+
+        // Estaba ocupada, no caida: sigue en el reparto
+        EnrutadorReplicas.EstadoReplicas estado = enrutador.estado();
+        assertEquals(1, estado.failovers());
+        assertTrue(estado.replicas().getFirst().sana());
+        assertEquals(0, estado.replicas().getFirst().fallos());
+        assertEquals("replica", enrutador.leer(em -> "replica", () -> "primario"));
+    }
+
+    @Test
+    void unaReplicaQueNoRespondeNoImpideArrancar() throws Exception {
+        System.setProperty("usuarios.replicas.cuarentena-segundos", "1");
+        String replica = "jdbc:h2:tcp://127.0.0.1:1/mem:nadie"; // puerto cerrado: Hikari no consigue ni una conexion
+        dao = daoConReplica(replica);
+        dao.crear(new Usuario("primario@test.com", "Primario", "hash", 30));
+
+        assertEquals(1, enOtroHilo(dao::contar)); // del primario
+        EnrutadorReplicas.EstadoReplica apartada = dao.estadoReplicas().replicas().getFirst();
+        assertFalse(apartada.sana());
+        assertEquals(1, apartada.fallos());
+        assertNull(apartada.conexiones());
+
+        Thread.sleep(1100); // pasada la cuarentena se vuelve a intentar crear, y se vuelve a apartar
+        assertEquals(1, enOtroHilo(dao::contar));
+        assertEquals(2, dao.estadoReplicas().replicas().getFirst().fallos());
+    }
+
+    private static UsuarioDAOBaseDatos daoConReplica(String replica) {
+        System.setProperty("usuarios.replicas", replica);
+        System.setProperty("usuarios.filtro.activo", "false"); // su carga tambien lee y cambiaria las cuentas
+        return UsuarioDAOBaseDatos.abrir(BaseDatosPrueba.propiedades(BaseDatosPrueba.urlNueva()), true);
+    }
+
+    // Una replica vacia pero con la tabla (el esquema no lo crea el enrutador)
+    private static String replicaConEsquema() {
+        String url = BaseDatosPrueba.urlNueva();
+        UsuarioDAOBaseDatos.migrarEsquema(BaseDatosPrueba.propiedades(url));
+        return url;
+    }
+
+    // Un hilo nuevo no ha escrito nada: sus lecturas van a la replica
+    private static long enOtroHilo(Supplier<Long> lectura) {
+        return CompletableFuture.supplyAsync(lectura, tarea -> new Thread(tarea).start()).join();
+    }
+}
@@ -0,0 +1,165 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.dto.CriteriosBusqueda;
+import es.accesodatos.dto.CriteriosBusqueda.Orden;
+import es.accesodatos.dto.Pagina;
+import es.accesodatos.dto.UsuarioResumen;
+import es.accesodatos.entity.Usuario;
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * buscar/contar con criterios: paginacion por keyset con empates, escape del LIKE, cursores de otro orden
+ * y que las consultas usan los indices (EXPLAIN de H2 sobre el SQL que genera Hibernate)
+ */
+class UsuarioDAOBusquedaTest {
+
+    // Nombres en minusculas: asi el orden de H2 y el de CriteriosBusqueda.comparador() (sin mayusculas) coinciden
+    private static final List<String> NOMBRES_RAROS = List.of("50% dto", "50 dto", "500", "a_b", "axb", "hola!", "hola!!", "holax");
+    private static final List<String> SQL = Collections.synchronizedList(new ArrayList<>());
+
+    private static String url;
+    private static UsuarioDAOBaseDatos dao;
+    private static List<UsuarioResumen> todos;
+
+    @BeforeAll
+    static void poblar() {
+        url = BaseDatosPrueba.urlNueva();
+        Map<String, Object> propiedades = BaseDatosPrueba.propiedades(url);
+        propiedades.put("hibernate.session_factory.statement_inspector", (StatementInspector) sql -> {
+            SQL.add(sql);
+            return sql;
+        });
+        dao = UsuarioDAOBaseDatos.abrir(propiedades, false);
+
+        // Muchos con el mismo nombre y la misma edad, para que el id tenga que desempatar entre paginas
+        List<Usuario> usuarios = new ArrayList<>();
+        for (int i = 0; i < 60; i++) {
+            Integer edad = i % 7 == 0 ? null : 20 + i % 5;
+            usuarios.add(new Usuario("u" + i + "@test.com", List.of("ana", "bea", "carlos").get(i % 3), "hash", edad));
+        }
+        for (int i = 0; i < NOMBRES_RAROS.size(); i++) {
+            usuarios.add(new Usuario("raro" + i + "@test.com", NOMBRES_RAROS.get(i), "hash", null));
+        }
+        todos = dao.crearLote(usuarios).stream()
+                .map(u -> new UsuarioResumen(u.getId(), u.getEmail(), u.getNombre(), u.getEdad()))
+                .toList();
+    }
+
+    @AfterAll
+    static void cerrar() {
+        dao.cerrar();
+    }
+
+    @Test
+    void keysetPorNombreConEmpates() {
+        for (boolean descendente : List.of(false, true)) {
+            CriteriosBusqueda criterios = new CriteriosBusqueda(null, null, null, Orden.NOMBRE, descendente);
+            assertEquals(esperados(criterios), todasLasPaginas(criterios, 4));
+        }
+    }
+
+    @Test
+    void keysetPorEdadConEmpates() {
+        for (boolean descendente : List.of(false, true)) {
+            CriteriosBusqueda criterios = new CriteriosBusqueda(null, 21, 23, Orden.EDAD, descendente);
+            List<UsuarioResumen> esperados = esperados(criterios);
+            assertEquals(esperados, todasLasPaginas(criterios, 3));
+            assertEquals(esperados.size(), dao.contar(criterios));
+        }
+    }
+
+    @Test
+    void elPrefijoNoTieneComodines() {
+        assertEquals(List.of("50% dto"), nombres("50%"));
+        assertEquals(List.of("a_b"), nombres("a_"));
+        assertEquals(List.of("hola!", "hola!!"), nombres("hola!"));
+        assertEquals(List.of("hola!!"), nombres("hola!!"));
+        assertEquals(1, dao.contar(new CriteriosBusqueda("50%", null, null, Orden.NOMBRE, false)));
+    }
+
+    @Test
+    void rechazaElCursorDeOtroOrden() {
+        CriteriosBusqueda porNombre = new CriteriosBusqueda(null, null, null, Orden.NOMBRE, false);
+        String cursor = dao.buscar(porNombre, null, 2).siguienteCursor();
+        assertNotNull(cursor);
+        for (Orden otro : List.of(Orden.EDAD, Orden.ID)) {
+            CriteriosBusqueda criterios = new CriteriosBusqueda(null, null, null, otro, false);
+            RuntimeException e = assertThrows(RuntimeException.class, () -> dao.buscar(criterios, cursor, 2));
+            assertEquals("[!] El cursor no es valido para esta busqueda", e.getMessage());
+        }
+        assertThrows(RuntimeException.class, () -> dao.buscar(porNombre, "no-es-un-cursor", 2));
+    }
+
+    @Test
+    void elPrefijoUsaElIndiceDeNombre() throws SQLException {
+        SQL.clear();
+        dao.buscar(new CriteriosBusqueda("ana", null, null, Orden.NOMBRE, false), null, 10);
+        assertTrue(explain(ultimaConsulta(), "ana%", 11).contains("IDX_USUARIOS_NOMBRE"));
+
+        SQL.clear();
+        dao.contar(new CriteriosBusqueda("ana", null, null, Orden.ID, false));
+        assertTrue(explain(ultimaConsulta(), "ana%").contains("IDX_USUARIOS_NOMBRE"));
+    }
+
+    @Test
+    void elRangoDeEdadUsaElIndiceDeEdad() throws SQLException {
+        SQL.clear();
+        dao.buscar(new CriteriosBusqueda(null, 21, 22, Orden.EDAD, true), null, 10);
+        assertTrue(explain(ultimaConsulta(), 21, 22, 11).contains("IDX_USUARIOS_EDAD"));
+    }
+
+    private static List<UsuarioResumen> todasLasPaginas(CriteriosBusqueda criterios, int tamano) {
+        List<UsuarioResumen> leidos = new ArrayList<>();
+        String cursor = null;
+        do {
+            Pagina<UsuarioResumen> pagina = dao.buscar(criterios, cursor, tamano);
+            assertTrue(pagina.elementos().size() <= tamano);
+            leidos.addAll(pagina.elementos());
+            cursor = pagina.siguienteCursor();
+        } while (cursor != null && leidos.size() <= todos.size());
+        return leidos;
+    }
+
+    private static List<UsuarioResumen> esperados(CriteriosBusqueda criterios) {
+        return todos.stream()
+                .filter(u -> criterios.edadMinima() == null || (u.edad() != null && u.edad() >= criterios.edadMinima()))
+                .filter(u -> criterios.edadMaxima() == null || (u.edad() != null && u.edad() <= criterios.edadMaxima()))
+                .sorted(criterios.comparador())
+                .toList();
+    }
+
+    private static List<String> nombres(String prefijo) {
+        return dao.buscar(new CriteriosBusqueda(prefijo, null, null, Orden.NOMBRE, false), null, 100).elementos().stream()
+                .map(UsuarioResumen::nombre)
+                .toList();
+    }
+
+    private static String ultimaConsulta() {
+        return SQL.stream().filter(sql -> sql.contains("usuarios")).reduce((a, b) -> b).orElseThrow();
+    }
+
+    // El plan de H2 para el SQL con esos parametros: nombra el indice que usa (/* PUBLIC.IDX_...: ... */)
+    private static String explain(String sql, Object... parametros) throws SQLException {
+        try (Connection conexion = DriverManager.getConnection(url, "sa", "");
+             PreparedStatement explain = conexion.prepareStatement("EXPLAIN " + sql)) {
+            for (int i = 0; i < parametros.length; i++) {
+                explain.setObject(i + 1, parametros[i]);
+            }
+            try (ResultSet plan = explain.executeQuery()) {
+                plan.next();
+                return plan.getString(1).toUpperCase(Locale.ROOT);
+            }
+        }
+    }
+}
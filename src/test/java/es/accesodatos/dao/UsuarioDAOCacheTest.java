@@ -0,0 +1,92 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Cambiar o borrar un usuario solo saca de la cache de segundo nivel a ese usuario: los demas siguen en ella
+ * (un UPDATE/DELETE de JPQL vaciaria la region entera)
+ */
+class UsuarioDAOCacheTest {
+
+    private static final int USUARIOS = 20;
+
+    private UsuarioDAOBaseDatos dao;
+    private List<Usuario> usuarios;
+
+    @BeforeEach
+    void abrir() {
+        dao = BaseDatosPrueba.dao();
+        List<Usuario> nuevos = new ArrayList<>();
+        for (int i = 0; i < USUARIOS; i++) {
+            nuevos.add(new Usuario("cache" + i + "@test.com", "Cache", "hash", 30));
+        }
+        usuarios = dao.crearLote(nuevos);
+        leerLosDemas(); // todos en la cache
+    }
+
+    @AfterEach
+    void cerrar() {
+        dao.cerrar();
+    }
+
+    @Test
+    void actualizarPasswordNoVaciaLaCache() {
+        Long id = usuarios.getFirst().getId();
+        sinFallosEnLosDemas(dao -> assertEquals(1, dao.actualizarPassword(id, "nuevo")));
+        assertEquals("nuevo", dao.buscarPorId(id).orElseThrow().getPassword());
+    }
+
+    @Test
+    void elRehashNoVaciaLaCache() {
+        Long id = usuarios.getFirst().getId();
+        sinFallosEnLosDemas(dao -> {
+            assertEquals(0, dao.actualizarPasswordSiNoCambia(id, "otro", "rehash")); // ya no es el que se leyo
+            assertEquals(1, dao.actualizarPasswordSiNoCambia(id, "hash", "rehash"));
+        });
+        assertEquals("rehash", dao.buscarPorId(id).orElseThrow().getPassword());
+    }
+
+    @Test
+    void actualizarCamposNoVaciaLaCache() {
+        Usuario primero = usuarios.getFirst();
+        sinFallosEnLosDemas(dao -> assertEquals(1, dao.actualizarCampos(primero.getId(), "cambiado@test.com", "Otro", null)));
+        assertEquals("Otro", dao.buscarPorEmail("cambiado@test.com").orElseThrow().getNombre());
+        assertTrue(dao.buscarPorEmail(primero.getEmail()).isEmpty());
+        assertEquals(primero.getVersion() + 1, dao.buscarPorId(primero.getId()).orElseThrow().getVersion());
+    }
+
+    @Test
+    void eliminarNoVaciaLaCache() {
+        Usuario primero = usuarios.getFirst();
+        sinFallosEnLosDemas(dao -> assertEquals(1, dao.eliminar(primero.getId())));
+        assertTrue(dao.buscarPorId(primero.getId()).isEmpty());
+        assertTrue(dao.buscarPorEmail(primero.getEmail()).isEmpty());
+        assertEquals(0, dao.eliminar(primero.getId()));
+    }
+
+    // Despues de la escritura, leer por id y por email a todos menos al primero no va a la tabla
+    private void sinFallosEnLosDemas(Consumer<UsuarioDAOBaseDatos> escritura) {
+        escritura.accept(dao);
+        EstadisticasCache antes = dao.estadisticasCache();
+        leerLosDemas();
+        EstadisticasCache despues = dao.estadisticasCache();
+        assertEquals(antes.fallosEntidad(), despues.fallosEntidad());
+        assertEquals(antes.fallosNaturalId(), despues.fallosNaturalId());
+        assertTrue(despues.aciertosEntidad() - antes.aciertosEntidad() >= 2L * (USUARIOS - 1));
+    }
+
+    private void leerLosDemas() {
+        for (Usuario usuario : usuarios.subList(1, USUARIOS)) {
+            assertTrue(dao.buscarPorId(usuario.getId()).isPresent());
+            assertTrue(dao.buscarPorEmail(usuario.getEmail()).isPresent());
+        }
+    }
+}
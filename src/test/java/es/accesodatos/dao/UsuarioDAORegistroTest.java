@@ -0,0 +1,85 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * crear con el mismo email a la vez: decide la restriccion UNIQUE y el resto recibe EmailDuplicadoException
+ */
+class UsuarioDAORegistroTest {
+
+    private static final int HILOS = 16;
+
+    private UsuarioDAOBaseDatos dao;
+
+    @BeforeEach
+    void abrir() {
+        dao = BaseDatosPrueba.dao();
+    }
+
+    @AfterEach
+    void cerrar() {
+        dao.cerrar();
+    }
+
+    @Test
+    void soloUnoDeLosRegistrosALaVezSeCrea() throws Exception {
+        List<Object> resultados = aLaVez(() -> dao.crear(new Usuario("mismo@test.com", "Mismo", "hash", 30)));
+
+        assertEquals(1, resultados.stream().filter(Usuario.class::isInstance).count());
+        assertEquals(HILOS - 1, resultados.stream().filter(EmailDuplicadoException.class::isInstance).count());
+        assertEquals(1, dao.contar());
+    }
+
+    @Test
+    void elDuplicadoLlegaComoEmailDuplicadoConLaViolacionDeLaBd() {
+        dao.crear(new Usuario("repetido@test.com", "Uno", "hash", null));
+
+        EmailDuplicadoException e = assertThrows(EmailDuplicadoException.class,
+                () -> dao.crear(new Usuario("repetido@test.com", "Otro", "hash", null)));
+        assertEquals("repetido@test.com", e.getEmail());
+        assertEquals("23505", estadoSql(e)); // en MySQL el codigo 1062, ver esEmailDuplicado
+        assertEquals("Uno", dao.buscarPorEmail("repetido@test.com").orElseThrow().getNombre());
+    }
+
+    // Lanza HILOS veces la tarea a la vez: el resultado de cada una o la excepcion que ha lanzado
+    private static List<Object> aLaVez(Callable<?> tarea) throws Exception {
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Future<Object>> futuros = new ArrayList<>();
+        try (ExecutorService hilos = Executors.newFixedThreadPool(HILOS)) {
+            for (int i = 0; i < HILOS; i++) {
+                futuros.add(hilos.submit(() -> {
+                    salida.await();
+                    try {
+                        return tarea.call();
+                    } catch (RuntimeException e) {
+                        return e;
+                    }
+                }));
+            }
+            salida.countDown();
+        }
+        List<Object> resultados = new ArrayList<>();
+        for (Future<Object> futuro : futuros) {
+            resultados.add(futuro.get());
+        }
+        return resultados;
+    }
+
+    private static String estadoSql(Throwable e) {
+        for (Throwable causa = e; causa != null; causa = causa.getCause()) {
+            if (causa instanceof SQLException sql) {
+                return sql.getSQLState();
+            }
+        }
+        return null;
+    }
+}
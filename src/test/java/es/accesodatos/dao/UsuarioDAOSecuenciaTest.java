@@ -0,0 +1,66 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Con el dialecto de MySQL la secuencia es la tabla usuarios_seq y cada vez que se acaba la reserva de 50
+ * Hibernate la rellena con otra conexion aparte, mientras el que inserta sigue con la suya.
+ * Con muchos insertando a la vez siempre tiene que quedar esa conexion libre
+ */
+class UsuarioDAOSecuenciaTest {
+
+    private static final int HILOS = 8;
+    private static final int POR_HILO = 40; // 320 inserts: varias reservas de 50
+
+    private UsuarioDAOBaseDatos dao;
+
+    @AfterEach
+    void cerrar() {
+        dao.cerrar();
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = {2, 4})
+    void crearALaVezConLaSecuenciaEnTabla(int conexiones) throws Exception {
+        Map<String, Object> propiedades = BaseDatosPrueba.propiedades(BaseDatosPrueba.urlNueva());
+        propiedades.put("hibernate.dialect", "org.hibernate.dialect.MySQLDialect");
+        propiedades.put("hibernate.hikari.maximumPoolSize", Integer.toString(conexiones));
+        propiedades.put("hibernate.hikari.minimumIdle", Integer.toString(conexiones));
+        propiedades.put("hibernate.hikari.connectionTimeout", "2000"); // sin la conexion libre fallaria a los 2 s
+        dao = UsuarioDAOBaseDatos.abrir(propiedades, false);
+        assertEquals(conexiones - 1, dao.estadoConexiones().maximo()); // una para la tabla de la secuencia
+
+        List<Future<List<Long>>> hilos = new ArrayList<>();
+        try (ExecutorService ejecutor = Executors.newFixedThreadPool(HILOS)) {
+            for (int h = 0; h < HILOS; h++) {
+                int hilo = h;
+                hilos.add(ejecutor.submit(() -> {
+                    List<Long> ids = new ArrayList<>();
+                    for (int i = 0; i < POR_HILO; i++) {
+                        ids.add(dao.crear(new Usuario("h" + hilo + "-" + i + "@test.com", "Hilo", "hash", 30)).getId());
+                    }
+                    return ids;
+                }));
+            }
+        }
+        Set<Long> ids = new HashSet<>();
+        for (Future<List<Long>> hilo : hilos) {
+            ids.addAll(hilo.get()); // si algun crear ha fallado salta aqui
+        }
+        assertEquals(HILOS * POR_HILO, ids.size());
+        assertEquals(HILOS * POR_HILO, dao.contar());
+    }
+}
@@ -0,0 +1,111 @@
+package es.accesodatos.dao;
+
+import es.accesodatos.entity.Usuario;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Dos shards H2: la unidad de trabajo solo ocupa los shards que toca y el id de un usuario no cambia nunca
+ */
+class UsuarioDAOShardsTest {
+
+    private List<UsuarioDAOBaseDatos> shards;
+    private UsuarioDAOShards dao;
+
+    @BeforeEach
+    void abrir() {
+        List<String> urls = List.of(BaseDatosPrueba.urlNueva(), BaseDatosPrueba.urlNueva());
+        List<UsuarioDAOBaseDatos> creados = new ArrayList<>();
+        for (String url : urls) {
+            creados.add(BaseDatosPrueba.dao(url));
+        }
+        shards = List.copyOf(creados);
+        dao = new UsuarioDAOShards(urls, shards, MapaShards.porDefecto(urls.size()));
+    }
+
+    @AfterEach
+    void cerrar() {
+        dao.cerrar();
+    }
+
+    @Test
+    void laUnidadDeTrabajoSoloAbreLosShardsQueToca() {
+        String email = emailDelShard(0, 0);
+        Map<Integer, Integer> libresDentro = dao.enUnidadDeTrabajo(() -> {
+            dao.crear(new Usuario(email, "Uno", "hash", 30));
+            assertTrue(dao.buscarPorEmail(email).isPresent());
+            return Map.of(0, libres(0), 1, libres(1));
+        });
+
+        assertEquals(maximo(0) - 1, libresDentro.get(0)); // este shard tiene su conexion
+        assertEquals(maximo(1), libresDentro.get(1)); // el otro ni se ha abierto
+        assertEquals(maximo(0), libres(0));
+        assertTrue(shards.get(0).buscarPorEmail(email).isPresent()); // y se ha hecho el commit
+    }
+
+    @Test
+    void siFallaSeDeshaceEnLosShardsQueHaTocado() {
+        String enCero = emailDelShard(0, 0);
+        String enUno = emailDelShard(1, 0);
+        assertThrows(IllegalStateException.class, () -> dao.enUnidadDeTrabajo(() -> {
+            dao.crear(new Usuario(enCero, "Cero", "hash", 30));
+            dao.crear(new Usuario(enUno, "Uno", "hash", 30));
+            throw new IllegalStateException("falla despues de escribir");
+        }));
+
+        assertEquals(0, dao.contar());
+        assertEquals(maximo(0), libres(0));
+        assertEquals(maximo(1), libres(1));
+    }
+
+    @Test
+    void noSeCambiaElEmailAUnoDeOtraCubeta() {
+        String email = emailDelShard(0, 0);
+        Usuario usuario = dao.crear(new Usuario(email, "Uno", "hash", 30));
+        Long id = usuario.getId();
+        String otraCubeta = IntStream.range(0, 10_000).mapToObj(i -> "otra" + i + "@test.com")
+                .filter(e -> MapaShards.cubeta(e) != MapaShards.cubeta(email))
+                .findFirst().orElseThrow();
+
+        RuntimeException e = assertThrows(RuntimeException.class,
+                () -> dao.actualizarCampos(id, otraCubeta, null, null));
+        assertTrue(e.getMessage().startsWith("[!] Con shards no se puede cambiar el email"));
+        Usuario leido = dao.buscarPorId(id).orElseThrow();
+        leido.setEmail(otraCubeta);
+        assertThrows(RuntimeException.class, () -> dao.actualizar(leido));
+        assertThrows(RuntimeException.class, () -> dao.modificar(id, u -> u.setEmail(otraCubeta)));
+
+        assertEquals(email, dao.buscarPorId(id).orElseThrow().getEmail()); // mismo id, mismo email
+        assertTrue(dao.buscarPorEmail(otraCubeta).isEmpty());
+
+        // A uno de la misma cubeta si, y el id es el mismo
+        String mismaCubeta = IntStream.range(0, 100_000).mapToObj(i -> "misma" + i + "@test.com")
+                .filter(m -> MapaShards.cubeta(m) == MapaShards.cubeta(email))
+                .findFirst().orElseThrow();
+        assertEquals(1, dao.actualizarCampos(id, mismaCubeta, null, null));
+        assertEquals(mismaCubeta, dao.buscarPorId(id).orElseThrow().getEmail());
+    }
+
+    // El n-esimo email de prueba que cae en ese shard
+    private String emailDelShard(int shard, int n) {
+        MapaShards mapa = MapaShards.porDefecto(shards.size());
+        return IntStream.range(0, 10_000).mapToObj(i -> "shard" + shard + "-" + i + "@test.com")
+                .filter(email -> mapa.shardDeEmail(email) == shard)
+                .skip(n).findFirst().orElseThrow();
+    }
+
+    private int libres(int shard) {
+        return shards.get(shard).estadoConexiones().libres();
+    }
+
+    private int maximo(int shard) {
+        return shards.get(shard).estadoConexiones().maximo();
+    }
+}
@@ -0,0 +1,48 @@
+package es.accesodatos.service;
+
+import es.accesodatos.dao.BaseDatosPrueba;
+import es.accesodatos.dto.ResultadoImportacion;
+import es.accesodatos.dto.ResultadoImportacion.ErrorFila;
+import es.accesodatos.dto.UsuarioNuevo;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * registrarLote con emails que solo cambian en mayusculas: la tabla (como MySQL, sin distinguirlas) los trata
+ * como el mismo, asi que la comprobacion previa tambien
+ */
+class UsuarioServiceImportacionTest {
+
+    private UsuarioService service;
+
+    @AfterEach
+    void cerrar() {
+        service.cerrar();
+    }
+
+    @Test
+    void losEmailsQueSoloCambianEnMayusculasSonElMismo() {
+        BaseDatosPrueba.usarEnSistema();
+        // H2 con IGNORECASE compara las cadenas como la collation _ci de MySQL
+        System.setProperty("jakarta.persistence.jdbc.url", BaseDatosPrueba.urlNueva() + ";IGNORECASE=TRUE");
+        service = new UsuarioService(ModoRegistro.DIRECTO);
+        service.registrar("ana@test.com", "Ana", "secreto", 30);
+
+        ResultadoImportacion resultado = service.registrarLote(Stream.of(
+                new UsuarioNuevo("ANA@test.com", "Ana", "secreto", 30),
+                new UsuarioNuevo("nuevo@test.com", "Nuevo", "secreto", 20),
+                new UsuarioNuevo("Nuevo@Test.com", "Nuevo", "secreto", 20)), 10);
+
+        assertEquals(1, resultado.getInsertados());
+        // Sin normalizar, ANA pasaria la comprobacion y el lote entero fallaria en el indice unico ("No se pudo insertar")
+        assertEquals(List.of(
+                new ErrorFila(1, "ANA@test.com", "[!] El email 'ana@test.com' ya esta registrado"),
+                new ErrorFila(3, "Nuevo@Test.com", "[!] El email 'Nuevo@Test.com' esta repetido en la fila 2")),
+                resultado.getErrores().stream().sorted(Comparator.comparingLong(ErrorFila::fila)).toList());
+    }
+}
@@ -0,0 +1,92 @@
+package es.accesodatos.service;
+
+import es.accesodatos.dao.BaseDatosPrueba;
+import es.accesodatos.dao.EmailDuplicadoException;
+import es.accesodatos.dto.CriteriosBusqueda;
+import es.accesodatos.entity.Usuario;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Muchos registros a la vez del mismo email: solo uno se queda con el, con y sin group commit
+ */
+class UsuarioServiceRegistroTest {
+
+    private static final int HILOS = 16;
+
+    private UsuarioService service;
+
+    @AfterEach
+    void cerrar() {
+        service.cerrar();
+        System.clearProperty("usuarios.agrupar.activo");
+    }
+
+    @ParameterizedTest
+    @EnumSource(ModoRegistro.class)
+    void registrarALaVezSoloDejaUno(ModoRegistro modo) throws Exception {
+        arrancar(modo, false);
+        List<Object> resultados = aLaVez(() -> service.registrar("mismo@test.com", "Mismo", "secreto", 30));
+
+        assertEquals(1, resultados.stream().filter(Usuario.class::isInstance).count());
+        assertEquals(HILOS - 1, resultados.stream().filter(EmailDuplicadoException.class::isInstance).count());
+    }
+
+    @Test
+    void registrarSiNoExisteALaVezSoloCreaUno() throws Exception {
+        arrancar(ModoRegistro.DIRECTO, false);
+        comprobarSiNoExiste();
+    }
+
+    @Test
+    void registrarSiNoExisteALaVezConGroupCommit() throws Exception {
+        arrancar(ModoRegistro.DIRECTO, true);
+        comprobarSiNoExiste();
+    }
+
+    private void comprobarSiNoExiste() throws Exception {
+        List<Object> resultados = aLaVez(() -> service.registrarSiNoExiste("mismo@test.com", "Mismo", "secreto", 30));
+
+        assertTrue(resultados.stream().allMatch(Optional.class::isInstance), "ninguno tiene que fallar: " + resultados);
+        assertEquals(1, resultados.stream().filter(r -> ((Optional<?>) r).isPresent()).count());
+        assertEquals(1, service.contar(CriteriosBusqueda.todos()));
+    }
+
+    private void arrancar(ModoRegistro modo, boolean agrupar) {
+        BaseDatosPrueba.usarEnSistema();
+        System.setProperty("usuarios.agrupar.activo", Boolean.toString(agrupar));
+        service = new UsuarioService(modo);
+    }
+
+    // Lanza HILOS veces la tarea a la vez: el resultado de cada una o la excepcion que ha lanzado
+    private static List<Object> aLaVez(Callable<?> tarea) throws Exception {
+        CountDownLatch salida = new CountDownLatch(1);
+        List<Future<Object>> futuros = new ArrayList<>();
+        try (ExecutorService hilos = Executors.newFixedThreadPool(HILOS)) {
+            for (int i = 0; i < HILOS; i++) {
+                futuros.add(hilos.submit(() -> {
+                    salida.await();
+                    try {
+                        return tarea.call();
+                    } catch (RuntimeException e) {
+                        return e;
+                    }
+                }));
+            }
+            salida.countDown();
+        }
+        List<Object> resultados = new ArrayList<>();
+        for (Future<Object> futuro : futuros) {
+            resultados.add(futuro.get());
+        }
+        return resultados;
+    }
+}
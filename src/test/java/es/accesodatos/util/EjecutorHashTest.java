@@ -0,0 +1,59 @@
+package es.accesodatos.util;
+
+import org.junit.jupiter.api.Test;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Con la cola llena: por defecto se rechaza, el hash nunca se hace en el hilo que llama
+ */
+class EjecutorHashTest {
+
+    @Test
+    void conLaColaLlenaRechazaSinUsarElHiloQueLlama() throws Exception {
+        EjecutorHash ejecutor = new EjecutorHash(1, 1, true);
+        CountDownLatch dentro = new CountDownLatch(1);
+        CountDownLatch soltar = new CountDownLatch(1);
+        ejecutor.execute(() -> {
+            dentro.countDown();
+            esperar(soltar);
+        });
+        dentro.await();
+        ejecutor.execute(() -> { }); // ocupa la unica plaza de la cola
+
+        Thread llamante = Thread.currentThread();
+        RejectedExecutionException e = assertThrows(RejectedExecutionException.class,
+                () -> ejecutor.execute(() -> assertNotSame(llamante, Thread.currentThread())));
+        assertTrue(e.getMessage().startsWith("[!] La cola de BCrypt esta llena"));
+        assertEquals(1, ejecutor.estado().rechazadas());
+        soltar.countDown();
+    }
+
+    @Test
+    void conLlamanteElQueEnviaHaceElHash() throws Exception {
+        EjecutorHash ejecutor = new EjecutorHash(1, 1, false);
+        CountDownLatch dentro = new CountDownLatch(1);
+        CountDownLatch soltar = new CountDownLatch(1);
+        ejecutor.execute(() -> {
+            dentro.countDown();
+            esperar(soltar);
+        });
+        dentro.await();
+        ejecutor.execute(() -> { });
+
+        Thread[] quien = new Thread[1];
+        ejecutor.execute(() -> quien[0] = Thread.currentThread());
+        assertSame(Thread.currentThread(), quien[0]);
+        soltar.countDown();
+    }
+
+    private static void esperar(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}